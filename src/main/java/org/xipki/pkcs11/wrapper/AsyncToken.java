@@ -0,0 +1,321 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Asynchronous facade of a {@link Token}. Every call is dispatched to a fixed number of worker
+ * threads dedicated to the slot, and returns a {@link CompletableFuture} which is completed with
+ * the result, or exceptionally with the {@link PKCS11Exception}. The calling thread never blocks
+ * in the native library, so the facade can be used from event-loop threads.
+ * <pre><code>
+ *   SessionPool pool = token.newSessionPool(CKU_USER, pin);
+ *   AsyncToken asyncToken = new AsyncToken(pool, 4);
+ *   asyncToken.sign(mechanism, keyHandle, data)
+ *       .thenAcceptAsync(signature -&gt; ..., eventLoop);
+ * </code></pre>
+ * Each worker binds its sessions via {@link SessionPool#getBoundSession(boolean)}, so the sessions
+ * are owned by the workers and an operation never waits for a session to be returned. A worker
+ * holds at most one read-only and one read-write session; the pool should allow at least as many
+ * sessions as there are workers. If an operation fails because its session is broken, the worker
+ * closes its sessions and binds fresh ones for the next call.
+ * <p>
+ * The queue of pending calls is bounded. If it is full, the returned future is completed
+ * exceptionally with a {@link RejectedExecutionException}. Dependent stages which are not
+ * registered via the *Async methods of the future run on the worker threads; they should not
+ * block.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class AsyncToken implements AutoCloseable {
+
+  /**
+   * Default maximal number of pending calls.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /**
+   * Operation on a session, executed by a worker thread.
+   *
+   * @param <T> the type of the result.
+   */
+  @FunctionalInterface
+  public interface SessionFunction<T> {
+
+    /**
+     * Executes the operation. The session must not have a pending operation when this method
+     * returns.
+     *
+     * @param session The session bound to the worker thread.
+     * @return the result.
+     * @throws PKCS11Exception If the operation failed.
+     */
+    T apply(Session session) throws PKCS11Exception;
+
+  }
+
+  private final SessionPool pool;
+
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * Constructor with the queue capacity {@link #DEFAULT_QUEUE_CAPACITY}.
+   *
+   * @param pool    The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param workers The number of worker threads.
+   */
+  public AsyncToken(SessionPool pool, int workers) {
+    this(pool, workers, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool          The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param workers       The number of worker threads.
+   * @param queueCapacity The maximal number of pending calls.
+   */
+  public AsyncToken(SessionPool pool, int workers, int queueCapacity) {
+    this.pool = Functions.requireNonNull("pool", pool);
+    Functions.requireRange("workers", workers, 1, Integer.MAX_VALUE);
+    Functions.requireRange("queueCapacity", queueCapacity, 1, Integer.MAX_VALUE);
+
+    String namePrefix = "pkcs11-slot-" + pool.getToken().getTokenID() + "-worker-";
+    AtomicInteger counter = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), r -> {
+          Thread thread = new Thread(() -> {
+            try {
+              r.run();
+            } finally {
+              // return the sessions bound to this worker when it terminates.
+              pool.releaseBoundSessions();
+            }
+          }, namePrefix + counter.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  public SessionPool getSessionPool() {
+    return pool;
+  }
+
+  public int getWorkerCount() {
+    return executor.getCorePoolSize();
+  }
+
+  /**
+   * Returns the number of calls waiting for a worker.
+   *
+   * @return the number of pending calls.
+   */
+  public int getPendingCount() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Executes the given operation on a worker thread.
+   *
+   * @param rwSession true if the operation requires a read-write session.
+   * @param function  The operation.
+   * @param <T>       the type of the result.
+   * @return the future of the result.
+   */
+  public <T> CompletableFuture<T> execute(boolean rwSession, SessionFunction<T> function) {
+    Functions.requireNonNull("function", function);
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        if (future.isDone()) {
+          // cancelled while pending
+          return;
+        }
+
+        try {
+          future.complete(function.apply(pool.getBoundSession(rwSession)));
+        } catch (PKCS11Exception e) {
+          if (isSessionBroken(e.getErrorCode())) {
+            pool.invalidateBoundSessions();
+          }
+          future.completeExceptionally(e);
+        } catch (Throwable t) {
+          // the session may have a pending operation.
+          pool.invalidateBoundSessions();
+          future.completeExceptionally(t);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Signs the data.
+   *
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The signing key.
+   * @param data      The data to sign.
+   * @return the future of the signature.
+   */
+  public CompletableFuture<byte[]> sign(Mechanism mechanism, long keyHandle, byte[] data) {
+    return execute(false, session -> {
+      session.signInit(mechanism, keyHandle);
+      return session.sign(data);
+    });
+  }
+
+  /**
+   * Verifies the signature.
+   *
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The verification key.
+   * @param data      The signed data.
+   * @param signature The signature.
+   * @return the future of the verification result: {@link Boolean#FALSE} if the signature is
+   *         invalid, completed exceptionally for all other errors.
+   */
+  public CompletableFuture<Boolean> verify(Mechanism mechanism, long keyHandle, byte[] data, byte[] signature) {
+    return execute(false, session -> {
+      session.verifyInit(mechanism, keyHandle);
+      try {
+        session.verify(data, signature);
+        return Boolean.TRUE;
+      } catch (PKCS11Exception e) {
+        long code = e.getErrorCode();
+        if (code == CKR_SIGNATURE_INVALID || code == CKR_SIGNATURE_LEN_RANGE) {
+          return Boolean.FALSE;
+        }
+        throw e;
+      }
+    });
+  }
+
+  /**
+   * Encrypts the data.
+   *
+   * @param mechanism The encryption mechanism.
+   * @param keyHandle The encryption key.
+   * @param data      The data to encrypt.
+   * @return the future of the encrypted data.
+   */
+  public CompletableFuture<byte[]> encrypt(Mechanism mechanism, long keyHandle, byte[] data) {
+    return execute(false, session -> {
+      session.encryptInit(mechanism, keyHandle);
+      return session.encrypt(data);
+    });
+  }
+
+  /**
+   * Decrypts the data.
+   *
+   * @param mechanism The decryption mechanism.
+   * @param keyHandle The decryption key.
+   * @param data      The data to decrypt.
+   * @return the future of the decrypted data.
+   */
+  public CompletableFuture<byte[]> decrypt(Mechanism mechanism, long keyHandle, byte[] data) {
+    return execute(false, session -> {
+      session.decryptInit(mechanism, keyHandle);
+      return session.decrypt(data);
+    });
+  }
+
+  /**
+   * Digests the data.
+   *
+   * @param mechanism The digest mechanism.
+   * @param data      The data to digest.
+   * @return the future of the message digest.
+   */
+  public CompletableFuture<byte[]> digest(Mechanism mechanism, byte[] data) {
+    return execute(false, session -> {
+      session.digestInit(mechanism);
+      return session.digest(data);
+    });
+  }
+
+  /**
+   * Generates a key pair. A read-write session is used if one of the keys is a token object.
+   *
+   * @param mechanism The key generation mechanism.
+   * @param template  The template of the key pair.
+   * @return the future of the generated key pair.
+   */
+  public CompletableFuture<PKCS11KeyPair> generateKeyPair(Mechanism mechanism, KeyPairTemplate template) {
+    boolean rw = isTokenObject(template.publicKey()) || isTokenObject(template.privateKey());
+    return execute(rw, session -> session.generateKeyPair(mechanism, template));
+  }
+
+  /**
+   * Wraps the key.
+   *
+   * @param mechanism         The wrapping mechanism.
+   * @param wrappingKeyHandle The wrapping key.
+   * @param keyHandle         The key to wrap.
+   * @return the future of the wrapped key.
+   */
+  public CompletableFuture<byte[]> wrapKey(Mechanism mechanism, long wrappingKeyHandle, long keyHandle) {
+    return execute(false, session -> session.wrapKey(mechanism, wrappingKeyHandle, keyHandle));
+  }
+
+  /**
+   * Unwraps the key. A read-write session is used if the unwrapped key is a token object.
+   *
+   * @param mechanism           The unwrapping mechanism.
+   * @param unwrappingKeyHandle The unwrapping key.
+   * @param wrappedKey          The wrapped key.
+   * @param keyTemplate         The template of the unwrapped key.
+   * @return the future of the handle of the unwrapped key.
+   */
+  public CompletableFuture<Long> unwrapKey(Mechanism mechanism, long unwrappingKeyHandle, byte[] wrappedKey,
+                                           AttributeVector keyTemplate) {
+    return execute(isTokenObject(keyTemplate),
+        session -> session.unwrapKey(mechanism, unwrappingKeyHandle, wrappedKey, keyTemplate));
+  }
+
+  /**
+   * Stops accepting new calls, waits until the pending calls have been executed, and returns the
+   * sessions of the workers to the pool.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+        // wait until the pending calls have been executed
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // workers which did not terminate normally could not return their sessions.
+    pool.releaseDeadThreadSessions();
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncToken: " + getWorkerCount() + " workers, " + getPendingCount() + " pending calls, "
+        + pool;
+  }
+
+  private static boolean isTokenObject(AttributeVector template) {
+    return template != null && Boolean.TRUE.equals(template.token());
+  }
+
+  private static boolean isSessionBroken(long errorCode) {
+    return errorCode == CKR_SESSION_HANDLE_INVALID || errorCode == CKR_SESSION_CLOSED
+        || errorCode == CKR_DEVICE_REMOVED || errorCode == CKR_DEVICE_ERROR
+        || errorCode == CKR_TOKEN_NOT_PRESENT || errorCode == CKR_OPERATION_ACTIVE;
+  }
+
+}
@@ -0,0 +1,276 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Module-wide cache of the attributes which cannot change after an object has been created,
+ * e.g. CKA_CLASS, CKA_KEY_TYPE and CKA_EC_PARAMS. Since object handles are valid in all sessions
+ * of an application, the values are shared by all sessions of a token and need to be read from
+ * the token only once.
+ * <p>
+ * The cache holds at most {@link #getMaxObjects()} objects. Reads are lock-free. If the cache
+ * is full, one thread evicts the objects which have not been accessed since the last sweep
+ * (second chance / CLOCK policy), the other threads continue without waiting.
+ * <p>
+ * The cached values are the post-processed values (e.g. with vendor codes translated to the
+ * generic codes) and are copied on the way in and out.
+ *
+ * @author Lijun Liao (xipki)
+ */
+class AttributeCache {
+
+  static final int DEFAULT_MAX_OBJECTS = 10000;
+
+  private static final long[] CACHEABLE_TYPES = {
+      CKA_CLASS, CKA_TOKEN, CKA_KEY_TYPE, CKA_CERTIFICATE_TYPE, CKA_LOCAL, CKA_KEY_GEN_MECHANISM,
+      CKA_EC_PARAMS, CKA_EC_POINT, CKA_MODULUS, CKA_MODULUS_BITS, CKA_PUBLIC_EXPONENT,
+      CKA_PRIME, CKA_SUBPRIME, CKA_BASE, CKA_VALUE_LEN, CKA_VALUE_BITS};
+
+  private static final class ObjectKey {
+
+    private final long slotId;
+
+    private final long objectHandle;
+
+    private final int hash;
+
+    ObjectKey(long slotId, long objectHandle) {
+      this.slotId = slotId;
+      this.objectHandle = objectHandle;
+      this.hash = 31 * Long.hashCode(slotId) + Long.hashCode(objectHandle);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof ObjectKey)) {
+        return false;
+      }
+
+      ObjectKey other = (ObjectKey) obj;
+      return slotId == other.slotId && objectHandle == other.objectHandle;
+    }
+
+  } // class ObjectKey
+
+  /**
+   * The cached attributes of one object. The arrays are never modified, but replaced as a whole.
+   */
+  private static final class ObjectEntry {
+
+    private volatile long[] types = new long[0];
+
+    private volatile Object[] values = new Object[0];
+
+    private volatile boolean referenced = true;
+
+    Object get(long type) {
+      long[] ts = types;
+      Object[] vs = values;
+      // types is written after values, so values is never shorter than types.
+      for (int i = 0; i < ts.length; i++) {
+        if (ts[i] == type) {
+          return vs[i];
+        }
+      }
+      return null;
+    }
+
+    synchronized void put(long type, Object value) {
+      long[] ts = types;
+      for (long t : ts) {
+        if (t == type) {
+          return;
+        }
+      }
+
+      int n = ts.length;
+      long[] newTypes = new long[n + 1];
+      Object[] newValues = new Object[n + 1];
+      System.arraycopy(ts, 0, newTypes, 0, n);
+      System.arraycopy(values, 0, newValues, 0, n);
+      newTypes[n] = type;
+      newValues[n] = value;
+
+      values = newValues;
+      types = newTypes;
+    }
+
+  } // class ObjectEntry
+
+  private final ConcurrentHashMap<ObjectKey, ObjectEntry> entries = new ConcurrentHashMap<>();
+
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+  private volatile int maxObjects;
+
+  AttributeCache(int maxObjects) {
+    setMaxObjects(maxObjects);
+  }
+
+  int getMaxObjects() {
+    return maxObjects;
+  }
+
+  void setMaxObjects(int maxObjects) {
+    if (maxObjects < 0) {
+      throw new IllegalArgumentException("maxObjects must not be negative: " + maxObjects);
+    }
+
+    this.maxObjects = maxObjects;
+    if (maxObjects == 0) {
+      entries.clear();
+    } else {
+      evictIfNeeded();
+    }
+  }
+
+  /**
+   * Returns whether the attribute cannot change after the object has been created.
+   *
+   * @param type the attribute type.
+   * @return true if the value of the attribute can be cached.
+   */
+  static boolean isCacheable(long type) {
+    for (long t : CACHEABLE_TYPES) {
+      if (t == type) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the cached value. The returned value is shared and must not be modified.
+   *
+   * @param slotId the slot identifier.
+   * @param objectHandle the object handle.
+   * @param type the attribute type.
+   * @return the cached value, or null if not cached.
+   */
+  Object getShared(long slotId, long objectHandle, long type) {
+    if (maxObjects == 0) {
+      return null;
+    }
+
+    ObjectEntry entry = entries.get(new ObjectKey(slotId, objectHandle));
+    if (entry == null) {
+      return null;
+    }
+
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    return entry.get(type);
+  }
+
+  /**
+   * Gets a copy of the cached value.
+   *
+   * @param slotId the slot identifier.
+   * @param objectHandle the object handle.
+   * @param type the attribute type.
+   * @return a copy of the cached value, or null if not cached.
+   */
+  Object get(long slotId, long objectHandle, long type) {
+    return copy(getShared(slotId, objectHandle, type));
+  }
+
+  void put(long slotId, long objectHandle, long type, Object value) {
+    if (maxObjects == 0 || value == null || !isCacheable(type)) {
+      return;
+    }
+
+    ObjectKey key = new ObjectKey(slotId, objectHandle);
+    ObjectEntry entry = entries.get(key);
+    if (entry == null) {
+      ObjectEntry newEntry = new ObjectEntry();
+      entry = entries.putIfAbsent(key, newEntry);
+      if (entry == null) {
+        entry = newEntry;
+        evictIfNeeded();
+      }
+    }
+
+    entry.put(type, copy(value));
+  }
+
+  /**
+   * Removes all cached attributes of the given object.
+   *
+   * @param slotId the slot identifier.
+   * @param objectHandle the object handle.
+   */
+  void invalidate(long slotId, long objectHandle) {
+    entries.remove(new ObjectKey(slotId, objectHandle));
+  }
+
+  /**
+   * Removes all cached attributes of the objects in the given slot.
+   *
+   * @param slotId the slot identifier.
+   */
+  void invalidateSlot(long slotId) {
+    entries.keySet().removeIf(key -> key.slotId == slotId);
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void evictIfNeeded() {
+    if (entries.size() <= maxObjects || !evicting.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      // evict until 90% of the capacity, so that not every put triggers a sweep.
+      int target = maxObjects - maxObjects / 10;
+      while (entries.size() > target) {
+        Iterator<Map.Entry<ObjectKey, ObjectEntry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && entries.size() > target) {
+          ObjectEntry entry = it.next().getValue();
+          if (entry.referenced) {
+            // second chance
+            entry.referenced = false;
+          } else {
+            it.remove();
+          }
+        }
+      }
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  private static Object copy(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else if (value instanceof char[]) {
+      return ((char[]) value).clone();
+    } else if (value instanceof long[]) {
+      return ((long[]) value).clone();
+    } else {
+      return value;
+    }
+  }
+
+}
@@ -0,0 +1,244 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Module-wide memo of how the token handles attributes of objects of a given class and key type.
+ * <ul>
+ *   <li>Attributes which cannot be read together with other attributes, e.g. CKA_VALUE of a
+ *     sensitive private key, make the whole C_GetAttributeValue call fail. Once this has been
+ *     learned, they are read separately from the beginning.</li>
+ *   <li>Attributes which are not supported (CKR_ATTRIBUTE_TYPE_INVALID), or which are sensitive
+ *     (CKR_ATTRIBUTE_SENSITIVE), are not read at all once this has been learned.</li>
+ * </ul>
+ * Whether an attribute is supported may differ between objects of the same class and key type,
+ * e.g. between certificate types, or for vendor attributes set only on some objects, and whether
+ * an attribute is sensitive depends on the CKA_SENSITIVE and CKA_EXTRACTABLE of the individual
+ * key. Since a learned state hides the attribute of all objects of the class and key type, both
+ * are only learned at runtime if this is enabled via {@link #setLearnUnsupported(boolean)} and
+ * {@link #setLearnSensitive(boolean)}. Both can also be loaded from a file with lines of the
+ * form
+ * <pre>
+ *   # object class / key type / attribute type = unsupported | sensitive
+ *   CKO_PRIVATE_KEY/CKK_EC/CKA_VALUE = sensitive
+ *   CKO_CERTIFICATE/-/CKA_KEY_TYPE = unsupported
+ * </pre>
+ * where "-" stands for objects without key type, and unknown codes are written in hexadecimal
+ * form, e.g. 0x80000001.
+ *
+ * @author Lijun Liao (xipki)
+ */
+class AttributeMemo {
+
+  static final int UNKNOWN = 0;
+
+  static final int UNSUPPORTED = 1;
+
+  static final int SENSITIVE = 2;
+
+  /**
+   * The key type used for objects which are not keys.
+   */
+  static final long NO_KEY_TYPE = -1L;
+
+  private static final class Key {
+
+    private final long objectClass;
+
+    private final long keyType;
+
+    private final long type;
+
+    Key(long objectClass, long keyType, long type) {
+      this.objectClass = objectClass;
+      this.keyType = keyType;
+      this.type = type;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * Long.hashCode(objectClass) + Long.hashCode(keyType)) + Long.hashCode(type);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      } else if (!(obj instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) obj;
+      return objectClass == other.objectClass && keyType == other.keyType && type == other.type;
+    }
+
+  } // class Key
+
+  private final Set<Key> bulkFailures = ConcurrentHashMap.newKeySet();
+
+  private final Map<Key, Integer> states = new ConcurrentHashMap<>();
+
+  private volatile boolean learnUnsupported;
+
+  private volatile boolean learnSensitive;
+
+  /**
+   * Returns the key type to use for the given object class.
+   *
+   * @param objectClass the object class (CKA_CLASS).
+   * @param keyType the key type (CKA_KEY_TYPE), may be null.
+   * @return the key type, {@link #NO_KEY_TYPE} if the object is not a key, or null if the object
+   *         is a key but the key type is unknown.
+   */
+  static Long toMemoKeyType(long objectClass, Long keyType) {
+    boolean isKey = objectClass == CKO_PRIVATE_KEY || objectClass == CKO_PUBLIC_KEY
+        || objectClass == CKO_SECRET_KEY;
+    return isKey ? keyType : Long.valueOf(NO_KEY_TYPE);
+  }
+
+  void setLearnUnsupported(boolean learnUnsupported) {
+    this.learnUnsupported = learnUnsupported;
+  }
+
+  void setLearnSensitive(boolean learnSensitive) {
+    this.learnSensitive = learnSensitive;
+  }
+
+  /**
+   * Records that reading the attribute together with other attributes failed.
+   *
+   * @param objectClass the object class (CKA_CLASS).
+   * @param type the attribute type.
+   */
+  void recordBulkFailure(long objectClass, long type) {
+    bulkFailures.add(new Key(objectClass, NO_KEY_TYPE, type));
+  }
+
+  /**
+   * Returns whether reading the attribute together with other attributes is known to fail.
+   *
+   * @param objectClass the object class (CKA_CLASS).
+   * @param type the attribute type.
+   * @return true if the attribute should be read separately.
+   */
+  boolean isBulkFailure(long objectClass, long type) {
+    return !bulkFailures.isEmpty() && bulkFailures.contains(new Key(objectClass, NO_KEY_TYPE, type));
+  }
+
+  /**
+   * Records the error returned when reading only the given attribute.
+   *
+   * @param objectClass the object class (CKA_CLASS).
+   * @param keyType the key type as returned by {@link #toMemoKeyType(long, Long)}.
+   * @param type the attribute type.
+   * @param errorCode the error code.
+   */
+  void recordError(long objectClass, long keyType, long type, long errorCode) {
+    if (errorCode == CKR_ATTRIBUTE_TYPE_INVALID && learnUnsupported) {
+      states.put(new Key(objectClass, keyType, type), UNSUPPORTED);
+    } else if (errorCode == CKR_ATTRIBUTE_SENSITIVE && learnSensitive) {
+      states.put(new Key(objectClass, keyType, type), SENSITIVE);
+    }
+  }
+
+  /**
+   * Gets the known state of the given attribute.
+   *
+   * @param objectClass the object class (CKA_CLASS).
+   * @param keyType the key type as returned by {@link #toMemoKeyType(long, Long)}.
+   * @param type the attribute type.
+   * @return {@link #UNSUPPORTED}, {@link #SENSITIVE} or {@link #UNKNOWN}.
+   */
+  int getState(long objectClass, long keyType, long type) {
+    if (states.isEmpty()) {
+      return UNKNOWN;
+    }
+
+    Integer state = states.get(new Key(objectClass, keyType, type));
+    return state == null ? UNKNOWN : state;
+  }
+
+  void load(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    Map<Key, Integer> loaded = new HashMap<>();
+
+    String line;
+    int lineNo = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNo++;
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+
+      int eqIdx = line.indexOf('=');
+      String[] tokens = (eqIdx == -1) ? null : line.substring(0, eqIdx).split("/");
+      if (tokens == null || tokens.length != 3) {
+        throw new IOException("invalid line " + lineNo + ": " + line);
+      }
+
+      String stateText = line.substring(eqIdx + 1).trim();
+      int state;
+      if ("unsupported".equalsIgnoreCase(stateText)) {
+        state = UNSUPPORTED;
+      } else if ("sensitive".equalsIgnoreCase(stateText)) {
+        state = SENSITIVE;
+      } else {
+        throw new IOException("invalid state in line " + lineNo + ": " + stateText);
+      }
+
+      long objectClass = parseCode(Category.CKO, tokens[0].trim(), lineNo);
+      String keyTypeText = tokens[1].trim();
+      long keyType = "-".equals(keyTypeText) ? NO_KEY_TYPE : parseCode(Category.CKK, keyTypeText, lineNo);
+      long type = parseCode(Category.CKA, tokens[2].trim(), lineNo);
+      loaded.put(new Key(objectClass, keyType, type), state);
+    }
+
+    states.putAll(loaded);
+  }
+
+  void save(OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    writer.write("# object class / key type / attribute type = unsupported | sensitive\n");
+    for (Map.Entry<Key, Integer> entry : states.entrySet()) {
+      Key key = entry.getKey();
+      writer.write(toText(Category.CKO, key.objectClass));
+      writer.write('/');
+      writer.write(key.keyType == NO_KEY_TYPE ? "-" : toText(Category.CKK, key.keyType));
+      writer.write('/');
+      writer.write(toText(Category.CKA, key.type));
+      writer.write(entry.getValue() == SENSITIVE ? " = sensitive\n" : " = unsupported\n");
+    }
+    writer.flush();
+  }
+
+  private static long parseCode(Category category, String text, int lineNo) throws IOException {
+    try {
+      if (text.startsWith("0x") || text.startsWith("0X")) {
+        return Long.parseUnsignedLong(text.substring(2), 16);
+      }
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid code in line " + lineNo + ": " + text);
+    }
+
+    Long code = nameToCode(category, text);
+    if (code == null) {
+      throw new IOException("unknown name in line " + lineNo + ": " + text);
+    }
+    return code;
+  }
+
+  private static String toText(Category category, long code) {
+    String name = codeToName(category, code);
+    return name.startsWith("Unknown ") ? "0x" + Long.toHexString(code) : name;
+  }
+
+}
@@ -11,12 +11,32 @@ import java.util.*;
 
 /**
  * Object of this class represents the attribute vector.
+ * <p>
+ * The attributes are kept in insertion order in an array, and indexed by their type in a small
+ * open-addressing table, so that {@link #attr(Attribute)} and {@link #getAttribute(long)} need
+ * constant time. The CK_ATTRIBUTE[] returned by {@link #toCkAttributes()} is cached and only
+ * rebuilt if the vector has changed.
  *
  * @author Lijun Liao (xipki)
  */
 public class AttributeVector {
 
-  private final List<Attribute> attributes = new LinkedList<>();
+  private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+
+  private static final CK_ATTRIBUTE[] NO_CK_ATTRIBUTES = new CK_ATTRIBUTE[0];
+
+  private Attribute[] attributes = NO_ATTRIBUTES;
+
+  private int size;
+
+  /**
+   * Open-addressing table from the attribute type to (index in attributes + 1), 0 for empty slots.
+   */
+  private long[] indexTypes;
+
+  private int[] indexPositions;
+
+  private CK_ATTRIBUTE[] ckAttributes;
 
   public AttributeVector() {
   }
@@ -95,47 +115,135 @@ public class AttributeVector {
     return attr(Attribute.getInstance(attrType, attrValue));
   }
 
+  /**
+   * Adds the attribute. An attribute of the same type is replaced, keeping its position.
+   *
+   * @param attr The attribute to add.
+   * @return this vector.
+   */
   public AttributeVector attr(Attribute attr) {
-    if (!attributes.isEmpty()) {
-      long type = attr.getType();
-      int oldAttrIdx = -1;
-      for (int i = 0; i < attributes.size(); i++) {
-        if (attributes.get(i).getType() == type) {
-          oldAttrIdx = i;
-          break;
-        }
-      }
+    Functions.requireNonNull("attr", attr);
+    ckAttributes = null;
+
+    long type = attr.getType();
+    int slot = findSlot(type);
+    if (slot != -1 && indexPositions[slot] != 0) {
+      attributes[indexPositions[slot] - 1] = attr;
+      return this;
+    }
 
-      if (oldAttrIdx != -1) {
-        attributes.remove(oldAttrIdx);
-      }
+    if (size == attributes.length) {
+      attributes = Arrays.copyOf(attributes, Math.max(8, size * 2));
     }
 
-    attributes.add(attr);
+    attributes[size++] = attr;
+    if (indexTypes == null || size * 2 > indexTypes.length) {
+      rebuildIndex();
+    } else {
+      indexTypes[slot] = type;
+      indexPositions[slot] = size;
+    }
     return this;
   }
 
   public List<Attribute> snapshot() {
-    return Collections.unmodifiableList(attributes);
+    return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(attributes, size)));
   }
 
+  /**
+   * Returns the CK_ATTRIBUTE of all present attributes, in insertion order. The array is cached and
+   * returned again as long as no attribute has been added, replaced or changed its presence, so
+   * neither the array nor its elements may be modified by the caller.
+   *
+   * @return the CK_ATTRIBUTE of all present attributes.
+   */
   public CK_ATTRIBUTE[] toCkAttributes() {
-    List<CK_ATTRIBUTE> attributeList = new ArrayList<>();
-    for (Attribute attribute : attributes) {
+    CK_ATTRIBUTE[] cached = ckAttributes;
+    if (cached != null && isUpToDate(cached)) {
+      return cached;
+    }
+
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      if (attributes[i].isPresent()) {
+        n++;
+      }
+    }
+
+    CK_ATTRIBUTE[] ret = (n == 0) ? NO_CK_ATTRIBUTES : new CK_ATTRIBUTE[n];
+    for (int i = 0, j = 0; i < size; i++) {
+      Attribute attribute = attributes[i];
       if (attribute.isPresent()) {
-        attributeList.add(attribute.getCkAttribute());
+        ret[j++] = attribute.getCkAttribute();
       }
     }
-    return attributeList.toArray(new CK_ATTRIBUTE[0]);
+
+    ckAttributes = ret;
+    return ret;
   }
 
   public Attribute getAttribute(long type) {
-    for (Attribute attr : attributes) {
-      if (attr.getType() == type) {
-        return attr;
+    if (size == 0) {
+      return null;
+    }
+
+    int slot = findSlot(type);
+    return (slot == -1 || indexPositions[slot] == 0) ? null : attributes[indexPositions[slot] - 1];
+  }
+
+  /**
+   * Returns the number of attributes.
+   *
+   * @return the number of attributes.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Checks, without allocation, whether the cached CK_ATTRIBUTE[] still reflects the attributes,
+   * whose presence and CK_ATTRIBUTE may have been changed via the Attribute objects.
+   */
+  private boolean isUpToDate(CK_ATTRIBUTE[] cached) {
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      Attribute attribute = attributes[i];
+      if (attribute.isPresent()) {
+        if (j == cached.length || cached[j++] != attribute.getCkAttribute()) {
+          return false;
+        }
       }
     }
-    return null;
+    return j == cached.length;
+  }
+
+  /**
+   * Returns the slot of the given type in the index table, or of the empty slot where it would be
+   * inserted. Returns -1 if the table has not been created yet.
+   */
+  private int findSlot(long type) {
+    if (indexTypes == null) {
+      return -1;
+    }
+
+    int mask = indexTypes.length - 1;
+    long h = type * 0x9E3779B97F4A7C15L;
+    for (int slot = (int) (h ^ (h >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+      if (indexPositions[slot] == 0 || indexTypes[slot] == type) {
+        return slot;
+      }
+    }
+  }
+
+  private void rebuildIndex() {
+    int capacity = Integer.highestOneBit(Math.max(8, size * 4) - 1) << 1;
+    indexTypes = new long[capacity];
+    indexPositions = new int[capacity];
+    for (int i = 0; i < size; i++) {
+      int slot = findSlot(attributes[i].getType());
+      indexTypes[slot] = attributes[i].getType();
+      indexPositions[slot] = i + 1;
+    }
   }
 
   public Boolean getBooleanAttrValue(long type) {
@@ -173,7 +281,8 @@ public class AttributeVector {
     sb.append(indent).append("Attribute Vector:");
 
     String indent2 = indent + "  ";
-    for (Attribute attribute : attributes) {
+    for (int i = 0; i < size; i++) {
+      Attribute attribute = attributes[i];
       if (sb.length() > 0) {
         sb.append("\n");
       }
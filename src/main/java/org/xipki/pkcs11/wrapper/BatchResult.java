@@ -0,0 +1,77 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+/**
+ * Results of a batch of operations, e.g. {@link Session#signBatch(Mechanism, long, java.util.List)}.
+ * Each item has either a value or the exception with which its operation failed; a failed item
+ * does not abort the batch.
+ *
+ * @param <T> the type of the values.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public final class BatchResult<T> {
+
+  private final Object[] values;
+
+  private final PKCS11Exception[] exceptions;
+
+  private final int failureCount;
+
+  BatchResult(Object[] values, PKCS11Exception[] exceptions) {
+    this.values = values;
+    this.exceptions = exceptions;
+    int count = 0;
+    for (PKCS11Exception exception : exceptions) {
+      if (exception != null) {
+        count++;
+      }
+    }
+    this.failureCount = count;
+  }
+
+  public int size() {
+    return values.length;
+  }
+
+  public int getFailureCount() {
+    return failureCount;
+  }
+
+  public boolean isSuccessful(int index) {
+    return exceptions[index] == null;
+  }
+
+  /**
+   * Returns the value of the given item.
+   *
+   * @param index The index of the item.
+   * @return the value of the item.
+   * @throws PKCS11Exception If the operation of the item failed.
+   */
+  @SuppressWarnings("unchecked")
+  public T get(int index) throws PKCS11Exception {
+    if (exceptions[index] != null) {
+      throw exceptions[index];
+    }
+    return (T) values[index];
+  }
+
+  /**
+   * Returns the exception of the given item.
+   *
+   * @param index The index of the item.
+   * @return the exception with which the operation of the item failed, or null if it succeeded.
+   */
+  public PKCS11Exception getException(int index) {
+    return exceptions[index];
+  }
+
+  @Override
+  public String toString() {
+    return "BatchResult: " + size() + " items, " + failureCount + " failures";
+  }
+
+}
@@ -0,0 +1,156 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import iaik.pkcs.pkcs11.wrapper.CK_DATE;
+import org.xipki.pkcs11.wrapper.attrs.*;
+
+/**
+ * Frozen template in the native form expected by a given {@link PKCS11Module}. The
+ * CK_ATTRIBUTE[] is built once, including the translation of vendor key types, and deep-copied,
+ * so that later changes of the source template have no effect. Since it is an
+ * {@link AttributeVector}, a compiled template can be passed to all methods of {@link Session}
+ * which accept a template, e.g. createObject, findObjectsInit, generateKey, generateKeyPair,
+ * unwrapKey and deriveKey, by all sessions of the module concurrently:
+ * <pre><code>
+ *   CompiledTemplate template = CompiledTemplate.compile(session.getModule(),
+ *       new AttributeVector().class_(CKO_PRIVATE_KEY).label("my-signing-key"));
+ *   ...
+ *   long[] handles = session.findAllObjects(template);
+ * </code></pre>
+ * Adding attributes to a compiled template throws {@link UnsupportedOperationException}, and the
+ * attributes returned by {@link #getAttribute(long)} and {@link #snapshot()} must not be modified.
+ * If the template is used with a session of another module, the native form is built again for
+ * every call.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public final class CompiledTemplate extends AttributeVector {
+
+  private final PKCS11Module module;
+
+  private final CK_ATTRIBUTE[] outCkAttributes;
+
+  private final boolean frozen;
+
+  private CompiledTemplate(PKCS11Module module, AttributeVector template) {
+    this.module = Functions.requireNonNull("module", module);
+    Functions.requireNonNull("template", template);
+
+    for (Attribute attr : template.snapshot()) {
+      super.attr(copy(attr));
+    }
+
+    CK_ATTRIBUTE[] src = Session.toOutCKAttributes(module, template);
+    this.outCkAttributes = new CK_ATTRIBUTE[src.length];
+    for (int i = 0; i < src.length; i++) {
+      this.outCkAttributes[i] = copy(src[i]);
+    }
+
+    this.frozen = true;
+  }
+
+  /**
+   * Compiles the template for the given module.
+   *
+   * @param module   The module, usually {@link Session#getModule()}.
+   * @param template The template. Its later changes have no effect on the compiled template.
+   * @return the compiled template.
+   */
+  public static CompiledTemplate compile(PKCS11Module module, AttributeVector template) {
+    if (template instanceof CompiledTemplate && ((CompiledTemplate) template).module == module) {
+      return (CompiledTemplate) template;
+    }
+    return new CompiledTemplate(module, template);
+  }
+
+  /**
+   * Compiles the public and private key templates for the given module.
+   *
+   * @param module   The module, usually {@link Session#getModule()}.
+   * @param template The key pair template. Its later changes have no effect on the compiled
+   *                 templates.
+   * @return the key pair template consisting of the compiled templates.
+   */
+  public static KeyPairTemplate compile(PKCS11Module module, KeyPairTemplate template) {
+    Functions.requireNonNull("template", template);
+    return new KeyPairTemplate(compile(module, template.privateKey()), compile(module, template.publicKey()));
+  }
+
+  @Override
+  public AttributeVector attr(Attribute attr) {
+    if (frozen) {
+      throw new UnsupportedOperationException("CompiledTemplate is immutable");
+    }
+    return super.attr(attr);
+  }
+
+  PKCS11Module getModule() {
+    return module;
+  }
+
+  /**
+   * Returns the CK_ATTRIBUTE[] with translated key type, shared by all users of this template. It
+   * must not be modified.
+   */
+  CK_ATTRIBUTE[] getOutCkAttributes() {
+    return outCkAttributes;
+  }
+
+  private static Attribute copy(Attribute attr) {
+    long type = attr.getType();
+    Attribute ret;
+    try {
+      ret = Attribute.getInstance(type);
+    } catch (IllegalArgumentException e) {
+      // attribute type unknown to this wrapper, e.g. a vendor attribute: use the same kind of holder.
+      ret = (attr instanceof BooleanAttribute) ? new BooleanAttribute(type)
+          : (attr instanceof MechanismAttribute) ? new MechanismAttribute(type)
+          : (attr instanceof LongAttribute) ? new LongAttribute(type)
+          : (attr instanceof CharArrayAttribute) ? new CharArrayAttribute(type)
+          : (attr instanceof DateAttribute) ? new DateAttribute(type)
+          : (attr instanceof MechanismArrayAttribute) ? new MechanismArrayAttribute(type)
+          : (attr instanceof AttributeArrayAttribute) ? new AttributeArrayAttribute(type)
+          : new ByteArrayAttribute(type);
+    }
+
+    return ret.ckAttribute(copy(attr.getCkAttribute())).present(attr.isPresent()).sensitive(attr.isSensitive());
+  }
+
+  private static CK_ATTRIBUTE copy(CK_ATTRIBUTE src) {
+    CK_ATTRIBUTE ret = new CK_ATTRIBUTE();
+    ret.type = src.type;
+    ret.pValue = copyValue(src.pValue);
+    return ret;
+  }
+
+  private static Object copyValue(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else if (value instanceof char[]) {
+      return ((char[]) value).clone();
+    } else if (value instanceof long[]) {
+      return ((long[]) value).clone();
+    } else if (value instanceof CK_DATE) {
+      CK_DATE src = (CK_DATE) value;
+      CK_DATE ret = new CK_DATE();
+      ret.year = src.year == null ? null : src.year.clone();
+      ret.month = src.month == null ? null : src.month.clone();
+      ret.day = src.day == null ? null : src.day.clone();
+      return ret;
+    } else if (value instanceof CK_ATTRIBUTE[]) {
+      CK_ATTRIBUTE[] src = (CK_ATTRIBUTE[]) value;
+      CK_ATTRIBUTE[] ret = new CK_ATTRIBUTE[src.length];
+      for (int i = 0; i < src.length; i++) {
+        ret[i] = copy(src[i]);
+      }
+      return ret;
+    } else {
+      // Boolean, Long and null are immutable
+      return value;
+    }
+  }
+
+}
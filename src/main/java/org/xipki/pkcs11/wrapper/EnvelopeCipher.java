@@ -0,0 +1,423 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Envelope encryption: the payloads are encrypted in software with AES-GCM under data keys, and
+ * only the data keys are protected by a key-encryption key (KEK) on the token. The token is
+ * involved once per data key, not once per payload.
+ * <pre><code>
+ *   EnvelopeCipher cipher = new EnvelopeCipher(pool, kekHandle);
+ *   byte[] envelope = cipher.encrypt(associatedData, payload);
+ *   byte[] payload = cipher.decrypt(associatedData, envelope);
+ * </code></pre>
+ * A data key is generated on the token as extractable, non-sensitive session object, wrapped with
+ * the KEK, and its value is read; then the object is destroyed. It is used for at most
+ * {@link #setMaxMessagesPerDataKey(long)} payloads and {@link #setDataKeyLifetime(long)}
+ * milliseconds, then a new data key is generated. The KEK must be allowed to wrap and unwrap, and
+ * the token must allow reading the value of the data keys.
+ * <p>
+ * The envelope has the form len(wrapped key) (2 bytes) || wrapped key || IV (12 bytes) ||
+ * ciphertext || tag (16 bytes). To decrypt it, the wrapped key is unwrapped on the token, unless
+ * it is found in the cache of unwrapped data keys. The cache is bounded by
+ * {@link #setMaxCachedKeys(int)}, evicting the least recently used key, and a key is removed
+ * {@link #setCacheTimeout(long)} milliseconds after it has been unwrapped.
+ * <p>
+ * The plain data keys are kept in the Java heap while they are cached or in use. This class is
+ * thread-safe.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class EnvelopeCipher {
+
+  public static final int DEFAULT_DATA_KEY_LENGTH = 32;
+
+  public static final long DEFAULT_MAX_MESSAGES_PER_DATA_KEY = 1L << 24;
+
+  /**
+   * Default lifetime of a data key in milliseconds.
+   */
+  public static final long DEFAULT_DATA_KEY_LIFETIME = 3600000L;
+
+  public static final int DEFAULT_MAX_CACHED_KEYS = 1024;
+
+  /**
+   * Default timeout of cached data keys in milliseconds.
+   */
+  public static final long DEFAULT_CACHE_TIMEOUT = 300000L;
+
+  private static final int IV_LENGTH = 12;
+
+  private static final int TAG_LENGTH = 16;
+
+  private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+  private static final class WrappedKey {
+
+    private final byte[] encoded;
+
+    private final int hashCode;
+
+    WrappedKey(byte[] encoded) {
+      this.encoded = encoded;
+      this.hashCode = Arrays.hashCode(encoded);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return this == obj || (obj instanceof WrappedKey && Arrays.equals(encoded, ((WrappedKey) obj).encoded));
+    }
+
+  } // class WrappedKey
+
+  private static final class DataKey {
+
+    private final SecretKeySpec key;
+
+    private final byte[] wrapped;
+
+    private final long createdNanos;
+
+    private final AtomicLong uses = new AtomicLong();
+
+    DataKey(byte[] value, byte[] wrapped) {
+      this.key = new SecretKeySpec(value, "AES");
+      Arrays.fill(value, (byte) 0);
+      this.wrapped = wrapped;
+      this.createdNanos = System.nanoTime();
+    }
+
+    boolean isExpired(long now, long lifetimeNanos) {
+      return now - createdNanos > lifetimeNanos;
+    }
+
+  } // class DataKey
+
+  private final SessionPool pool;
+
+  private final long kekHandle;
+
+  private final Mechanism wrapMechanism;
+
+  private final int dataKeyLength;
+
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Unwrapped data keys, in the order of their last use.
+   */
+  private final LinkedHashMap<WrappedKey, DataKey> cache = new LinkedHashMap<WrappedKey, DataKey>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<WrappedKey, DataKey> eldest) {
+      return size() > maxCachedKeys;
+    }
+  };
+
+  private volatile DataKey currentKey;
+
+  private volatile long maxMessagesPerDataKey = DEFAULT_MAX_MESSAGES_PER_DATA_KEY;
+
+  private volatile long dataKeyLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DATA_KEY_LIFETIME);
+
+  private volatile int maxCachedKeys = DEFAULT_MAX_CACHED_KEYS;
+
+  private volatile long cacheTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CACHE_TIMEOUT);
+
+  /**
+   * Constructor with the wrapping mechanism CKM_AES_KEY_WRAP and 256-bit data keys.
+   *
+   * @param pool      The pool providing the sessions.
+   * @param kekHandle The AES key-encryption key.
+   */
+  public EnvelopeCipher(SessionPool pool, long kekHandle) {
+    this(pool, kekHandle, new Mechanism(CKM_AES_KEY_WRAP), DEFAULT_DATA_KEY_LENGTH);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool          The pool providing the sessions.
+   * @param kekHandle     The key-encryption key.
+   * @param wrapMechanism The mechanism to wrap and unwrap the data keys.
+   * @param dataKeyLength The length of the AES data keys in bytes: 16, 24 or 32.
+   */
+  public EnvelopeCipher(SessionPool pool, long kekHandle, Mechanism wrapMechanism, int dataKeyLength) {
+    this.pool = Functions.requireNonNull("pool", pool);
+    this.kekHandle = kekHandle;
+    this.wrapMechanism = Functions.requireNonNull("wrapMechanism", wrapMechanism);
+    this.dataKeyLength = Functions.requireAmong("dataKeyLength", dataKeyLength, 16, 24, 32);
+  }
+
+  public long getMaxMessagesPerDataKey() {
+    return maxMessagesPerDataKey;
+  }
+
+  public void setMaxMessagesPerDataKey(long maxMessagesPerDataKey) {
+    if (maxMessagesPerDataKey < 1 || maxMessagesPerDataKey > 1L << 32) {
+      // at most 2^32 random IVs per key, see NIST SP 800-38D.
+      throw new IllegalArgumentException("maxMessagesPerDataKey may not be out of the range [1, 2^32]: "
+          + maxMessagesPerDataKey);
+    }
+    this.maxMessagesPerDataKey = maxMessagesPerDataKey;
+  }
+
+  public long getDataKeyLifetime() {
+    return TimeUnit.NANOSECONDS.toMillis(dataKeyLifetimeNanos);
+  }
+
+  /**
+   * Sets the time after which a new data key is generated for encryption.
+   *
+   * @param dataKeyLifetime the lifetime in milliseconds.
+   */
+  public void setDataKeyLifetime(long dataKeyLifetime) {
+    if (dataKeyLifetime < 1) {
+      throw new IllegalArgumentException("dataKeyLifetime must be positive: " + dataKeyLifetime);
+    }
+    this.dataKeyLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(dataKeyLifetime);
+  }
+
+  public int getMaxCachedKeys() {
+    return maxCachedKeys;
+  }
+
+  /**
+   * Sets the maximal number of cached unwrapped data keys. 0 disables the cache.
+   *
+   * @param maxCachedKeys the maximal number of cached keys.
+   */
+  public void setMaxCachedKeys(int maxCachedKeys) {
+    this.maxCachedKeys = Functions.requireRange("maxCachedKeys", maxCachedKeys, 0, Integer.MAX_VALUE);
+    synchronized (cache) {
+      while (cache.size() > maxCachedKeys) {
+        cache.remove(cache.keySet().iterator().next());
+      }
+    }
+  }
+
+  public long getCacheTimeout() {
+    return TimeUnit.NANOSECONDS.toMillis(cacheTimeoutNanos);
+  }
+
+  /**
+   * Sets the time after which an unwrapped data key is removed from the cache.
+   *
+   * @param cacheTimeout the timeout in milliseconds.
+   */
+  public void setCacheTimeout(long cacheTimeout) {
+    if (cacheTimeout < 1) {
+      throw new IllegalArgumentException("cacheTimeout must be positive: " + cacheTimeout);
+    }
+    this.cacheTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(cacheTimeout);
+  }
+
+  /**
+   * Returns the number of cached unwrapped data keys.
+   *
+   * @return the number of cached keys.
+   */
+  public int getCachedKeyCount() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /**
+   * Removes all unwrapped data keys from the cache, and forces a new data key for the next
+   * encryption.
+   */
+  public void clearCache() {
+    currentKey = null;
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  /**
+   * Encrypts the payload.
+   *
+   * @param associatedData The associated data, may be null.
+   * @param payload        The payload.
+   * @return the envelope.
+   * @throws PKCS11Exception If generating or wrapping a new data key failed.
+   * @throws GeneralSecurityException If encrypting the payload failed.
+   */
+  public byte[] encrypt(byte[] associatedData, byte[] payload) throws PKCS11Exception, GeneralSecurityException {
+    Functions.requireNonNull("payload", payload);
+    DataKey dataKey = currentDataKey();
+
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+    cipher.init(Cipher.ENCRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+    if (associatedData != null) {
+      cipher.updateAAD(associatedData);
+    }
+
+    byte[] wrapped = dataKey.wrapped;
+    int ofs = 2 + wrapped.length;
+    byte[] envelope = new byte[ofs + IV_LENGTH + cipher.getOutputSize(payload.length)];
+    envelope[0] = (byte) (wrapped.length >> 8);
+    envelope[1] = (byte) wrapped.length;
+    System.arraycopy(wrapped, 0, envelope, 2, wrapped.length);
+    System.arraycopy(iv, 0, envelope, ofs, IV_LENGTH);
+    int len = cipher.doFinal(payload, 0, payload.length, envelope, ofs + IV_LENGTH);
+    return (ofs + IV_LENGTH + len == envelope.length) ? envelope : Arrays.copyOf(envelope, ofs + IV_LENGTH + len);
+  }
+
+  /**
+   * Decrypts the envelope.
+   *
+   * @param associatedData The associated data, may be null.
+   * @param envelope       The envelope, as returned by {@link #encrypt(byte[], byte[])}.
+   * @return the payload.
+   * @throws PKCS11Exception If unwrapping the data key failed.
+   * @throws GeneralSecurityException If the envelope is malformed or not authentic.
+   */
+  public byte[] decrypt(byte[] associatedData, byte[] envelope) throws PKCS11Exception, GeneralSecurityException {
+    Functions.requireNonNull("envelope", envelope);
+    if (envelope.length < 2) {
+      throw new GeneralSecurityException("envelope too short");
+    }
+
+    int wrappedLen = (envelope[0] & 0xFF) << 8 | (envelope[1] & 0xFF);
+    int ofs = 2 + wrappedLen;
+    if (envelope.length < ofs + IV_LENGTH + TAG_LENGTH) {
+      throw new GeneralSecurityException("envelope too short");
+    }
+
+    DataKey dataKey = dataKey(Arrays.copyOfRange(envelope, 2, ofs));
+    Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+    cipher.init(Cipher.DECRYPT_MODE, dataKey.key, new GCMParameterSpec(TAG_LENGTH * 8, envelope, ofs, IV_LENGTH));
+    if (associatedData != null) {
+      cipher.updateAAD(associatedData);
+    }
+    return cipher.doFinal(envelope, ofs + IV_LENGTH, envelope.length - ofs - IV_LENGTH);
+  }
+
+  @Override
+  public String toString() {
+    return "EnvelopeCipher: KEK " + kekHandle + ", " + getCachedKeyCount() + " cached data keys";
+  }
+
+  /**
+   * Returns the data key for the next encryption, generating a new one if the current key has
+   * been used too often or for too long.
+   */
+  private DataKey currentDataKey() throws PKCS11Exception {
+    DataKey dataKey = currentKey;
+    if (isUsable(dataKey)) {
+      return dataKey;
+    }
+
+    synchronized (this) {
+      dataKey = currentKey;
+      if (isUsable(dataKey)) {
+        return dataKey;
+      }
+
+      dataKey = generateDataKey();
+      dataKey.uses.incrementAndGet();
+      currentKey = dataKey;
+    }
+
+    // the own envelopes can be decrypted without unwrapping.
+    cachePut(new WrappedKey(dataKey.wrapped), dataKey);
+    return dataKey;
+  }
+
+  private boolean isUsable(DataKey dataKey) {
+    return dataKey != null && !dataKey.isExpired(System.nanoTime(), dataKeyLifetimeNanos)
+        && dataKey.uses.incrementAndGet() <= maxMessagesPerDataKey;
+  }
+
+  /**
+   * Returns the data key of the wrapped key, from the cache or unwrapped on the token. Concurrent
+   * requests of the same uncached key may unwrap it more than once.
+   */
+  private DataKey dataKey(byte[] wrapped) throws PKCS11Exception {
+    WrappedKey cacheKey = new WrappedKey(wrapped);
+    synchronized (cache) {
+      DataKey dataKey = cache.get(cacheKey);
+      if (dataKey != null) {
+        if (!dataKey.isExpired(System.nanoTime(), cacheTimeoutNanos)) {
+          return dataKey;
+        }
+        cache.remove(cacheKey);
+      }
+    }
+
+    DataKey dataKey = unwrapDataKey(wrapped);
+    cachePut(cacheKey, dataKey);
+    return dataKey;
+  }
+
+  private void cachePut(WrappedKey cacheKey, DataKey dataKey) {
+    if (maxCachedKeys > 0) {
+      synchronized (cache) {
+        cache.put(cacheKey, dataKey);
+      }
+    }
+  }
+
+  private DataKey generateDataKey() throws PKCS11Exception {
+    AttributeVector template = dataKeyTemplate().valueLen(dataKeyLength);
+    Session session = pool.borrowSession(false);
+    try {
+      long handle = session.generateKey(new Mechanism(CKM_AES_KEY_GEN), template);
+      try {
+        byte[] wrapped = session.wrapKey(wrapMechanism, kekHandle, handle);
+        if (wrapped.length > 0xFFFF) {
+          throw new PKCS11Exception(CKR_KEY_SIZE_RANGE);
+        }
+        return new DataKey(session.getByteArrayAttrValue(handle, CKA_VALUE), wrapped);
+      } finally {
+        session.destroyObject(handle);
+      }
+    } finally {
+      pool.returnSession(session);
+    }
+  }
+
+  private DataKey unwrapDataKey(byte[] wrapped) throws PKCS11Exception {
+    Session session = pool.borrowSession(false);
+    try {
+      long handle = session.unwrapKey(wrapMechanism, kekHandle, wrapped, dataKeyTemplate());
+      try {
+        byte[] value = session.getByteArrayAttrValue(handle, CKA_VALUE);
+        if (value == null || value.length != dataKeyLength) {
+          throw new PKCS11Exception(CKR_WRAPPED_KEY_INVALID);
+        }
+        return new DataKey(value, wrapped);
+      } finally {
+        session.destroyObject(handle);
+      }
+    } finally {
+      pool.returnSession(session);
+    }
+  }
+
+  private static AttributeVector dataKeyTemplate() {
+    return AttributeVector.newSecretKey(CKK_AES).token(false).sensitive(false).extractable(true);
+  }
+
+}
@@ -0,0 +1,83 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+/**
+ * Interfaces of demand-driven (reactive) streams, with the same methods and contracts as
+ * java.util.concurrent.Flow of Java 9 and the Reactive Streams specification. This library still
+ * targets Java 8, so it cannot use java.util.concurrent.Flow directly; adapting between both is a
+ * matter of delegating each method.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public final class Flow {
+
+  private Flow() {
+  }
+
+  /**
+   * Producer of items which are received by {@link Subscriber}s.
+   *
+   * @param <T> the type of the items.
+   */
+  @FunctionalInterface
+  public interface Publisher<T> {
+
+    /**
+     * Adds the given subscriber. The publisher calls {@link Subscriber#onSubscribe(Subscription)}
+     * first, and then publishes at most as many items as requested via the subscription.
+     *
+     * @param subscriber The subscriber.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+
+  }
+
+  /**
+   * Receiver of items.
+   *
+   * @param <T> the type of the items.
+   */
+  public interface Subscriber<T> {
+
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    void onError(Throwable throwable);
+
+    void onComplete();
+
+  }
+
+  /**
+   * Link between a {@link Publisher} and a {@link Subscriber}, via which the subscriber requests
+   * items.
+   */
+  public interface Subscription {
+
+    /**
+     * Adds n items to the demand of the subscriber.
+     *
+     * @param n the number of additional items, must be positive.
+     */
+    void request(long n);
+
+    /**
+     * Stops the publishing of items to the subscriber.
+     */
+    void cancel();
+
+  }
+
+  /**
+   * Component which is both {@link Subscriber} and {@link Publisher}.
+   *
+   * @param <T> the type of the received items.
+   * @param <R> the type of the published items.
+   */
+  public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+  }
+
+}
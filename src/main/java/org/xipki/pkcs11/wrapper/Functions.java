@@ -72,10 +72,101 @@ public class Functions {
   }
 
   private static class ECInfo {
+    byte[] ecParams;
     int fieldSize;
     int orderSize;
     long ecParamsHash;
     String[] names;
+    boolean edwardsOrMontgomery;
+  }
+
+  /**
+   * Registry of the curves defined in EC.properties. It is built once and is read-only afterwards.
+   * The curves are indexed in open-addressing tables by the DER-encoded OID (the usual content of
+   * CKA_EC_PARAMS) and by the SipHash of the explicit ECParameters, so that a lookup neither
+   * encodes the key nor allocates any object.
+   */
+  private static class ECRegistry {
+
+    private final ECInfo[] oidTable;
+
+    private final ECInfo[] hashTable;
+
+    private final int mask;
+
+    private final Map<String, ECInfo> nameMap = new HashMap<>();
+
+    ECRegistry(Collection<ECInfo> infos) {
+      int capacity = Integer.highestOneBit(Math.max(4, infos.size()) * 4);
+      this.mask = capacity - 1;
+      this.oidTable = new ECInfo[capacity];
+      this.hashTable = new ECInfo[capacity];
+
+      for (ECInfo info : infos) {
+        int idx = indexOf(info.ecParams, 0, info.ecParams.length);
+        while (oidTable[idx] != null) {
+          if (Arrays.equals(oidTable[idx].ecParams, info.ecParams)) {
+            throw new IllegalStateException("duplicated definition of " + toHex(info.ecParams));
+          }
+          idx = (idx + 1) & mask;
+        }
+        oidTable[idx] = info;
+
+        if (info.ecParamsHash != 0) {
+          idx = indexOf(info.ecParamsHash);
+          while (hashTable[idx] != null) {
+            idx = (idx + 1) & mask;
+          }
+          hashTable[idx] = info;
+        }
+
+        for (String name : info.names) {
+          nameMap.put(name, info);
+        }
+      }
+    }
+
+    private int indexOf(byte[] bytes, int off, int len) {
+      int h = 1;
+      for (int i = off; i < off + len; i++) {
+        h = 31 * h + bytes[i];
+      }
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int indexOf(long hash) {
+      int h = (int) (hash ^ (hash >>> 32));
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    ECInfo getByEcParams(byte[] ecParams) {
+      int len = ecParams.length;
+      for (int idx = indexOf(ecParams, 0, len); ; idx = (idx + 1) & mask) {
+        ECInfo info = oidTable[idx];
+        if (info == null) {
+          return null;
+        }
+
+        byte[] candidate = info.ecParams;
+        if (candidate.length == len && Arrays.equals(candidate, ecParams)) {
+          return info;
+        }
+      }
+    }
+
+    ECInfo getByHash(long hash) {
+      for (int idx = indexOf(hash); ; idx = (idx + 1) & mask) {
+        ECInfo info = hashTable[idx];
+        if (info == null || info.ecParamsHash == hash) {
+          return info;
+        }
+      }
+    }
+
+    ECInfo getByName(String name) {
+      return nameMap.get(name);
+    }
+
   }
 
   /**
@@ -199,12 +290,10 @@ public class Functions {
 
   }
 
-  private static final Map<String, ECInfo> ecParamsInfoMap;
-
-  private static final Set<String> edwardsMontgomeryEcParams;
+  private static final ECRegistry ecRegistry;
 
   static {
-    edwardsMontgomeryEcParams = new HashSet<>(6);
+    Set<String> edwardsMontgomeryEcParams = new HashSet<>(6);
     // X25519 (1.3.101.110)
     edwardsMontgomeryEcParams.add("06032b656e");
     // X448 (1.3.101.111)
@@ -214,7 +303,7 @@ public class Functions {
     // ED448 (1.3.101.113)
     edwardsMontgomeryEcParams.add("06032b6571");
 
-    ecParamsInfoMap = new HashMap<>(120);
+    List<ECInfo> ecInfos = new ArrayList<>(120);
 
     String propFile = "org/xipki/pkcs11/wrapper/EC.properties";
     Properties props = new Properties();
@@ -223,23 +312,22 @@ public class Functions {
       for (String name : props.stringPropertyNames()) {
         name = name.trim();
 
-        if (ecParamsInfoMap.containsKey(name)) {
-          throw new IllegalStateException("duplicated definition of " + name);
-        }
-
         byte[] ecParams = Hex.decode(name);
 
         ECInfo ecInfo = new ECInfo();
+        ecInfo.ecParams = ecParams;
 
         String[] values = props.getProperty(name).split(",");
         ecInfo.names = values[0].toUpperCase(Locale.ROOT).split(":");
         ecInfo.ecParamsHash = "-".equals(values[1]) ? 0 : SipHash24.littleEndianToLong(Hex.decode(values[1]), 0);
         ecInfo.fieldSize = (Integer.parseInt(values[2]) + 7) / 8;
         ecInfo.orderSize = (values.length > 3) ? (Integer.parseInt(values[3]) + 7) / 8 : ecInfo.fieldSize;
-        String hexEcParams = Hex.encode(ecParams, 0, ecParams.length);
+        ecInfo.edwardsOrMontgomery = edwardsMontgomeryEcParams.contains(Hex.encode(ecParams, 0, ecParams.length));
 
-        ecParamsInfoMap.put(hexEcParams, ecInfo);
+        ecInfos.add(ecInfo);
       }
+
+      ecRegistry = new ECRegistry(ecInfos);
     } catch (Throwable t) {
       throw new IllegalStateException("error reading properties file " + propFile + ": " + t.getMessage());
     }
@@ -379,10 +467,34 @@ public class Functions {
   }
 
   static byte[] fixECDSASignature(byte[] sig, byte[] ecParams) {
-    ECInfo ecInfo = ecParamsInfoMap.get(Hex.encode(ecParams, 0, ecParams.length));
+    ECInfo ecInfo = ecRegistry.getByEcParams(ecParams);
     return (ecInfo == null) ? sig : fixECDSASignature(sig, ecInfo.orderSize);
   }
 
+  /**
+   * Get the size of the curve order in bytes.
+   *
+   * @param ecParams
+   *          The DER-encoded curve OID.
+   * @return the size of the curve order in bytes, or 0 if the curve is unknown.
+   */
+  public static int getECOrderSize(byte[] ecParams) {
+    ECInfo ecInfo = ecRegistry.getByEcParams(ecParams);
+    return ecInfo == null ? 0 : ecInfo.orderSize;
+  }
+
+  /**
+   * Get the size of the curve field in bytes.
+   *
+   * @param ecParams
+   *          The DER-encoded curve OID.
+   * @return the size of the curve field in bytes, or 0 if the curve is unknown.
+   */
+  static int getECFieldSize(byte[] ecParams) {
+    ECInfo ecInfo = ecRegistry.getByEcParams(ecParams);
+    return ecInfo == null ? 0 : ecInfo.fieldSize;
+  }
+
   static byte[] fixECParams(byte[] ecParams) {
     // some HSMs, e.g. SoftHSM may return the ASN.1 string, e.g. edwards25519 for ED25519.
     int tag = 0xFF & ecParams[0];
@@ -390,12 +502,9 @@ public class Functions {
       int len = 0xFF & ecParams[1];
       if (len < 128 && 2 + len == ecParams.length) {
         String curveName = new String(ecParams, 2, len, StandardCharsets.UTF_8).trim().toUpperCase(Locale.ROOT);
-        for (Map.Entry<String, ECInfo> m : ecParamsInfoMap.entrySet()) {
-          for (String name : m.getValue().names) {
-            if (name.equals(curveName)) {
-              return decodeHex(m.getKey());
-            }
-          }
+        ECInfo ecInfo = ecRegistry.getByName(curveName);
+        if (ecInfo != null) {
+          return ecInfo.ecParams.clone();
         }
       }
 
@@ -417,11 +526,9 @@ public class Functions {
 
       SipHash24 hash = new SipHash24();
       hash.update(ecParams, 0, ecParams.length);
-      long hashValue = hash.doFinal();
-      for (Map.Entry<String, ECInfo> m : ecParamsInfoMap.entrySet()) {
-        if (hashValue == m.getValue().ecParamsHash) {
-          return decodeHex(m.getKey());
-        }
+      ECInfo ecInfo = ecRegistry.getByHash(hash.doFinal());
+      if (ecInfo != null) {
+        return ecInfo.ecParams.clone();
       }
     }
 
@@ -454,11 +561,11 @@ public class Functions {
     }
 
     int rLen = 0xFF & b;
-    byte[] r = Arrays.copyOfRange(sig, ofs, ofs + rLen);
+    int rOfs = ofs;
     ofs += rLen;
 
     // second integer, s
-    if (sig[ofs++] != 0x02) {
+    if (ofs + 2 > sig.length || sig[ofs++] != 0x02) {
       return sig;
     }
 
@@ -468,29 +575,31 @@ public class Functions {
     }
 
     int sLen = 0xFF & b;
-    if (ofs + sLen != sig.length) {
+    if (ofs + sLen != sig.length || rLen == 0 || sLen == 0) {
       return sig;
     }
 
-    byte[] s = Arrays.copyOfRange(sig, ofs, sig.length);
+    int sOfs = ofs;
 
     // remove leading zero
-    if (r[0] == 0) {
-      r = Arrays.copyOfRange(r, 1, r.length);
+    if (sig[rOfs] == 0) {
+      rOfs++;
+      rLen--;
     }
 
-    if (s[0] == 0) {
-      s = Arrays.copyOfRange(s, 1, s.length);
+    if (sig[sOfs] == 0) {
+      sOfs++;
+      sLen--;
     }
 
-    if (r.length > rOrSLen || s.length > rOrSLen) {
+    if (rLen > rOrSLen || sLen > rOrSLen) {
       // we can not fix it.
       return sig;
     }
 
     byte[] rs = new byte[2 * rOrSLen];
-    System.arraycopy(r, 0, rs, rOrSLen - r.length, r.length);
-    System.arraycopy(s, 0, rs, rs.length - s.length, s.length);
+    System.arraycopy(sig, rOfs, rs, rOrSLen - rLen, rLen);
+    System.arraycopy(sig, sOfs, rs, rs.length - sLen, sLen);
     return rs;
   }
 
@@ -526,15 +635,14 @@ public class Functions {
       return ecPoint; // too long, should not happen.
     }
 
-    String hexEcParams = Hex.encode(ecParams, 0, ecParams.length);
-    ECInfo ecInfo = ecParamsInfoMap.get(hexEcParams);
+    ECInfo ecInfo = ecRegistry.getByEcParams(ecParams);
 
     if (ecInfo == null) {
       return ecPoint;
     }
 
     int fieldSize = ecInfo.fieldSize;
-    if (edwardsMontgomeryEcParams.contains(hexEcParams)) {
+    if (ecInfo.edwardsOrMontgomery) {
       // edwards or montgomery curve
       return (len == fieldSize) ? toOctetString(ecPoint) : ecPoint;
     }
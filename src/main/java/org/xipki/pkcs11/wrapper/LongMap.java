@@ -0,0 +1,168 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.Arrays;
+
+/**
+ * Hash map with primitive long keys, using open addressing with linear probing. Neither lookups
+ * nor iterating over the keys box the key, so it is suited for the code tables (attribute types,
+ * mechanisms, key types, ...) which are looked up on every call.
+ * <p>
+ * The map is not synchronized. It is intended to be filled once and shared read-only afterwards;
+ * it must then be published safely, e.g. via a final or volatile field. Null values are not
+ * allowed.
+ *
+ * @param <V> the type of the values.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public final class LongMap<V> {
+
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+
+  private Object[] values;
+
+  private int mask;
+
+  private int size;
+
+  public LongMap() {
+    this(16);
+  }
+
+  public LongMap(int expectedSize) {
+    Functions.requireRange("expectedSize", expectedSize, 0, 1 << 29);
+    allocate(tableSize(expectedSize));
+  }
+
+  /**
+   * Gets the value of the given key.
+   *
+   * @param key the key.
+   * @return the value, or null if the map contains no value for the key.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    for (int idx = indexOf(key); ; idx = (idx + 1) & mask) {
+      Object value = values[idx];
+      if (value == null) {
+        return null;
+      } else if (keys[idx] == key) {
+        return (V) value;
+      }
+    }
+  }
+
+  public V getOrDefault(long key, V defaultValue) {
+    V value = get(key);
+    return value == null ? defaultValue : value;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Associates the value with the given key.
+   *
+   * @param key the key.
+   * @param value the value, must not be null.
+   * @return the previous value of the key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    Functions.requireNonNull("value", value);
+    for (int idx = indexOf(key); ; idx = (idx + 1) & mask) {
+      Object old = values[idx];
+      if (old == null) {
+        keys[idx] = key;
+        values[idx] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+          rehash(keys.length << 1);
+        }
+        return null;
+      } else if (keys[idx] == key) {
+        values[idx] = value;
+        return (V) old;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns all keys, in no particular order.
+   *
+   * @return the keys.
+   */
+  public long[] keys() {
+    long[] ret = new long[size];
+    int n = 0;
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null) {
+        ret[n++] = keys[i];
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(size * 16).append('{');
+    long[] ks = keys();
+    Arrays.sort(ks);
+    for (int i = 0; i < ks.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(ks[i]).append('=').append(get(ks[i]));
+    }
+    return sb.append('}').toString();
+  }
+
+  private int indexOf(long key) {
+    // spread the bits, codes often differ only in the high (vendor) bits.
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private static int tableSize(int expectedSize) {
+    int n = Math.max(4, (int) (expectedSize / LOAD_FACTOR) + 1);
+    return Integer.highestOneBit(n - 1) << 1;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+
+    for (int i = 0; i < oldValues.length; i++) {
+      Object value = oldValues[i];
+      if (value != null) {
+        int idx = indexOf(oldKeys[i]);
+        while (values[idx] != null) {
+          idx = (idx + 1) & mask;
+        }
+        keys[idx] = oldKeys[i];
+        values[idx] = value;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Signs, verifies and digests files by mapping them into memory. The file is mapped in windows of
+ * at most {@link #DEFAULT_WINDOW_SIZE} bytes, so files larger than 2 GB are supported, and each
+ * window is fed to the operation in chunks. Since the native layer only accepts byte arrays, every
+ * chunk is copied once from the mapped memory into one reused array, which is passed to the
+ * session without further copies.
+ * <pre><code>
+ *   byte[] signature = MappedFiles.sign(session, mechanism, keyHandle, Paths.get("release.tar"));
+ * </code></pre>
+ *
+ * @author Lijun Liao (xipki)
+ */
+public final class MappedFiles {
+
+  public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+  private static final int MAX_DIGEST_SIZE = 128;
+
+  private interface Updater {
+    void update(byte[] in, int inOfs, int inLen) throws PKCS11Exception;
+  }
+
+  private MappedFiles() {
+  }
+
+  /**
+   * Signs the file.
+   *
+   * @param session   The session.
+   * @param mechanism The signature mechanism, including the hash algorithm.
+   * @param keyHandle The signing key.
+   * @param file      The file to sign.
+   * @return the signature.
+   * @throws PKCS11Exception If signing failed.
+   * @throws IOException If reading the file failed.
+   */
+  public static byte[] sign(Session session, Mechanism mechanism, long keyHandle, Path file)
+      throws PKCS11Exception, IOException {
+    session.signInit(mechanism, keyHandle);
+    try {
+      signUpdate(session, file, DEFAULT_WINDOW_SIZE, DEFAULT_CHUNK_SIZE);
+    } catch (IOException e) {
+      terminate(session::signFinal, e);
+      throw e;
+    }
+    return session.signFinal();
+  }
+
+  /**
+   * Verifies the signature of the file.
+   *
+   * @param session   The session.
+   * @param mechanism The signature mechanism, including the hash algorithm.
+   * @param keyHandle The verification key.
+   * @param file      The signed file.
+   * @param signature The signature.
+   * @throws PKCS11Exception If the verification failed, also if the signature is invalid.
+   * @throws IOException If reading the file failed.
+   */
+  public static void verify(Session session, Mechanism mechanism, long keyHandle, Path file, byte[] signature)
+      throws PKCS11Exception, IOException {
+    session.verifyInit(mechanism, keyHandle);
+    try {
+      verifyUpdate(session, file, DEFAULT_WINDOW_SIZE, DEFAULT_CHUNK_SIZE);
+    } catch (IOException e) {
+      terminate(() -> session.verifyFinal(signature), e);
+      throw e;
+    }
+    session.verifyFinal(signature);
+  }
+
+  /**
+   * Digests the file.
+   *
+   * @param session   The session.
+   * @param mechanism The digest mechanism.
+   * @param file      The file to digest.
+   * @return the message digest.
+   * @throws PKCS11Exception If digesting failed.
+   * @throws IOException If reading the file failed.
+   */
+  public static byte[] digest(Session session, Mechanism mechanism, Path file) throws PKCS11Exception, IOException {
+    session.digestInit(mechanism);
+    byte[] digest = new byte[MAX_DIGEST_SIZE];
+    try {
+      digestUpdate(session, file, DEFAULT_WINDOW_SIZE, DEFAULT_CHUNK_SIZE);
+    } catch (IOException e) {
+      terminate(() -> session.digestFinal(digest, 0, digest.length), e);
+      throw e;
+    }
+    int len = session.digestFinal(digest, 0, digest.length);
+    return Arrays.copyOf(digest, len);
+  }
+
+  /**
+   * Feeds the file to the signing operation initialized in the session.
+   *
+   * @param session    The session.
+   * @param file       The file.
+   * @param windowSize The maximal number of bytes mapped at once.
+   * @param chunkSize  The number of bytes passed to one signUpdate call.
+   * @throws PKCS11Exception If signing failed.
+   * @throws IOException If reading the file failed.
+   */
+  public static void signUpdate(Session session, Path file, long windowSize, int chunkSize)
+      throws PKCS11Exception, IOException {
+    update(file, windowSize, chunkSize, session::signUpdate);
+  }
+
+  /**
+   * Feeds the file to the verification operation initialized in the session.
+   *
+   * @param session    The session.
+   * @param file       The file.
+   * @param windowSize The maximal number of bytes mapped at once.
+   * @param chunkSize  The number of bytes passed to one verifyUpdate call.
+   * @throws PKCS11Exception If verifying failed.
+   * @throws IOException If reading the file failed.
+   */
+  public static void verifyUpdate(Session session, Path file, long windowSize, int chunkSize)
+      throws PKCS11Exception, IOException {
+    update(file, windowSize, chunkSize, session::verifyUpdate);
+  }
+
+  /**
+   * Feeds the file to the digesting operation initialized in the session.
+   *
+   * @param session    The session.
+   * @param file       The file.
+   * @param windowSize The maximal number of bytes mapped at once.
+   * @param chunkSize  The number of bytes passed to one digestUpdate call.
+   * @throws PKCS11Exception If digesting failed.
+   * @throws IOException If reading the file failed.
+   */
+  public static void digestUpdate(Session session, Path file, long windowSize, int chunkSize)
+      throws PKCS11Exception, IOException {
+    update(file, windowSize, chunkSize, session::digestUpdate);
+  }
+
+  private static void update(Path file, long windowSize, int chunkSize, Updater updater)
+      throws PKCS11Exception, IOException {
+    Functions.requireNonNull("file", file);
+    if (windowSize < 1 || windowSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("windowSize may not be out of the range [1, "
+          + Integer.MAX_VALUE + "]: " + windowSize);
+    }
+    Functions.requireRange("chunkSize", chunkSize, 1, Integer.MAX_VALUE);
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      byte[] chunk = new byte[(int) Math.min(chunkSize, Math.min(windowSize, Math.max(size, 1)))];
+
+      for (long pos = 0; pos < size; pos += windowSize) {
+        // the mapping is released when the buffer is garbage collected.
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, size - pos));
+        while (window.hasRemaining()) {
+          int n = Math.min(chunk.length, window.remaining());
+          window.get(chunk, 0, n);
+          updater.update(chunk, 0, n);
+        }
+      }
+    }
+  }
+
+  private interface Finalizer {
+    void run() throws PKCS11Exception;
+  }
+
+  /**
+   * Finalizes the operation after reading the file failed, so that the session can be used again.
+   */
+  private static void terminate(Finalizer finalizer, IOException cause) {
+    try {
+      finalizer.run();
+    } catch (PKCS11Exception e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+}
@@ -0,0 +1,368 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import org.xipki.pkcs11.wrapper.params.GCM_MESSAGE_PARAMS;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * AES-GCM encryption of many small messages with one key via the message-based functions of
+ * PKCS#11 3.0. A session initialized via {@link Session#messageEncryptInit(Mechanism, long)} or
+ * {@link Session#messageDecryptInit(Mechanism, long)} can process any number of messages, so this
+ * class keeps the initialized sessions, borrowed from a {@link SessionPool}, and reuses them for
+ * the following messages instead of initializing an operation per message. At most
+ * {@link #setMaxIdleContexts(int)} initialized sessions per direction are kept, further sessions
+ * are returned to the pool after their message.
+ * <pre><code>
+ *   MessageCipher cipher = new MessageCipher(pool, keyHandle);
+ *   byte[] sealed = cipher.encrypt(associatedData, plaintext);
+ *   byte[] plaintext = cipher.decrypt(associatedData, sealed);
+ * </code></pre>
+ * The IV of every message is generated by this class: a 4-byte fixed field, followed by an 8-byte
+ * counter which is incremented for every message (the deterministic construction of NIST SP
+ * 800-38D). By default, the fixed field is random and the counter belongs to the key in the
+ * {@link PKCS11Module}: all MessageCiphers of the same key in the module share one counter, so
+ * that they never use the same IV within this process. The counter is kept in memory only and
+ * starts at 0 in every process, so across restarts (or processes) of a persistent key, IVs are
+ * only unique as long as the random 4-byte fixed fields differ, i.e. with the birthday bound of
+ * 2^32 values. Applications needing more must give a fixed field together with a counter state
+ * they persist themselves, see {@link #MessageCipher(SessionPool, long, int, byte[], AtomicLong)}.
+ * <p>
+ * The encrypted message has the form IV || ciphertext || tag. This class is thread-safe; concurrent
+ * calls use different sessions.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class MessageCipher implements AutoCloseable {
+
+  public static final int IV_LENGTH = 12;
+
+  public static final int FIXED_FIELD_LENGTH = 4;
+
+  public static final int DEFAULT_TAG_LENGTH = 16;
+
+  public static final int DEFAULT_MAX_IDLE_CONTEXTS = 4;
+
+  private static final Mechanism AES_GCM = new Mechanism(CKM_AES_GCM);
+
+  private final SessionPool pool;
+
+  private final long keyHandle;
+
+  private final int tagLength;
+
+  private final byte[] fixedField;
+
+  private final AtomicLong counter;
+
+  private final ConcurrentLinkedDeque<Session> encryptSessions = new ConcurrentLinkedDeque<>();
+
+  private final ConcurrentLinkedDeque<Session> decryptSessions = new ConcurrentLinkedDeque<>();
+
+  private final AtomicInteger idleEncryptSessions = new AtomicInteger();
+
+  private final AtomicInteger idleDecryptSessions = new AtomicInteger();
+
+  private volatile int maxIdleContexts = DEFAULT_MAX_IDLE_CONTEXTS;
+
+  private volatile boolean closed;
+
+  /**
+   * Constructor with a random fixed field and the tag length {@link #DEFAULT_TAG_LENGTH}.
+   *
+   * @param pool      The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param keyHandle The AES key.
+   */
+  public MessageCipher(SessionPool pool, long keyHandle) {
+    this(pool, keyHandle, DEFAULT_TAG_LENGTH);
+  }
+
+  /**
+   * Constructor with a random fixed field and the counter of the key in the module.
+   *
+   * @param pool      The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param keyHandle The AES key.
+   * @param tagLength The length of the authentication tag in bytes, between 12 and 16.
+   */
+  public MessageCipher(SessionPool pool, long keyHandle, int tagLength) {
+    this(pool, keyHandle, tagLength, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool       The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param keyHandle  The AES key.
+   * @param tagLength  The length of the authentication tag in bytes, between 12 and 16.
+   * @param fixedField The first {@link #FIXED_FIELD_LENGTH} bytes of every IV. If null, a random
+   *                   value is used.
+   * @param counter    The counter of the IVs, holding the value of the next IV. The caller is
+   *                   responsible to share it between all MessageCiphers of the key with the same
+   *                   fixed field, and to continue it after a restart. Must not be null if
+   *                   fixedField is given. If null, the counter of the key in the module is used.
+   */
+  public MessageCipher(SessionPool pool, long keyHandle, int tagLength, byte[] fixedField, AtomicLong counter) {
+    this.pool = Functions.requireNonNull("pool", pool);
+    this.keyHandle = keyHandle;
+    if (fixedField != null && counter == null) {
+      // the in-memory counter starts at 0 in every process, the same fixed field would repeat IVs.
+      throw new IllegalArgumentException("counter must not be null if fixedField is given");
+    }
+
+    if (counter == null) {
+      Slot slot = pool.getToken().getSlot();
+      counter = slot.getModule().getIvCounter(slot.getSlotID(), keyHandle);
+    }
+    this.counter = counter;
+    this.tagLength = Functions.requireRange("tagLength", tagLength, 12, 16);
+    if (fixedField == null) {
+      this.fixedField = new byte[FIXED_FIELD_LENGTH];
+      new SecureRandom().nextBytes(this.fixedField);
+    } else {
+      Functions.requireAmong("fixedField.length", fixedField.length, FIXED_FIELD_LENGTH);
+      this.fixedField = fixedField.clone();
+    }
+  }
+
+  public long getKeyHandle() {
+    return keyHandle;
+  }
+
+  public int getTagLength() {
+    return tagLength;
+  }
+
+  /**
+   * Returns the number of messages encrypted so far with the IV counter of this object, including
+   * those of the other MessageCiphers sharing the counter.
+   *
+   * @return the number of encrypted messages.
+   */
+  public long getEncryptedCount() {
+    return counter.get();
+  }
+
+  public int getMaxIdleContexts() {
+    return maxIdleContexts;
+  }
+
+  /**
+   * Set the maximal number of initialized sessions kept per direction (encrypt, decrypt) between
+   * two messages. Sessions exceeding it are finalized and returned to the pool.
+   *
+   * @param maxIdleContexts
+   *          The maximal number of idle sessions, 0 to return every session after its message.
+   */
+  public void setMaxIdleContexts(int maxIdleContexts) {
+    if (maxIdleContexts < 0) {
+      throw new IllegalArgumentException("maxIdleContexts must not be negative: " + maxIdleContexts);
+    }
+    this.maxIdleContexts = maxIdleContexts;
+  }
+
+  /**
+   * Encrypts the message.
+   *
+   * @param associatedData The associated data, may be null.
+   * @param plaintext      The message.
+   * @return IV || ciphertext || tag.
+   * @throws PKCS11Exception If encrypting failed.
+   */
+  public byte[] encrypt(byte[] associatedData, byte[] plaintext) throws PKCS11Exception {
+    Functions.requireNonNull("plaintext", plaintext);
+    byte[] iv = nextIv();
+    GCM_MESSAGE_PARAMS params = new GCM_MESSAGE_PARAMS(iv, 0, CKG_NO_GENERATE, new byte[tagLength]);
+
+    Session session = acquire(true);
+    byte[] ciphertext;
+    try {
+      ciphertext = session.encryptMessage(params, associatedData, plaintext);
+    } catch (PKCS11Exception e) {
+      discard(session, true);
+      throw e;
+    }
+    release(session, true);
+
+    byte[] tag = params.getParams().pTag;
+    byte[] sealed = new byte[IV_LENGTH + ciphertext.length + tag.length];
+    System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+    System.arraycopy(ciphertext, 0, sealed, IV_LENGTH, ciphertext.length);
+    System.arraycopy(tag, 0, sealed, IV_LENGTH + ciphertext.length, tag.length);
+    return sealed;
+  }
+
+  /**
+   * Decrypts the message.
+   *
+   * @param associatedData The associated data, may be null.
+   * @param sealed         IV || ciphertext || tag, as returned by {@link #encrypt(byte[], byte[])}.
+   * @return the message.
+   * @throws PKCS11Exception If decrypting failed, e.g. with CKR_ENCRYPTED_DATA_INVALID if the message
+   *                         is not authentic.
+   */
+  public byte[] decrypt(byte[] associatedData, byte[] sealed) throws PKCS11Exception {
+    Functions.requireNonNull("sealed", sealed);
+    if (sealed.length < IV_LENGTH + tagLength) {
+      throw new PKCS11Exception(CKR_ENCRYPTED_DATA_LEN_RANGE);
+    }
+
+    byte[] iv = new byte[IV_LENGTH];
+    byte[] ciphertext = new byte[sealed.length - IV_LENGTH - tagLength];
+    byte[] tag = new byte[tagLength];
+    System.arraycopy(sealed, 0, iv, 0, IV_LENGTH);
+    System.arraycopy(sealed, IV_LENGTH, ciphertext, 0, ciphertext.length);
+    System.arraycopy(sealed, IV_LENGTH + ciphertext.length, tag, 0, tagLength);
+    GCM_MESSAGE_PARAMS params = new GCM_MESSAGE_PARAMS(iv, 0, CKG_NO_GENERATE, tag);
+
+    Session session = acquire(false);
+    byte[] plaintext;
+    try {
+      plaintext = session.decryptMessage(params, associatedData, ciphertext);
+    } catch (PKCS11Exception e) {
+      if (isMessageError(e.getErrorCode())) {
+        // the operation context is still valid
+        release(session, false);
+      } else {
+        discard(session, false);
+      }
+      throw e;
+    }
+    release(session, false);
+    return plaintext;
+  }
+
+  /**
+   * Finalizes the message operations and returns their sessions to the pool. Sessions in use are
+   * returned when their current call has finished.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Session session;
+    while ((session = pollIdle(true)) != null) {
+      finish(session, true);
+    }
+
+    while ((session = pollIdle(false)) != null) {
+      finish(session, false);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MessageCipher: key " + keyHandle + ", " + counter.get() + " messages encrypted, idle contexts: "
+        + idleEncryptSessions.get() + " encrypt, " + idleDecryptSessions.get() + " decrypt";
+  }
+
+  private byte[] nextIv() {
+    long count = counter.getAndIncrement();
+    if (count < 0) {
+      // 2^63 messages, never reached in practice.
+      throw new IllegalStateException("IV counter exhausted");
+    }
+
+    byte[] iv = new byte[IV_LENGTH];
+    System.arraycopy(fixedField, 0, iv, 0, FIXED_FIELD_LENGTH);
+    for (int i = IV_LENGTH - 1; i >= FIXED_FIELD_LENGTH; i--) {
+      iv[i] = (byte) count;
+      count >>>= 8;
+    }
+    return iv;
+  }
+
+  /**
+   * Returns an idle session whose message operation has been initialized, or borrows a new one
+   * and initializes the operation.
+   */
+  private Session acquire(boolean encrypt) throws PKCS11Exception {
+    if (closed) {
+      throw new IllegalStateException("MessageCipher is closed");
+    }
+
+    Session session = pollIdle(encrypt);
+    if (session != null) {
+      return session;
+    }
+
+    session = pool.borrowSession(false);
+    try {
+      if (encrypt) {
+        session.messageEncryptInit(AES_GCM, keyHandle);
+      } else {
+        session.messageDecryptInit(AES_GCM, keyHandle);
+      }
+    } catch (PKCS11Exception e) {
+      pool.returnSession(session);
+      throw e;
+    }
+    return session;
+  }
+
+  private void release(Session session, boolean encrypt) {
+    AtomicInteger idleCount = encrypt ? idleEncryptSessions : idleDecryptSessions;
+    if (idleCount.incrementAndGet() > maxIdleContexts) {
+      idleCount.decrementAndGet();
+      finish(session, encrypt);
+      return;
+    }
+
+    // the most recently used session first, its state is most likely to be cached.
+    (encrypt ? encryptSessions : decryptSessions).offerFirst(session);
+    if (closed) {
+      close();
+    }
+  }
+
+  private Session pollIdle(boolean encrypt) {
+    Session session = (encrypt ? encryptSessions : decryptSessions).pollFirst();
+    if (session != null) {
+      (encrypt ? idleEncryptSessions : idleDecryptSessions).decrementAndGet();
+    }
+    return session;
+  }
+
+  /**
+   * Drops a session whose operation is in an unknown state.
+   */
+  private void discard(Session session, boolean encrypt) {
+    try {
+      if (encrypt) {
+        session.messageEncryptFinal();
+      } else {
+        session.messageDecryptFinal();
+      }
+    } catch (PKCS11Exception e) {
+      // the session is closed anyway
+    }
+    pool.invalidateSession(session);
+  }
+
+  private void finish(Session session, boolean encrypt) {
+    try {
+      if (encrypt) {
+        session.messageEncryptFinal();
+      } else {
+        session.messageDecryptFinal();
+      }
+      pool.returnSession(session);
+    } catch (PKCS11Exception e) {
+      pool.invalidateSession(session);
+    }
+  }
+
+  /**
+   * Returns whether the error concerns only the message, so that the operation can be continued.
+   */
+  private static boolean isMessageError(long errorCode) {
+    return errorCode == CKR_ENCRYPTED_DATA_INVALID || errorCode == CKR_ENCRYPTED_DATA_LEN_RANGE
+        || errorCode == CKR_AEAD_DECRYPT_FAILED;
+  }
+
+}
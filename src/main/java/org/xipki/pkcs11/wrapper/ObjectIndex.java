@@ -0,0 +1,485 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * In-memory index of the token objects of a {@link Token}. The objects are enumerated once by
+ * {@link #refresh(Session)}, class by class, so that only the attributes the class has are
+ * requested: CKA_KEY_TYPE, CKA_ID and CKA_LABEL of keys, CKA_ID and CKA_LABEL of certificates, and
+ * CKA_LABEL of data objects. Each of these objects costs one C_GetAttributeValue call. Objects of
+ * other classes are found by a final search over all token objects, and cost one further call to
+ * read their CKA_CLASS. Afterwards, objects can be looked up by label, id, class and key type
+ * without any call to the token.
+ * <p>
+ * Objects created, modified or destroyed via any {@link Session} of the same module are reflected
+ * in the index immediately. Changes made by other applications are only seen after the next
+ * {@link #refresh(Session)}. Session objects are not indexed.
+ * <pre><code>
+ *   ObjectIndex index = new ObjectIndex(token);
+ *   index.refresh(session);
+ *   long[] keys = index.find(CKO_PRIVATE_KEY, null, null, "my-signing-key");
+ * </code></pre>
+ * Lookups are lock-free and may run concurrently with updates. The notifications of object changes
+ * do not wait for a running {@link #refresh(Session)}; the objects changed during a refresh are
+ * read again before the new index is published. The index should be closed if it is not used any
+ * more, so that it is no longer notified of object changes.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class ObjectIndex implements AutoCloseable {
+
+  /**
+   * The indexed attributes of one object.
+   */
+  public static final class Entry {
+
+    private final long handle;
+
+    private final Long objectClass;
+
+    private final Long keyType;
+
+    private final byte[] id;
+
+    private final String label;
+
+    private Entry(long handle, Long objectClass, Long keyType, byte[] id, String label) {
+      this.handle = handle;
+      this.objectClass = objectClass;
+      this.keyType = keyType;
+      this.id = id;
+      this.label = label;
+    }
+
+    public long getHandle() {
+      return handle;
+    }
+
+    public Long getObjectClass() {
+      return objectClass;
+    }
+
+    public Long getKeyType() {
+      return keyType;
+    }
+
+    public byte[] getId() {
+      return id == null ? null : id.clone();
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    @Override
+    public String toString() {
+      return "handle=" + handle + ", class=" + (objectClass == null ? null : ckoCodeToName(objectClass))
+          + ", keyType=" + (keyType == null ? null : ckkCodeToName(keyType))
+          + ", id=" + (id == null ? null : Functions.toHex(id)) + ", label=" + label;
+    }
+
+  } // class Entry
+
+  private static final class Indexes {
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<Long>> labelIndex = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<Long>> idIndex = new ConcurrentHashMap<>();
+
+    private final Map<Long, Set<Long>> classIndex = new ConcurrentHashMap<>();
+
+    private final Map<Long, Set<Long>> keyTypeIndex = new ConcurrentHashMap<>();
+
+    void add(Entry entry) {
+      remove(entry.handle);
+      entries.put(entry.handle, entry);
+      if (entry.label != null) {
+        addTo(labelIndex, entry.label, entry.handle);
+      }
+      if (entry.id != null) {
+        addTo(idIndex, Functions.toHex(entry.id), entry.handle);
+      }
+      if (entry.objectClass != null) {
+        addTo(classIndex, entry.objectClass, entry.handle);
+      }
+      if (entry.keyType != null) {
+        addTo(keyTypeIndex, entry.keyType, entry.handle);
+      }
+    }
+
+    void remove(long handle) {
+      Entry entry = entries.remove(handle);
+      if (entry == null) {
+        return;
+      }
+
+      if (entry.label != null) {
+        removeFrom(labelIndex, entry.label, handle);
+      }
+      if (entry.id != null) {
+        removeFrom(idIndex, Functions.toHex(entry.id), handle);
+      }
+      if (entry.objectClass != null) {
+        removeFrom(classIndex, entry.objectClass, handle);
+      }
+      if (entry.keyType != null) {
+        removeFrom(keyTypeIndex, entry.keyType, handle);
+      }
+    }
+
+    private static <K> void addTo(Map<K, Set<Long>> index, K key, long handle) {
+      index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(handle);
+    }
+
+    private static <K> void removeFrom(Map<K, Set<Long>> index, K key, long handle) {
+      Set<Long> handles = index.get(key);
+      if (handles != null) {
+        handles.remove(handle);
+        if (handles.isEmpty()) {
+          index.remove(key, handles);
+        }
+      }
+    }
+
+  } // class Indexes
+
+  /**
+   * The classes enumerated with CKA_CLASS in the search template, i.e. whose class is known
+   * without reading it.
+   */
+  private static final long[] ENUMERATED_CLASSES =
+      {CKO_PRIVATE_KEY, CKO_PUBLIC_KEY, CKO_SECRET_KEY, CKO_CERTIFICATE, CKO_DATA};
+
+  private static final long[] KEY_ATTR_TYPES = {CKA_KEY_TYPE, CKA_ID, CKA_LABEL};
+
+  private static final long[] CERTIFICATE_ATTR_TYPES = {CKA_ID, CKA_LABEL};
+
+  private static final long[] OTHER_ATTR_TYPES = {CKA_LABEL};
+
+  private final Token token;
+
+  private final long slotId;
+
+  private final PKCS11Module module;
+
+  private final PKCS11Module.ObjectListener listener;
+
+  private volatile Indexes indexes = new Indexes();
+
+  /**
+   * The handles of the objects changed during the running refreshes, one set per refresh.
+   */
+  private final List<Set<Long>> changedDuringRefresh = new CopyOnWriteArrayList<>();
+
+  private volatile boolean closed;
+
+  /**
+   * Creates an empty index for the given token. Call {@link #refresh(Session)} to fill it.
+   *
+   * @param token The token whose objects are indexed.
+   */
+  public ObjectIndex(Token token) {
+    this.token = Functions.requireNonNull("token", token);
+    this.slotId = token.getTokenID();
+    this.module = token.getSlot().getModule();
+
+    this.listener = new PKCS11Module.ObjectListener() {
+      @Override
+      public void objectCreated(Session session, long objectHandle) {
+        update(session, objectHandle);
+      }
+
+      @Override
+      public void objectModified(Session session, long objectHandle) {
+        update(session, objectHandle);
+      }
+
+      @Override
+      public void objectDestroyed(Session session, long objectHandle) {
+        if (isOwnSession(session)) {
+          markChanged(objectHandle);
+          indexes.remove(objectHandle);
+        }
+      }
+    };
+
+    module.addObjectListener(listener);
+  }
+
+  public Token getToken() {
+    return token;
+  }
+
+  /**
+   * Enumerates all token objects of the token and rebuilds the index. Lookups running concurrently
+   * see the previous index until the new one is complete.
+   *
+   * @param session The session used to enumerate the objects. It must belong to the token of this
+   *                index, and must not have an active find operation.
+   * @throws PKCS11Exception If enumerating the objects or reading their attributes failed.
+   */
+  public void refresh(Session session) throws PKCS11Exception {
+    assertOpen();
+    if (!isOwnSession(session)) {
+      throw new IllegalArgumentException("session does not belong to the token of this index");
+    }
+
+    Set<Long> changed = ConcurrentHashMap.newKeySet();
+    changedDuringRefresh.add(changed);
+    try {
+      Indexes newIndexes = new Indexes();
+      Set<Long> enumerated = new HashSet<>();
+      for (long objectClass : ENUMERATED_CLASSES) {
+        long[] handles = session.findAllObjects(new AttributeVector().class_(objectClass).token(true));
+        for (long handle : handles) {
+          enumerated.add(handle);
+          Entry entry = readEntry(session, handle, objectClass);
+          if (entry != null) {
+            newIndexes.add(entry);
+          }
+        }
+      }
+
+      // objects of other classes, e.g. domain parameters or vendor-defined classes
+      for (long handle : session.findAllObjects(new AttributeVector().token(true))) {
+        if (!enumerated.contains(handle)) {
+          Entry entry = readEntry(session, handle);
+          if (entry != null) {
+            newIndexes.add(entry);
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        this.indexes = newIndexes;
+      }
+    } finally {
+      changedDuringRefresh.remove(changed);
+    }
+
+    // the objects changed during the enumeration may have been read before their change.
+    for (Long handle : changed) {
+      reindex(session, handle);
+    }
+  }
+
+  /**
+   * Gets the indexed attributes of the given object.
+   *
+   * @param objectHandle The object handle.
+   * @return the indexed attributes, or null if the object is not indexed.
+   */
+  public Entry get(long objectHandle) {
+    return indexes.entries.get(objectHandle);
+  }
+
+  public long[] findByLabel(String label) {
+    return toArray(indexes.labelIndex.get(Functions.requireNonNull("label", label)));
+  }
+
+  public long[] findById(byte[] id) {
+    return toArray(indexes.idIndex.get(Functions.toHex(Functions.requireNonNull("id", id))));
+  }
+
+  public long[] findByClass(long objectClass) {
+    return toArray(indexes.classIndex.get(objectClass));
+  }
+
+  public long[] findByKeyType(long keyType) {
+    return toArray(indexes.keyTypeIndex.get(keyType));
+  }
+
+  /**
+   * Finds the objects matching all given criteria. Criteria with value null are ignored.
+   *
+   * @param objectClass The object class (CKA_CLASS), may be null.
+   * @param keyType     The key type (CKA_KEY_TYPE), may be null.
+   * @param id          The object identifier (CKA_ID), may be null.
+   * @param label       The label (CKA_LABEL), may be null.
+   * @return the handles of the matching objects, never null.
+   */
+  public long[] find(Long objectClass, Long keyType, byte[] id, String label) {
+    Indexes idx = indexes;
+
+    // start with the most selective criterion
+    Collection<Long> candidates;
+    if (label != null) {
+      candidates = idx.labelIndex.get(label);
+    } else if (id != null) {
+      candidates = idx.idIndex.get(Functions.toHex(id));
+    } else if (keyType != null) {
+      candidates = idx.keyTypeIndex.get(keyType);
+    } else if (objectClass != null) {
+      candidates = idx.classIndex.get(objectClass);
+    } else {
+      candidates = idx.entries.keySet();
+    }
+
+    if (candidates == null || candidates.isEmpty()) {
+      return new long[0];
+    }
+
+    long[] ret = new long[candidates.size()];
+    int n = 0;
+    for (Long handle : candidates) {
+      Entry entry = idx.entries.get(handle);
+      if (entry != null && n < ret.length
+          && (objectClass == null || objectClass.equals(entry.objectClass))
+          && (keyType == null || keyType.equals(entry.keyType))
+          && (id == null || Arrays.equals(id, entry.id))
+          && (label == null || label.equals(entry.label))) {
+        ret[n++] = handle;
+      }
+    }
+
+    return n == ret.length ? ret : Arrays.copyOf(ret, n);
+  }
+
+  /**
+   * Returns the number of indexed objects.
+   *
+   * @return the number of indexed objects.
+   */
+  public int size() {
+    return indexes.entries.size();
+  }
+
+  /**
+   * Stops listening to object changes and clears the index.
+   */
+  @Override
+  public synchronized void close() {
+    if (!closed) {
+      closed = true;
+      module.removeObjectListener(listener);
+      indexes = new Indexes();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ObjectIndex of token " + slotId + ": " + size() + " objects";
+  }
+
+  private void update(Session session, long objectHandle) {
+    if (isOwnSession(session) && !closed) {
+      markChanged(objectHandle);
+      reindex(session, objectHandle);
+    }
+  }
+
+  private void markChanged(long objectHandle) {
+    for (Set<Long> changed : changedDuringRefresh) {
+      changed.add(objectHandle);
+    }
+  }
+
+  /**
+   * Reads the object again and updates the current index, without holding any lock.
+   */
+  private void reindex(Session session, long objectHandle) {
+    Entry entry;
+    try {
+      entry = readEntry(session, objectHandle);
+    } catch (PKCS11Exception e) {
+      // the object cannot be indexed, it will be picked up by the next refresh.
+      entry = null;
+    }
+
+    Indexes idx = indexes;
+    if (entry == null) {
+      idx.remove(objectHandle);
+    } else {
+      idx.add(entry);
+    }
+  }
+
+  private boolean isOwnSession(Session session) {
+    return session.getToken().getTokenID() == slotId;
+  }
+
+  private void assertOpen() {
+    if (closed) {
+      throw new IllegalStateException("ObjectIndex is closed");
+    }
+  }
+
+  /**
+   * Reads the class of the given object, and then its indexed attributes.
+   *
+   * @return the entry, or null if the object is not a token object or does not exist any more.
+   */
+  private static Entry readEntry(Session session, long objectHandle) throws PKCS11Exception {
+    AttributeVector attrs = getAttrValues(session, objectHandle, CKA_TOKEN, CKA_CLASS);
+    if (attrs == null || !Boolean.TRUE.equals(attrs.token()) || attrs.class_() == null) {
+      return null;
+    }
+
+    return readEntry(session, objectHandle, attrs.class_());
+  }
+
+  /**
+   * Reads the indexed attributes of the given token object of known class.
+   *
+   * @return the entry, or null if the object does not exist any more.
+   */
+  private static Entry readEntry(Session session, long objectHandle, long objectClass) throws PKCS11Exception {
+    boolean isKey = objectClass == CKO_PRIVATE_KEY || objectClass == CKO_PUBLIC_KEY || objectClass == CKO_SECRET_KEY;
+    long[] types = isKey ? KEY_ATTR_TYPES
+        : (objectClass == CKO_CERTIFICATE) ? CERTIFICATE_ATTR_TYPES : OTHER_ATTR_TYPES;
+    AttributeVector attrs = getAttrValues(session, objectHandle, types);
+    if (attrs == null) {
+      return null;
+    }
+
+    return new Entry(objectHandle, objectClass, isKey ? attrs.keyType() : null,
+        (objectClass == CKO_CERTIFICATE || isKey) ? attrs.id() : null, attrs.label());
+  }
+
+  /**
+   * Reads the attributes of the object.
+   *
+   * @return the attributes, or null if the object does not exist any more.
+   */
+  private static AttributeVector getAttrValues(Session session, long objectHandle, long... types)
+      throws PKCS11Exception {
+    try {
+      return session.getAttrValues(objectHandle, types);
+    } catch (PKCS11Exception e) {
+      if (e.getErrorCode() == CKR_OBJECT_HANDLE_INVALID) {
+        // destroyed in the meantime
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private static long[] toArray(Set<Long> handles) {
+    if (handles == null) {
+      return new long[0];
+    }
+
+    long[] ret = new long[handles.size()];
+    int n = 0;
+    for (Long handle : handles) {
+      if (n == ret.length) {
+        break;
+      }
+      ret[n++] = handle;
+    }
+    return n == ret.length ? ret : Arrays.copyOf(ret, n);
+  }
+
+}
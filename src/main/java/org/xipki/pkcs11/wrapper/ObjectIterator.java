@@ -0,0 +1,196 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * Iterator over the handles of the objects matching a search template. The handles are pulled
+ * from the token in batches: the first batch has the initial batch size, and every following
+ * batch is twice as large as the previous one, up to the maximal batch size. So a search with few
+ * results needs only one small C_FindObjects call, while listing many objects needs only a few.
+ * <p>
+ * Optionally, the attributes of the given types are read for every object of a batch directly
+ * after the batch has been fetched, see {@link #getAttributes()}.
+ * <p>
+ * The find operation is finalized (C_FindObjectsFinal) as soon as the last handle has been
+ * fetched, if fetching a batch fails, or when the iterator is closed. If the iterator is not
+ * consumed completely, it must be closed, otherwise the session cannot start another operation.
+ * <pre><code>
+ *   try (ObjectIterator it = session.iterateObjects(template, CKA_LABEL)) {
+ *     while (it.hasNextObject()) {
+ *       long handle = it.nextObject();
+ *       String label = it.getAttributes().label();
+ *       ...
+ *     }
+ *   }
+ * </code></pre>
+ * The methods {@link #hasNext()} and {@link #nextLong()} wrap the PKCS11Exception in an
+ * {@link UncheckedPKCS11Exception}.
+ * <p>
+ * This class is not thread-safe, as the {@link Session} it uses.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class ObjectIterator implements PrimitiveIterator.OfLong, AutoCloseable {
+
+  public static final int DEFAULT_INITIAL_BATCH_SIZE = 16;
+
+  public static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+
+  private static final long[] EMPTY = new long[0];
+
+  private final Session session;
+
+  private final int maxBatchSize;
+
+  private final long[] attributeTypes;
+
+  private int batchSize;
+
+  private long[] batch = EMPTY;
+
+  private AttributeVector[] batchAttributes;
+
+  private int index;
+
+  private AttributeVector currentAttributes;
+
+  private boolean active;
+
+  ObjectIterator(Session session, AttributeVector template, int initialBatchSize, int maxBatchSize,
+                 long... attributeTypes) throws PKCS11Exception {
+    this.session = Functions.requireNonNull("session", session);
+    this.batchSize = Functions.requireRange("initialBatchSize", initialBatchSize, 1, Integer.MAX_VALUE);
+    this.maxBatchSize = Functions.requireRange("maxBatchSize", maxBatchSize, initialBatchSize, Integer.MAX_VALUE);
+    this.attributeTypes = (attributeTypes == null || attributeTypes.length == 0) ? null : attributeTypes.clone();
+
+    session.findObjectsInit(template);
+    active = true;
+  }
+
+  /**
+   * Returns whether there are more objects, fetching the next batch if required.
+   *
+   * @return true if there are more objects.
+   * @throws PKCS11Exception If fetching the next batch failed. The find operation is finalized.
+   */
+  public boolean hasNextObject() throws PKCS11Exception {
+    if (index < batch.length) {
+      return true;
+    }
+
+    if (!active) {
+      return false;
+    }
+
+    fetchBatch();
+    return index < batch.length;
+  }
+
+  /**
+   * Returns the handle of the next object.
+   *
+   * @return the handle of the next object.
+   * @throws PKCS11Exception If fetching the next batch failed. The find operation is finalized.
+   * @throws NoSuchElementException If there are no more objects.
+   */
+  public long nextObject() throws PKCS11Exception {
+    if (!hasNextObject()) {
+      throw new NoSuchElementException();
+    }
+
+    currentAttributes = (batchAttributes == null) ? null : batchAttributes[index];
+    return batch[index++];
+  }
+
+  /**
+   * Returns the attributes of the object returned by the last call of {@link #nextObject()} or
+   * {@link #nextLong()}.
+   *
+   * @return the attributes, or null if no attribute types were specified.
+   */
+  public AttributeVector getAttributes() {
+    return currentAttributes;
+  }
+
+  @Override
+  public boolean hasNext() {
+    try {
+      return hasNextObject();
+    } catch (PKCS11Exception e) {
+      throw new UncheckedPKCS11Exception(e);
+    }
+  }
+
+  @Override
+  public long nextLong() {
+    try {
+      return nextObject();
+    } catch (PKCS11Exception e) {
+      throw new UncheckedPKCS11Exception(e);
+    }
+  }
+
+  /**
+   * Finalizes the find operation if it is still active. Further calls have no effect.
+   *
+   * @throws PKCS11Exception If finalizing the find operation failed.
+   */
+  @Override
+  public void close() throws PKCS11Exception {
+    batch = EMPTY;
+    batchAttributes = null;
+    index = 0;
+    finish();
+  }
+
+  private void fetchBatch() throws PKCS11Exception {
+    try {
+      long[] handles = session.findObjects(batchSize);
+      if (handles.length == 0) {
+        batch = EMPTY;
+        batchAttributes = null;
+        index = 0;
+        finish();
+        return;
+      }
+
+      AttributeVector[] attrs = null;
+      if (attributeTypes != null) {
+        attrs = new AttributeVector[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+          attrs[i] = session.getAttrValues(handles[i], attributeTypes);
+        }
+      }
+
+      batch = handles;
+      batchAttributes = attrs;
+      index = 0;
+
+      if (batchSize < maxBatchSize) {
+        batchSize = (int) Math.min((long) batchSize * 2, maxBatchSize);
+      }
+    } catch (PKCS11Exception | RuntimeException e) {
+      batch = EMPTY;
+      batchAttributes = null;
+      index = 0;
+      try {
+        finish();
+      } catch (PKCS11Exception e2) {
+        e.addSuppressed(e2);
+      }
+      throw e;
+    }
+  }
+
+  private void finish() throws PKCS11Exception {
+    if (active) {
+      active = false;
+      session.findObjectsFinal();
+    }
+  }
+
+}
@@ -0,0 +1,320 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * InputStream, and ReadableByteChannel, which feeds the data read from a source into a multi-part
+ * operation of a {@link Session}. The operation must have been initialized before, e.g. via
+ * {@link Session#encryptInit(Mechanism, long)}.
+ * <ul>
+ *   <li>For encryption and decryption, the encrypted or decrypted data are read.</li>
+ *   <li>For signing, verification and digesting, the source data are read unchanged. After the
+ *     end of the stream has been reached, the signature or message digest is available via
+ *     {@link #getResult()}. For verification, reaching the end of the stream throws an
+ *     IOException caused by the PKCS11Exception if the signature is invalid.</li>
+ * </ul>
+ * The source is read in chunks of the configured size. While the current chunk is processed by
+ * the token, the next chunk is read from the source in a background thread, so that the I/O and
+ * the token operation overlap.
+ * <pre><code>
+ *   session.signInit(mechanism, keyHandle);
+ *   try (OperationInputStream in = OperationInputStream.signing(session, new FileInputStream(file))) {
+ *     while (in.read(buffer) != -1) {
+ *     }
+ *     byte[] signature = in.getResult();
+ *   }
+ * </code></pre>
+ * Closing the stream closes the source. If the stream is closed before its end has been reached,
+ * the operation in the session is not finalized. Like the {@link Session}, this class is not
+ * thread-safe.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class OperationInputStream extends InputStream implements ReadableByteChannel {
+
+  private final StreamOperation operation;
+
+  private final InputStream source;
+
+  private final byte[][] chunks;
+
+  private final byte[] outBuffer;
+
+  /**
+   * Index of the chunk being read from the source.
+   */
+  private int readingChunk;
+
+  /**
+   * The pending read of the next chunk, returns the number of read bytes, or -1 at the end of the
+   * source.
+   */
+  private Future<Integer> pendingRead;
+
+  /**
+   * The data which can be returned by the next read calls.
+   */
+  private byte[] data;
+
+  private int dataOfs;
+
+  private int dataEnd;
+
+  private boolean finished;
+
+  private IOException failure;
+
+  private boolean closed;
+
+  private OperationInputStream(StreamOperation operation, InputStream source, int chunkSize) {
+    this.operation = operation;
+    this.source = Functions.requireNonNull("source", source);
+    StreamOperation.checkChunkSize(chunkSize);
+    this.chunks = new byte[][]{new byte[chunkSize], new byte[chunkSize]};
+    this.outBuffer = operation.hasOutput() ? new byte[operation.outputBufferSize(chunkSize)] : null;
+  }
+
+  public static OperationInputStream encrypting(Session session, InputStream source) {
+    return encrypting(session, source, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationInputStream encrypting(Session session, InputStream source, int chunkSize) {
+    return new OperationInputStream(StreamOperation.encrypt(session), source, chunkSize);
+  }
+
+  public static OperationInputStream decrypting(Session session, InputStream source) {
+    return decrypting(session, source, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationInputStream decrypting(Session session, InputStream source, int chunkSize) {
+    return new OperationInputStream(StreamOperation.decrypt(session), source, chunkSize);
+  }
+
+  public static OperationInputStream signing(Session session, InputStream source) {
+    return signing(session, source, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationInputStream signing(Session session, InputStream source, int chunkSize) {
+    return new OperationInputStream(StreamOperation.sign(session), source, chunkSize);
+  }
+
+  public static OperationInputStream verifying(Session session, byte[] signature, InputStream source) {
+    return verifying(session, signature, source, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationInputStream verifying(Session session, byte[] signature, InputStream source,
+                                               int chunkSize) {
+    return new OperationInputStream(StreamOperation.verify(session, signature), source, chunkSize);
+  }
+
+  public static OperationInputStream digesting(Session session, InputStream source) {
+    return digesting(session, source, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationInputStream digesting(Session session, InputStream source, int chunkSize) {
+    return new OperationInputStream(StreamOperation.digest(session), source, chunkSize);
+  }
+
+  /**
+   * Returns the signature or message digest.
+   *
+   * @return the signature or message digest, or null if the end of the stream has not been reached
+   *         yet, or if the operation is not signing or digesting.
+   */
+  public byte[] getResult() {
+    return operation.getResult();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return data[dataOfs++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+
+    if (!fill()) {
+      return -1;
+    }
+
+    int n = Math.min(len, dataEnd - dataOfs);
+    System.arraycopy(data, dataOfs, b, off, n);
+    dataOfs += n;
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    if (!fill()) {
+      return -1;
+    }
+
+    int n = Math.min(dst.remaining(), dataEnd - dataOfs);
+    dst.put(data, dataOfs, n);
+    dataOfs += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return closed ? 0 : dataEnd - dataOfs;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    data = null;
+    dataOfs = dataEnd = 0;
+    if (pendingRead != null) {
+      try {
+        // wait for the read to finish before the source is closed.
+        pendingRead.get();
+      } catch (Exception e) {
+        // ignore
+      }
+      pendingRead = null;
+    }
+    source.close();
+  }
+
+  /**
+   * Makes sure that there are data to return.
+   *
+   * @return false if the end of the stream has been reached.
+   */
+  private boolean fill() throws IOException {
+    if (closed) {
+      throw new IOException("stream closed");
+    } else if (failure != null) {
+      throw failure;
+    }
+
+    while (dataOfs == dataEnd) {
+      if (finished) {
+        return false;
+      }
+
+      if (pendingRead == null) {
+        startRead();
+      }
+
+      int n = awaitRead();
+      byte[] chunk = chunks[readingChunk];
+      if (n == -1) {
+        finished = true;
+        doOperation(() -> {
+          byte[] out = operation.doFinal();
+          setData(out, out.length);
+          return out.length;
+        });
+      } else {
+        // read the next chunk while the current one is processed
+        readingChunk ^= 1;
+        startRead();
+        int outLen = doOperation(() -> operation.update(chunk, 0, n, outBuffer));
+        if (operation.hasOutput()) {
+          setData(outBuffer, outLen);
+        } else {
+          setData(chunk, n);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  private void setData(byte[] data, int len) {
+    this.data = data;
+    this.dataOfs = 0;
+    this.dataEnd = len;
+  }
+
+  private void startRead() {
+    byte[] chunk = chunks[readingChunk];
+    pendingRead = StreamOperation.ioExecutor().submit(() -> readChunk(chunk));
+  }
+
+  private int awaitRead() throws IOException {
+    try {
+      return pendingRead.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while reading from the source");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    } finally {
+      pendingRead = null;
+    }
+  }
+
+  /**
+   * Reads until the chunk is full or the end of the source is reached.
+   */
+  private int readChunk(byte[] chunk) throws IOException {
+    int n = 0;
+    while (n < chunk.length) {
+      int read = source.read(chunk, n, chunk.length - n);
+      if (read == -1) {
+        break;
+      }
+      n += read;
+    }
+    return (n == 0) ? -1 : n;
+  }
+
+  private interface Operation {
+    int run() throws PKCS11Exception;
+  }
+
+  private int doOperation(Operation op) throws IOException {
+    try {
+      return op.run();
+    } catch (PKCS11Exception e) {
+      failure = new IOException(e);
+      throw failure;
+    }
+  }
+
+}
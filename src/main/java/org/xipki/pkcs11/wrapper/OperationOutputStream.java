@@ -0,0 +1,291 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * OutputStream, and WritableByteChannel, which feeds the written data into a multi-part operation
+ * of a {@link Session}. The operation must have been initialized before, e.g. via
+ * {@link Session#encryptInit(Mechanism, long)}.
+ * <ul>
+ *   <li>For encryption and decryption, the encrypted or decrypted data are written to the sink.</li>
+ *   <li>For signing and digesting, the signature or message digest is available via
+ *     {@link #getResult()} after the stream has been closed. For verification, closing the stream
+ *     throws an IOException caused by the PKCS11Exception if the signature is invalid.</li>
+ * </ul>
+ * The written data are collected in chunks of the configured size. A full chunk is processed by
+ * the token in a background thread, while the next chunk is filled by the caller, so that the
+ * production of the data and the token operation overlap.
+ * <pre><code>
+ *   session.encryptInit(mechanism, keyHandle);
+ *   try (OperationOutputStream out = OperationOutputStream.encrypting(session, new FileOutputStream(file))) {
+ *     out.write(...);
+ *   }
+ * </code></pre>
+ * Closing the stream finalizes the operation and closes the sink. Until the stream is closed, the
+ * session must not be used otherwise. Like the {@link Session}, this class is not thread-safe.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class OperationOutputStream extends OutputStream implements WritableByteChannel {
+
+  private final StreamOperation operation;
+
+  private final OutputStream sink;
+
+  private final byte[][] chunks;
+
+  private final byte[] outBuffer;
+
+  /**
+   * Index of the chunk being filled by the caller.
+   */
+  private int fillingChunk;
+
+  private int chunkLen;
+
+  /**
+   * The pending processing of the previous chunk.
+   */
+  private Future<?> pendingUpdate;
+
+  private IOException failure;
+
+  private boolean closed;
+
+  private OperationOutputStream(StreamOperation operation, OutputStream sink, int chunkSize) {
+    this.operation = operation;
+    this.sink = operation.hasOutput() ? Functions.requireNonNull("sink", sink) : null;
+    StreamOperation.checkChunkSize(chunkSize);
+    this.chunks = new byte[][]{new byte[chunkSize], new byte[chunkSize]};
+    this.outBuffer = operation.hasOutput() ? new byte[operation.outputBufferSize(chunkSize)] : null;
+  }
+
+  public static OperationOutputStream encrypting(Session session, OutputStream sink) {
+    return encrypting(session, sink, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationOutputStream encrypting(Session session, OutputStream sink, int chunkSize) {
+    return new OperationOutputStream(StreamOperation.encrypt(session), sink, chunkSize);
+  }
+
+  public static OperationOutputStream decrypting(Session session, OutputStream sink) {
+    return decrypting(session, sink, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationOutputStream decrypting(Session session, OutputStream sink, int chunkSize) {
+    return new OperationOutputStream(StreamOperation.decrypt(session), sink, chunkSize);
+  }
+
+  public static OperationOutputStream signing(Session session) {
+    return signing(session, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationOutputStream signing(Session session, int chunkSize) {
+    return new OperationOutputStream(StreamOperation.sign(session), null, chunkSize);
+  }
+
+  public static OperationOutputStream verifying(Session session, byte[] signature) {
+    return verifying(session, signature, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationOutputStream verifying(Session session, byte[] signature, int chunkSize) {
+    return new OperationOutputStream(StreamOperation.verify(session, signature), null, chunkSize);
+  }
+
+  public static OperationOutputStream digesting(Session session) {
+    return digesting(session, StreamOperation.DEFAULT_CHUNK_SIZE);
+  }
+
+  public static OperationOutputStream digesting(Session session, int chunkSize) {
+    return new OperationOutputStream(StreamOperation.digest(session), null, chunkSize);
+  }
+
+  /**
+   * Returns the signature or message digest.
+   *
+   * @return the signature or message digest, or null if the stream has not been closed yet, or if
+   *         the operation is not signing or digesting.
+   */
+  public byte[] getResult() {
+    return closed ? operation.getResult() : null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    assertOpen();
+    chunks[fillingChunk][chunkLen++] = (byte) b;
+    if (chunkLen == chunks[fillingChunk].length) {
+      submitChunk();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    assertOpen();
+    while (len > 0) {
+      byte[] chunk = chunks[fillingChunk];
+      int n = Math.min(len, chunk.length - chunkLen);
+      System.arraycopy(b, off, chunk, chunkLen, n);
+      chunkLen += n;
+      off += n;
+      len -= n;
+      if (chunkLen == chunk.length) {
+        submitChunk();
+      }
+    }
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    } else if (failure != null) {
+      throw failure;
+    }
+
+    int written = src.remaining();
+    while (src.hasRemaining()) {
+      byte[] chunk = chunks[fillingChunk];
+      int n = Math.min(src.remaining(), chunk.length - chunkLen);
+      src.get(chunk, chunkLen, n);
+      chunkLen += n;
+      if (chunkLen == chunk.length) {
+        submitChunk();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Waits until all full chunks have been processed, and flushes the sink. The data of a partial
+   * chunk are not processed until the chunk is full or the stream is closed.
+   *
+   * @throws IOException If processing the data or writing to the sink failed.
+   */
+  @Override
+  public void flush() throws IOException {
+    assertOpen();
+    awaitUpdate();
+    if (sink != null) {
+      sink.flush();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Processes the remaining data, finalizes the operation and closes the sink.
+   *
+   * @throws IOException If processing the data, finalizing the operation or writing to the sink
+   *                     failed. For verification, also if the signature is invalid.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    try {
+      if (failure != null) {
+        throw failure;
+      }
+
+      awaitUpdate();
+      if (chunkLen > 0) {
+        process(chunks[fillingChunk], chunkLen);
+        chunkLen = 0;
+      }
+
+      byte[] out;
+      try {
+        out = operation.doFinal();
+      } catch (PKCS11Exception e) {
+        throw new IOException(e);
+      }
+
+      if (out.length > 0) {
+        sink.write(out);
+      }
+    } finally {
+      if (sink != null) {
+        sink.close();
+      }
+    }
+  }
+
+  private void assertOpen() throws IOException {
+    if (closed) {
+      throw new IOException("stream closed");
+    } else if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Hands the full chunk over to a background thread, and continues with the other one.
+   */
+  private void submitChunk() throws IOException {
+    awaitUpdate();
+    byte[] chunk = chunks[fillingChunk];
+    int len = chunkLen;
+    pendingUpdate = StreamOperation.ioExecutor().submit(() -> {
+      process(chunk, len);
+      return null;
+    });
+
+    fillingChunk ^= 1;
+    chunkLen = 0;
+  }
+
+  private void process(byte[] chunk, int len) throws IOException {
+    int outLen;
+    try {
+      outLen = operation.update(chunk, 0, len, outBuffer);
+    } catch (PKCS11Exception e) {
+      throw new IOException(e);
+    }
+
+    if (outLen > 0) {
+      sink.write(outBuffer, 0, outLen);
+    }
+  }
+
+  private void awaitUpdate() throws IOException {
+    if (pendingUpdate == null) {
+      return;
+    }
+
+    try {
+      pendingUpdate.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = new InterruptedIOException("interrupted while processing the data");
+      throw failure;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      failure = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+      throw failure;
+    } finally {
+      pendingUpdate = null;
+    }
+  }
+
+}
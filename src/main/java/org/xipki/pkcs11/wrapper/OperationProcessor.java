@@ -0,0 +1,314 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * {@link Flow.Processor} which applies a single-part operation of an {@link AsyncToken}, e.g.
+ * signing, to every received payload, and publishes the results in the order of the payloads.
+ * <pre><code>
+ *   OperationProcessor&lt;byte[]&gt; signer = OperationProcessor.signing(asyncToken, mechanism, keyHandle);
+ *   records.subscribe(signer);
+ *   signer.subscribe(signatureWriter);
+ * </code></pre>
+ * Payloads are pulled from the upstream publisher only as fast as the token processes them: at
+ * most maxInFlight payloads are requested and not yet published downstream at any time, whether
+ * they are waiting for a worker of the {@link AsyncToken}, being processed, or waiting for demand
+ * of the downstream subscriber. A slow token or a slow subscriber therefore slows down the
+ * upstream publisher, instead of payloads being buffered without limit.
+ * <p>
+ * If an operation fails, the upstream subscription is cancelled and the downstream subscriber
+ * receives the exception via {@link Flow.Subscriber#onError(Throwable)}. Only one downstream
+ * subscriber is supported.
+ *
+ * @param <R> the type of the results.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class OperationProcessor<R> implements Flow.Processor<byte[], R> {
+
+  private final Function<byte[], CompletableFuture<R>> operation;
+
+  private final int maxInFlight;
+
+  /**
+   * Operations in the order of their payloads, not yet published downstream.
+   */
+  private final ConcurrentLinkedQueue<CompletableFuture<R>> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Serializes the emission, only the thread which increments it from 0 drains.
+   */
+  private final AtomicInteger wip = new AtomicInteger();
+
+  /**
+   * Demand of the downstream subscriber.
+   */
+  private final AtomicLong requested = new AtomicLong();
+
+  /**
+   * Number of payloads requested from upstream and not yet published downstream. Only accessed
+   * while draining.
+   */
+  private int inFlight;
+
+  private volatile Flow.Subscription upstream;
+
+  /**
+   * The downstream subscriber, set after its onSubscribe method has returned.
+   */
+  private volatile Flow.Subscriber<? super R> downstream;
+
+  private boolean subscribed;
+
+  private volatile boolean upstreamDone;
+
+  private volatile Throwable upstreamError;
+
+  /**
+   * Failure detected outside the drain loop, signalled downstream by the drain loop.
+   */
+  private volatile Throwable failure;
+
+  private volatile boolean cancelled;
+
+  /**
+   * Constructor.
+   *
+   * @param operation   The operation applied to every payload.
+   * @param maxInFlight The maximal number of payloads requested from upstream and not yet published
+   *                    downstream.
+   */
+  public OperationProcessor(Function<byte[], CompletableFuture<R>> operation, int maxInFlight) {
+    this.operation = Functions.requireNonNull("operation", operation);
+    this.maxInFlight = Functions.requireRange("maxInFlight", maxInFlight, 1, Integer.MAX_VALUE);
+  }
+
+  public static OperationProcessor<byte[]> signing(AsyncToken token, Mechanism mechanism, long keyHandle) {
+    return signing(token, mechanism, keyHandle, defaultMaxInFlight(token));
+  }
+
+  public static OperationProcessor<byte[]> signing(AsyncToken token, Mechanism mechanism, long keyHandle,
+                                                   int maxInFlight) {
+    return new OperationProcessor<>(data -> token.sign(mechanism, keyHandle, data), maxInFlight);
+  }
+
+  public static OperationProcessor<byte[]> encrypting(AsyncToken token, Mechanism mechanism, long keyHandle) {
+    return encrypting(token, mechanism, keyHandle, defaultMaxInFlight(token));
+  }
+
+  public static OperationProcessor<byte[]> encrypting(AsyncToken token, Mechanism mechanism, long keyHandle,
+                                                      int maxInFlight) {
+    return new OperationProcessor<>(data -> token.encrypt(mechanism, keyHandle, data), maxInFlight);
+  }
+
+  public static OperationProcessor<byte[]> decrypting(AsyncToken token, Mechanism mechanism, long keyHandle) {
+    return decrypting(token, mechanism, keyHandle, defaultMaxInFlight(token));
+  }
+
+  public static OperationProcessor<byte[]> decrypting(AsyncToken token, Mechanism mechanism, long keyHandle,
+                                                      int maxInFlight) {
+    return new OperationProcessor<>(data -> token.decrypt(mechanism, keyHandle, data), maxInFlight);
+  }
+
+  public static OperationProcessor<byte[]> digesting(AsyncToken token, Mechanism mechanism) {
+    return digesting(token, mechanism, defaultMaxInFlight(token));
+  }
+
+  public static OperationProcessor<byte[]> digesting(AsyncToken token, Mechanism mechanism, int maxInFlight) {
+    return new OperationProcessor<>(data -> token.digest(mechanism, data), maxInFlight);
+  }
+
+  /**
+   * Two payloads per worker, so that every worker has the next payload queued when it finishes one.
+   */
+  private static int defaultMaxInFlight(AsyncToken token) {
+    return 2 * token.getWorkerCount();
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    Functions.requireNonNull("subscription", subscription);
+    if (upstream != null || cancelled) {
+      subscription.cancel();
+      return;
+    }
+
+    upstream = subscription;
+    drain();
+  }
+
+  @Override
+  public void onNext(byte[] item) {
+    Functions.requireNonNull("item", item);
+    if (cancelled) {
+      return;
+    }
+
+    CompletableFuture<R> future = operation.apply(item);
+    pending.add(future);
+    future.whenComplete((r, e) -> drain());
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    upstreamError = Functions.requireNonNull("throwable", throwable);
+    upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    upstreamDone = true;
+    drain();
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super R> subscriber) {
+    Functions.requireNonNull("subscriber", subscriber);
+    synchronized (this) {
+      if (subscribed) {
+        subscriber.onSubscribe(new Flow.Subscription() {
+          @Override
+          public void request(long n) {
+          }
+
+          @Override
+          public void cancel() {
+          }
+        });
+        subscriber.onError(new IllegalStateException("only one subscriber is supported"));
+        return;
+      }
+      subscribed = true;
+    }
+
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        if (n <= 0) {
+          failure = new IllegalArgumentException("non-positive request: " + n);
+          drain();
+          return;
+        }
+
+        long r;
+        do {
+          r = requested.get();
+          if (r == Long.MAX_VALUE) {
+            break;
+          }
+        } while (!requested.compareAndSet(r, (r + n < 0) ? Long.MAX_VALUE : r + n));
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        cancelled = true;
+        cancelUpstream();
+      }
+    });
+    downstream = subscriber;
+    drain();
+  }
+
+  private void drain() {
+    if (wip.getAndIncrement() != 0) {
+      return;
+    }
+
+    int missed = 1;
+    while (true) {
+      if (cancelled) {
+        pending.clear();
+        return;
+      }
+
+      Flow.Subscriber<? super R> subscriber = downstream;
+      if (subscriber != null) {
+        if (failure != null) {
+          fail(subscriber, failure);
+          return;
+        }
+
+        long r = requested.get();
+        long emitted = 0;
+        while (emitted != r) {
+          CompletableFuture<R> head = pending.peek();
+          if (head == null || !head.isDone()) {
+            break;
+          }
+
+          pending.poll();
+          inFlight--;
+          R result;
+          try {
+            result = head.join();
+          } catch (CompletionException | CancellationException e) {
+            fail(subscriber, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            return;
+          }
+
+          subscriber.onNext(result);
+          emitted++;
+          if (cancelled) {
+            return;
+          }
+        }
+
+        if (emitted != 0 && r != Long.MAX_VALUE) {
+          requested.addAndGet(-emitted);
+        }
+
+        if (upstreamDone && pending.isEmpty()) {
+          cancelled = true;
+          Throwable error = upstreamError;
+          if (error != null) {
+            subscriber.onError(error);
+          } else {
+            subscriber.onComplete();
+          }
+          return;
+        }
+      }
+
+      Flow.Subscription subscription = upstream;
+      if (subscription != null && !upstreamDone && inFlight < maxInFlight) {
+        int n = maxInFlight - inFlight;
+        inFlight += n;
+        subscription.request(n);
+      }
+
+      missed = wip.addAndGet(-missed);
+      if (missed == 0) {
+        return;
+      }
+    }
+  }
+
+  private void fail(Flow.Subscriber<? super R> subscriber, Throwable error) {
+    cancelled = true;
+    cancelUpstream();
+    subscriber.onError(error);
+  }
+
+  private void cancelUpstream() {
+    Flow.Subscription subscription = upstream;
+    if (subscription != null) {
+      subscription.cancel();
+    }
+  }
+
+}
@@ -1263,7 +1263,7 @@ public final class PKCS11Constants {
     private static final String pathPrefix = "org/xipki/pkcs11/wrapper/";
     private final String description;
 
-    private final Map<Long, String> codeNameMap;
+    private final LongMap<String> codeNameMap;
     private final Map<String, Long> nameCodeMap;
 
     CodeNameMap(Category category) {
@@ -1271,7 +1271,7 @@ public final class PKCS11Constants {
       this.description = category.description;
 
       String prefix = category.prefix;
-      codeNameMap = new HashMap<>();
+      codeNameMap = new LongMap<>();
       nameCodeMap = new HashMap<>();
       Properties props = new Properties();
       try {
@@ -1308,8 +1308,7 @@ public final class PKCS11Constants {
           }
         }
 
-        Set<Long> codes = codeNameMap.keySet();
-        for (Long code : codes) {
+        for (long code : codeNameMap.keys()) {
           nameCodeMap.put(codeNameMap.get(code), code);
         }
       } catch (Throwable t) {
@@ -1330,8 +1329,8 @@ public final class PKCS11Constants {
       return nameCodeMap.get(name);
     }
 
-    Set<Long> codes() {
-      return codeNameMap.keySet();
+    long[] codes() {
+      return codeNameMap.keys();
     }
 
   }
@@ -1406,14 +1405,14 @@ public final class PKCS11Constants {
     return nameToCode(Category.CKR, name);
   }
 
-  private static final Map<Category, CodeNameMap> codeNameMaps = new HashMap<>(20);
-  private static final Map<Long, String> hashMechCodeToHashNames;
+  private static final Map<Category, CodeNameMap> codeNameMaps = new EnumMap<>(Category.class);
+  private static final LongMap<String> hashMechCodeToHashNames;
   public static String getHashAlgName(long hashMechanism) {
     return hashMechCodeToHashNames.get(hashMechanism);
   }
 
   static {
-    hashMechCodeToHashNames = new HashMap<>();
+    hashMechCodeToHashNames = new LongMap<>();
     hashMechCodeToHashNames.put(CKM_SHA_1, "SHA1");
     hashMechCodeToHashNames.put(CKM_SHA224, "SHA224");
     hashMechCodeToHashNames.put(CKM_SHA256, "SHA256");
@@ -15,6 +15,10 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -81,21 +85,29 @@ public class PKCS11Module {
    */
   private static boolean linkedAndInitialized;
 
-  private Boolean ecPointFixNeeded;
+  private final Quirk ecPointFix = new Quirk();
 
-  private Boolean ecdsaSignatureFixNeeded;
+  private final Quirk ecdsaSignatureFix = new Quirk();
 
-  private Boolean sm2SignatureFixNeeded;
+  private final Quirk sm2SignatureFix = new Quirk();
+
+  private final AttributeCache attributeCache = new AttributeCache(AttributeCache.DEFAULT_MAX_OBJECTS);
+
+  private final AttributeMemo attributeMemo = new AttributeMemo();
+
+  private final List<ObjectListener> objectListeners = new CopyOnWriteArrayList<>();
+
+  private final ConcurrentHashMap<String, AtomicLong> ivCounters = new ConcurrentHashMap<>();
 
   private boolean withVendorCodeMap;
 
-  private final Map<Long, Long> ckkGenericToVendorMap = new HashMap<>();
+  private final LongMap<Long> ckkGenericToVendorMap = new LongMap<>();
 
-  private final Map<Long, Long> ckkVendorToGenericMap = new HashMap<>();
+  private final LongMap<Long> ckkVendorToGenericMap = new LongMap<>();
 
-  private final Map<Long, Long> ckmGenericToVendorMap = new HashMap<>();
+  private final LongMap<Long> ckmGenericToVendorMap = new LongMap<>();
 
-  private final Map<Long, Long> ckmVendorToGenericMap = new HashMap<>();
+  private final LongMap<Long> ckmVendorToGenericMap = new LongMap<>();
 
   /**
    * Create a new module that uses the given PKCS11 interface to interact with
@@ -145,28 +157,136 @@ public class PKCS11Module {
     }
   }
 
-  Boolean getEcPointFixNeeded() {
-    return ecPointFixNeeded;
+  Quirk getEcPointFix() {
+    return ecPointFix;
   }
 
-  void setEcPointFixNeeded(Boolean ecPointFixNeeded) {
-    this.ecPointFixNeeded = ecPointFixNeeded;
+  Quirk getEcdsaSignatureFix() {
+    return ecdsaSignatureFix;
   }
 
-  Boolean getEcdsaSignatureFixNeeded() {
-    return ecdsaSignatureFixNeeded;
+  Quirk getSm2SignatureFix() {
+    return sm2SignatureFix;
   }
 
-  void setEcdsaSignatureFixNeeded(Boolean ecdsaSignatureFixNeeded) {
-    this.ecdsaSignatureFixNeeded = ecdsaSignatureFixNeeded;
+  AttributeCache getAttributeCache() {
+    return attributeCache;
   }
 
-  Boolean getSm2SignatureFixNeeded() {
-    return sm2SignatureFixNeeded;
+  AttributeMemo getAttributeMemo() {
+    return attributeMemo;
   }
 
-  void setSm2SignatureFixNeeded(Boolean sm2SignatureFixNeeded) {
-    this.sm2SignatureFixNeeded = sm2SignatureFixNeeded;
+  /**
+   * Returns the IV counter of the given key, shared by all {@link MessageCipher}s of the key.
+   */
+  AtomicLong getIvCounter(long slotId, long keyHandle) {
+    return ivCounters.computeIfAbsent(slotId + "/" + keyHandle, k -> new AtomicLong());
+  }
+
+  /**
+   * Registers a listener notified when an object is created, modified or destroyed via any
+   * {@link Session} of this module, e.g. to drop cached object handles.
+   *
+   * @param listener The listener.
+   */
+  public void addObjectListener(ObjectListener listener) {
+    objectListeners.add(Functions.requireNonNull("listener", listener));
+  }
+
+  /**
+   * Removes a listener registered via {@link #addObjectListener(ObjectListener)}.
+   *
+   * @param listener The listener.
+   */
+  public void removeObjectListener(ObjectListener listener) {
+    objectListeners.remove(listener);
+  }
+
+  void objectCreated(Session session, long objectHandle) {
+    for (ObjectListener listener : objectListeners) {
+      listener.objectCreated(session, objectHandle);
+    }
+  }
+
+  void objectModified(Session session, long objectHandle) {
+    for (ObjectListener listener : objectListeners) {
+      listener.objectModified(session, objectHandle);
+    }
+  }
+
+  void objectDestroyed(Session session, long objectHandle) {
+    for (ObjectListener listener : objectListeners) {
+      listener.objectDestroyed(session, objectHandle);
+    }
+  }
+
+  /**
+   * Sets whether attributes which turned out to be sensitive (CKR_ATTRIBUTE_SENSITIVE) for an
+   * object are assumed to be sensitive for all objects of the same class and key type, so that they
+   * are not read again. Enable this only if all such keys are sensitive or not extractable.
+   *
+   * @param learnSensitive
+   *          Whether to remember sensitive attributes. Default is false.
+   */
+  public void setLearnSensitiveAttributes(boolean learnSensitive) {
+    attributeMemo.setLearnSensitive(learnSensitive);
+  }
+
+  /**
+   * Sets whether attributes which turned out to be not supported (CKR_ATTRIBUTE_TYPE_INVALID) by
+   * an object are assumed to be not supported by all objects of the same class and key type, so
+   * that they are not read again. Enable this only if the objects of a class do not differ in
+   * their attributes, e.g. if there is only one certificate type, and no vendor attribute is set
+   * on some objects only.
+   *
+   * @param learnUnsupported
+   *          Whether to remember unsupported attributes. Default is false.
+   */
+  public void setLearnUnsupportedAttributes(boolean learnUnsupported) {
+    attributeMemo.setLearnUnsupported(learnUnsupported);
+  }
+
+  /**
+   * Loads the known unsupported and sensitive attributes per object class and key type from the
+   * given file, e.g. one written by {@link #saveAttributeMemo(String)}. Each line has the form
+   * <code>CKO_PRIVATE_KEY/CKK_EC/CKA_VALUE = sensitive</code>, where the key type is "-" for
+   * objects which are not keys, and the state is either "sensitive" or "unsupported".
+   *
+   * @param file
+   *          The path of the file.
+   * @exception IOException
+   *              If reading the file failed or the file is invalid.
+   */
+  public void loadAttributeMemo(String file) throws IOException {
+    try (InputStream in = Files.newInputStream(Paths.get(Functions.requireNonNull("file", file)))) {
+      attributeMemo.load(in);
+    }
+  }
+
+  /**
+   * Saves the known unsupported and sensitive attributes, as learned so far, to the given file.
+   *
+   * @param file
+   *          The path of the file.
+   * @exception IOException
+   *              If writing the file failed.
+   */
+  public void saveAttributeMemo(String file) throws IOException {
+    try (OutputStream out = Files.newOutputStream(Paths.get(Functions.requireNonNull("file", file)))) {
+      attributeMemo.save(out);
+    }
+  }
+
+  /**
+   * Sets the maximal number of objects whose immutable attributes, e.g. CKA_CLASS, CKA_KEY_TYPE
+   * and CKA_EC_PARAMS, are cached. The cache is shared by all sessions of this module.
+   *
+   * @param maxObjects
+   *          The maximal number of objects. 0 to disable the cache. Default is 10000.
+   */
+  public void setAttributeCacheSize(int maxObjects) {
+    attributeCache.setMaxObjects(maxObjects);
   }
 
   /**
@@ -211,6 +331,7 @@ public class PKCS11Module {
    *
    */
   public void finalize(Object args) throws PKCS11Exception {
+    attributeCache.clear();
     pkcs11.C_Finalize(args);
   }
 
@@ -264,19 +385,39 @@ public class PKCS11Module {
   }
 
   long ckkGenericToVendor(long genericCode) {
-    return withVendorCodeMap ? ckkGenericToVendorMap.getOrDefault(genericCode, genericCode) : genericCode;
+    if (!withVendorCodeMap) {
+      return genericCode;
+    }
+
+    Long code = ckkGenericToVendorMap.get(genericCode);
+    return code == null ? genericCode : code;
   }
 
   long ckkVendorToGeneric(long vendorCode) {
-    return withVendorCodeMap ? ckkVendorToGenericMap.getOrDefault(vendorCode, vendorCode) : vendorCode;
+    if (!withVendorCodeMap) {
+      return vendorCode;
+    }
+
+    Long code = ckkVendorToGenericMap.get(vendorCode);
+    return code == null ? vendorCode : code;
   }
 
   long ckmGenericToVendor(long genericCode) {
-    return withVendorCodeMap ? ckmGenericToVendorMap.getOrDefault(genericCode, genericCode) : genericCode;
+    if (!withVendorCodeMap) {
+      return genericCode;
+    }
+
+    Long code = ckmGenericToVendorMap.get(genericCode);
+    return code == null ? genericCode : code;
   }
 
   long ckmVendorToGeneric(long vendorCode) {
-    return withVendorCodeMap ? ckmVendorToGenericMap.getOrDefault(vendorCode, vendorCode) : vendorCode;
+    if (!withVendorCodeMap) {
+      return vendorCode;
+    }
+
+    Long code = ckmVendorToGenericMap.get(vendorCode);
+    return code == null ? vendorCode : code;
   }
 
   /**
@@ -517,12 +658,12 @@ public class PKCS11Module {
               throw new IllegalStateException("Unknown name in vendorcode block: " + name);
             }
 
-            for (Map.Entry<Long, Long> m : ckkGenericToVendorMap.entrySet()) {
-              ckkVendorToGenericMap.put(m.getValue(), m.getKey());
+            for (long genericCode : ckkGenericToVendorMap.keys()) {
+              ckkVendorToGenericMap.put(ckkGenericToVendorMap.get(genericCode), genericCode);
             }
 
-            for (Map.Entry<Long, Long> m : ckmGenericToVendorMap.entrySet()) {
-              ckmVendorToGenericMap.put(m.getValue(), m.getKey());
+            for (long genericCode : ckmGenericToVendorMap.keys()) {
+              ckmVendorToGenericMap.put(ckmGenericToVendorMap.get(genericCode), genericCode);
             }
           } // end for
         } // end while
@@ -534,6 +675,70 @@ public class PKCS11Module {
     withVendorCodeMap = !ckmGenericToVendorMap.isEmpty() || !ckkGenericToVendorMap.isEmpty();
   }
 
+  /**
+   * Listener notified when an object is created, modified or destroyed via a {@link Session} of
+   * this module. The listener is called in the thread of the session, directly after the
+   * operation succeeded, and must neither block nor throw any exception.
+   */
+  public interface ObjectListener {
+
+    void objectCreated(Session session, long objectHandle);
+
+    void objectModified(Session session, long objectHandle);
+
+    void objectDestroyed(Session session, long objectHandle);
+
+  } // interface ObjectListener
+
+  /**
+   * Detection state of a non-standard behaviour of the underlying PKCS#11 library, e.g. returning
+   * a DER-encoded ECDSA signature instead of r || s. The state is detected once, by the first
+   * operation which can tell, and never changes afterwards. Reading the state needs no lock.
+   */
+  static final class Quirk {
+
+    private static final int UNKNOWN = 0;
+
+    private static final int NEEDED = 1;
+
+    private static final int NOT_NEEDED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Quirk> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Quirk.class, "state");
+
+    private volatile int state = UNKNOWN;
+
+    /**
+     * Returns whether the fix may be needed, i.e. it is either needed or not detected yet.
+     *
+     * @return false if the fix is known to be not needed, true otherwise.
+     */
+    boolean mayBeNeeded() {
+      return state != NOT_NEEDED;
+    }
+
+    /**
+     * Returns whether the state has been detected.
+     *
+     * @return true if the state has been detected, false otherwise.
+     */
+    boolean isDetected() {
+      return state != UNKNOWN;
+    }
+
+    /**
+     * Records the detected state. Only the first call has an effect.
+     *
+     * @param needed whether the fix is needed.
+     */
+    void detected(boolean needed) {
+      if (state == UNKNOWN) {
+        STATE.compareAndSet(this, UNKNOWN, needed ? NEEDED : NOT_NEEDED);
+      }
+    }
+
+  } // class Quirk
+
   private static final class VendorCodeConfBlock {
     private List<String> modulePaths;
     private List<String> manufacturerIDs;
@@ -0,0 +1,55 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.security.SecureRandomSpi;
+
+/**
+ * {@link SecureRandomSpi} backed by a {@link RandomPool}, i.e. by the random number generator of
+ * the token. Failures of the token are thrown as {@link UncheckedPKCS11Exception}.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class PKCS11SecureRandomSpi extends SecureRandomSpi {
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient RandomPool randomPool;
+
+  public PKCS11SecureRandomSpi(RandomPool randomPool) {
+    this.randomPool = Functions.requireNonNull("randomPool", randomPool);
+  }
+
+  @Override
+  protected void engineSetSeed(byte[] seed) {
+    try {
+      randomPool.seed(seed);
+    } catch (PKCS11Exception e) {
+      if (e.getErrorCode() != PKCS11Constants.CKR_RANDOM_SEED_NOT_SUPPORTED
+          && e.getErrorCode() != PKCS11Constants.CKR_RANDOM_NO_RNG) {
+        throw new UncheckedPKCS11Exception(e);
+      }
+      // the seed supplements the randomness, ignore it if the token does not accept seeds.
+    }
+  }
+
+  @Override
+  protected void engineNextBytes(byte[] bytes) {
+    try {
+      randomPool.nextBytes(bytes);
+    } catch (PKCS11Exception e) {
+      throw new UncheckedPKCS11Exception(e);
+    }
+  }
+
+  @Override
+  protected byte[] engineGenerateSeed(int numBytes) {
+    try {
+      return randomPool.nextBytes(numBytes);
+    } catch (PKCS11Exception e) {
+      throw new UncheckedPKCS11Exception(e);
+    }
+  }
+
+}
@@ -0,0 +1,143 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Mapping of a hash-and-sign mechanism to the hash algorithm, computed in software, and the raw
+ * signature mechanism, executed by the token on the hash value, e.g. CKM_ECDSA_SHA256 to SHA-256
+ * and CKM_ECDSA. For CKM_SHA*_RSA_PKCS, the hash value is encoded as DigestInfo for CKM_RSA_PKCS.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PreHash {
+
+  private static final LongMap<PreHash> MAPPINGS = new LongMap<>(64);
+
+  // DER-encoded DigestInfo without the hash value, see RFC 8017.
+  private static final byte[] SHA1_PREFIX = Functions.decodeHex("3021300906052b0e03021a05000414");
+
+  private static final byte[] SHA224_PREFIX = Functions.decodeHex("302d300d06096086480165030402040500041c");
+
+  private static final byte[] SHA256_PREFIX = Functions.decodeHex("3031300d060960864801650304020105000420");
+
+  private static final byte[] SHA384_PREFIX = Functions.decodeHex("3041300d060960864801650304020205000430");
+
+  private static final byte[] SHA512_PREFIX = Functions.decodeHex("3051300d060960864801650304020305000440");
+
+  private static final byte[] SHA3_224_PREFIX = Functions.decodeHex("302d300d06096086480165030402070500041c");
+
+  private static final byte[] SHA3_256_PREFIX = Functions.decodeHex("3031300d060960864801650304020805000420");
+
+  private static final byte[] SHA3_384_PREFIX = Functions.decodeHex("3041300d060960864801650304020905000430");
+
+  private static final byte[] SHA3_512_PREFIX = Functions.decodeHex("3051300d060960864801650304020a05000440");
+
+  static {
+    add(CKM_SHA1_RSA_PKCS, "SHA-1", CKM_RSA_PKCS, SHA1_PREFIX);
+    add(CKM_SHA224_RSA_PKCS, "SHA-224", CKM_RSA_PKCS, SHA224_PREFIX);
+    add(CKM_SHA256_RSA_PKCS, "SHA-256", CKM_RSA_PKCS, SHA256_PREFIX);
+    add(CKM_SHA384_RSA_PKCS, "SHA-384", CKM_RSA_PKCS, SHA384_PREFIX);
+    add(CKM_SHA512_RSA_PKCS, "SHA-512", CKM_RSA_PKCS, SHA512_PREFIX);
+    add(CKM_SHA3_224_RSA_PKCS, "SHA3-224", CKM_RSA_PKCS, SHA3_224_PREFIX);
+    add(CKM_SHA3_256_RSA_PKCS, "SHA3-256", CKM_RSA_PKCS, SHA3_256_PREFIX);
+    add(CKM_SHA3_384_RSA_PKCS, "SHA3-384", CKM_RSA_PKCS, SHA3_384_PREFIX);
+    add(CKM_SHA3_512_RSA_PKCS, "SHA3-512", CKM_RSA_PKCS, SHA3_512_PREFIX);
+
+    // the CK_RSA_PKCS_PSS_PARAMS are kept, they name the same hash algorithm.
+    add(CKM_SHA1_RSA_PKCS_PSS, "SHA-1", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA224_RSA_PKCS_PSS, "SHA-224", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA256_RSA_PKCS_PSS, "SHA-256", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA384_RSA_PKCS_PSS, "SHA-384", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA512_RSA_PKCS_PSS, "SHA-512", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA3_224_RSA_PKCS_PSS, "SHA3-224", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA3_256_RSA_PKCS_PSS, "SHA3-256", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA3_384_RSA_PKCS_PSS, "SHA3-384", CKM_RSA_PKCS_PSS, null);
+    add(CKM_SHA3_512_RSA_PKCS_PSS, "SHA3-512", CKM_RSA_PKCS_PSS, null);
+
+    add(CKM_ECDSA_SHA1, "SHA-1", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA224, "SHA-224", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA256, "SHA-256", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA384, "SHA-384", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA512, "SHA-512", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA3_224, "SHA3-224", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA3_256, "SHA3-256", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA3_384, "SHA3-384", CKM_ECDSA, null);
+    add(CKM_ECDSA_SHA3_512, "SHA3-512", CKM_ECDSA, null);
+
+    add(CKM_DSA_SHA1, "SHA-1", CKM_DSA, null);
+    add(CKM_DSA_SHA224, "SHA-224", CKM_DSA, null);
+    add(CKM_DSA_SHA256, "SHA-256", CKM_DSA, null);
+    add(CKM_DSA_SHA384, "SHA-384", CKM_DSA, null);
+    add(CKM_DSA_SHA512, "SHA-512", CKM_DSA, null);
+    add(CKM_DSA_SHA3_224, "SHA3-224", CKM_DSA, null);
+    add(CKM_DSA_SHA3_256, "SHA3-256", CKM_DSA, null);
+    add(CKM_DSA_SHA3_384, "SHA3-384", CKM_DSA, null);
+    add(CKM_DSA_SHA3_512, "SHA3-512", CKM_DSA, null);
+  }
+
+  private final String hashAlgorithm;
+
+  private final long rawMechanism;
+
+  private final byte[] digestInfoPrefix;
+
+  private PreHash(String hashAlgorithm, long rawMechanism, byte[] digestInfoPrefix) {
+    this.hashAlgorithm = hashAlgorithm;
+    this.rawMechanism = rawMechanism;
+    this.digestInfoPrefix = digestInfoPrefix;
+  }
+
+  private static void add(long mechanism, String hashAlgorithm, long rawMechanism, byte[] digestInfoPrefix) {
+    MAPPINGS.put(mechanism, new PreHash(hashAlgorithm, rawMechanism, digestInfoPrefix));
+  }
+
+  /**
+   * Returns the mapping of the given mechanism.
+   *
+   * @return the mapping, or null if the mechanism is not a hash-and-sign mechanism.
+   */
+  static PreHash of(Mechanism mechanism) {
+    return MAPPINGS.get(mechanism.getMechanismCode());
+  }
+
+  /**
+   * Returns the raw mechanism, with the parameters of the given hash-and-sign mechanism.
+   */
+  Mechanism rawMechanism(Mechanism mechanism) {
+    return new Mechanism(rawMechanism, mechanism.getParameters());
+  }
+
+  /**
+   * Returns a new instance of the hash algorithm.
+   *
+   * @return the message digest, or null if the Java runtime does not provide the algorithm.
+   */
+  MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(hashAlgorithm);
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the input of the raw mechanism for the given hash value.
+   */
+  byte[] toBeSigned(byte[] hashValue) {
+    if (digestInfoPrefix == null) {
+      return hashValue;
+    }
+
+    byte[] digestInfo = new byte[digestInfoPrefix.length + hashValue.length];
+    System.arraycopy(digestInfoPrefix, 0, digestInfo, 0, digestInfoPrefix.length);
+    System.arraycopy(hashValue, 0, digestInfo, digestInfoPrefix.length, hashValue.length);
+    return digestInfo;
+  }
+
+}
@@ -0,0 +1,310 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Buffer of random bytes generated by the token. The random bytes are fetched via
+ * C_GenerateRandom in blocks of {@link #getBlockSize()} bytes by a background thread, which keeps
+ * up to {@link #getPrefetchBlocks()} blocks ready. Small requests, e.g. for nonces and IDs, are
+ * served from the current block without a call to the token and without locking: every request
+ * claims its own range of the block with an atomic increment, so no byte is handed out twice.
+ * Requests larger than a block are fetched from the token directly.
+ * <pre><code>
+ *   RandomPool randomPool = new RandomPool(pool);
+ *   byte[] nonce = new byte[12];
+ *   randomPool.nextBytes(nonce);
+ *   SecureRandom random = randomPool.asSecureRandom();
+ * </code></pre>
+ * If no prefetched block is ready, the requesting thread fetches the next block itself. This class
+ * is thread-safe.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class RandomPool implements AutoCloseable {
+
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  public static final int DEFAULT_PREFETCH_BLOCKS = 4;
+
+  private static final class Block {
+
+    private final byte[] bytes;
+
+    /**
+     * Start of the unclaimed bytes. May grow beyond the length of the block, if requests do not
+     * fit into the rest of the block.
+     */
+    private final AtomicInteger position = new AtomicInteger();
+
+    /**
+     * The number of seedings before the bytes have been fetched.
+     */
+    private final long seedGeneration;
+
+    Block(byte[] bytes, long seedGeneration) {
+      this.bytes = bytes;
+      this.seedGeneration = seedGeneration;
+    }
+
+  } // class Block
+
+  private final SessionPool pool;
+
+  private final int blockSize;
+
+  private final int prefetchBlocks;
+
+  private final ExecutorService executor;
+
+  private final ConcurrentLinkedQueue<Block> readyBlocks = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger readyCount = new AtomicInteger();
+
+  private final AtomicReference<Block> currentBlock = new AtomicReference<>();
+
+  private final AtomicBoolean refilling = new AtomicBoolean();
+
+  /**
+   * Incremented by every {@link #seed(byte[])}. Blocks of an older generation may have been
+   * fetched before the seeding and are not handed out.
+   */
+  private final AtomicLong seedGeneration = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Constructor with the block size {@link #DEFAULT_BLOCK_SIZE} and
+   * {@link #DEFAULT_PREFETCH_BLOCKS} prefetched blocks.
+   *
+   * @param pool The pool providing the sessions. It is not closed by {@link #close()}.
+   */
+  public RandomPool(SessionPool pool) {
+    this(pool, DEFAULT_BLOCK_SIZE, DEFAULT_PREFETCH_BLOCKS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool           The pool providing the sessions. It is not closed by {@link #close()}.
+   * @param blockSize      The number of bytes fetched from the token with one call.
+   * @param prefetchBlocks The number of blocks kept ready, 0 to disable the background thread.
+   */
+  public RandomPool(SessionPool pool, int blockSize, int prefetchBlocks) {
+    this.pool = Functions.requireNonNull("pool", pool);
+    this.blockSize = Functions.requireRange("blockSize", blockSize, 16, 1024 * 1024);
+    this.prefetchBlocks = Functions.requireRange("prefetchBlocks", prefetchBlocks, 0, 1024);
+
+    if (prefetchBlocks == 0) {
+      this.executor = null;
+    } else {
+      String name = "pkcs11-random-" + pool.getToken().getTokenID();
+      this.executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, name);
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduleRefill();
+    }
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getPrefetchBlocks() {
+    return prefetchBlocks;
+  }
+
+  /**
+   * Fills the given array with random bytes of the token.
+   *
+   * @param bytes The array to fill.
+   * @throws PKCS11Exception If generating the random bytes failed.
+   */
+  public void nextBytes(byte[] bytes) throws PKCS11Exception {
+    Functions.requireNonNull("bytes", bytes);
+    if (closed) {
+      throw new IllegalStateException("RandomPool is closed");
+    }
+
+    int n = bytes.length;
+    if (n == 0) {
+      return;
+    } else if (n > blockSize) {
+      fetch(bytes);
+      return;
+    }
+
+    while (true) {
+      Block block = currentBlock.get();
+      if (block != null && block.seedGeneration == seedGeneration.get()) {
+        int start = block.position.getAndAdd(n);
+        if (start >= 0 && start <= block.bytes.length - n) {
+          System.arraycopy(block.bytes, start, bytes, 0, n);
+          return;
+        }
+      }
+
+      // the current block is exhausted.
+      Block next = nextBlock();
+      if (!currentBlock.compareAndSet(block, next)) {
+        // another thread has installed a new block, keep this one for later.
+        readyBlocks.offer(next);
+        readyCount.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Returns random bytes of the token.
+   *
+   * @param numBytes The number of bytes.
+   * @return the random bytes.
+   * @throws PKCS11Exception If generating the random bytes failed.
+   */
+  public byte[] nextBytes(int numBytes) throws PKCS11Exception {
+    byte[] bytes = new byte[numBytes];
+    nextBytes(bytes);
+    return bytes;
+  }
+
+  /**
+   * Mixes the seed into the random number generator of the token via C_SeedRandom, and discards
+   * the buffered random bytes, so that all following bytes are generated after the seeding.
+   *
+   * @param seed The seed.
+   * @throws PKCS11Exception If seeding failed, e.g. with CKR_RANDOM_SEED_NOT_SUPPORTED.
+   */
+  public void seed(byte[] seed) throws PKCS11Exception {
+    Functions.requireNonNull("seed", seed);
+    Session session = pool.borrowSession(false);
+    try {
+      session.seedRandom(seed);
+    } finally {
+      pool.returnSession(session);
+    }
+
+    // blocks being fetched right now are dropped when they are used.
+    seedGeneration.incrementAndGet();
+    discardBuffered();
+    scheduleRefill();
+  }
+
+  /**
+   * Returns a {@link SecureRandom} backed by this pool.
+   *
+   * @return the SecureRandom.
+   */
+  public SecureRandom asSecureRandom() {
+    return new SecureRandom(new PKCS11SecureRandomSpi(this), null) {
+    };
+  }
+
+  /**
+   * Stops the background thread and discards the buffered random bytes.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    discardBuffered();
+  }
+
+  @Override
+  public String toString() {
+    return "RandomPool: block size " + blockSize + ", " + readyCount.get() + " of " + prefetchBlocks
+        + " blocks ready";
+  }
+
+  /**
+   * Takes the next prefetched block, or fetches one if none is ready.
+   */
+  private Block nextBlock() throws PKCS11Exception {
+    long generation = seedGeneration.get();
+    Block block;
+    while ((block = readyBlocks.poll()) != null) {
+      readyCount.decrementAndGet();
+      if (block.seedGeneration == generation) {
+        break;
+      }
+      // fetched before the last seeding
+      Arrays.fill(block.bytes, (byte) 0);
+    }
+    scheduleRefill();
+
+    if (block == null) {
+      byte[] bytes = new byte[blockSize];
+      fetch(bytes);
+      block = new Block(bytes, generation);
+    }
+    return block;
+  }
+
+  private void scheduleRefill() {
+    if (executor == null || closed || readyCount.get() >= prefetchBlocks
+        || !refilling.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      executor.execute(this::refill);
+    } catch (RejectedExecutionException e) {
+      refilling.set(false);
+    }
+  }
+
+  private void refill() {
+    try {
+      while (!closed && readyCount.get() < prefetchBlocks) {
+        long generation = seedGeneration.get();
+        byte[] bytes = new byte[blockSize];
+        fetch(bytes);
+        readyBlocks.offer(new Block(bytes, generation));
+        readyCount.incrementAndGet();
+      }
+    } catch (PKCS11Exception e) {
+      // the requesting threads fetch the blocks themselves and get the exception.
+    } finally {
+      refilling.set(false);
+    }
+  }
+
+  private void fetch(byte[] bytes) throws PKCS11Exception {
+    Session session = pool.borrowSession(false);
+    try {
+      session.generateRandom(bytes);
+    } finally {
+      pool.returnSession(session);
+    }
+  }
+
+  private void discardBuffered() {
+    currentBlock.set(null);
+    Block block;
+    while ((block = readyBlocks.poll()) != null) {
+      readyCount.decrementAndGet();
+      Arrays.fill(block.bytes, (byte) 0);
+    }
+  }
+
+}
@@ -14,7 +14,11 @@ import org.xipki.pkcs11.wrapper.params.CkMessageParams;
 import org.xipki.pkcs11.wrapper.params.CkParams;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /**
  * Session objects are used to perform cryptographic operations on a token. The application gets a
@@ -93,7 +97,32 @@ public class Session {
 
   private long signKeyHandle;
 
-  private final LruCache<Long, byte[]> handleEcParamsMap = new LruCache<>(1000);
+  /**
+   * Handles of the objects created in this session which may be session objects. Their cached
+   * attributes are removed when this session is closed.
+   */
+  private Set<Long> sessionObjectHandles;
+
+  /**
+   * Pool of the arrays used to pass input data to the native layer, null if disabled.
+   */
+  private ScratchBuffers scratchBuffers;
+
+  /**
+   * True, if hash-and-sign mechanisms are executed as hashing in software plus the raw mechanism
+   * on the token.
+   */
+  private boolean preHashSigning;
+
+  /**
+   * The mapping of the current signing operation, null if it is not pre-hashed.
+   */
+  private PreHash signPreHash;
+
+  /**
+   * The message digest of the current pre-hashed signing operation.
+   */
+  private MessageDigest signDigest;
 
   /**
    * Constructor taking the token and the session handle.
@@ -102,11 +131,23 @@ public class Session {
    * @param sessionHandle The session handle to perform the operations with.
    */
   protected Session(Token token, long sessionHandle) {
+    this(token, sessionHandle, null);
+  }
+
+  /**
+   * Constructor taking the token, the session handle and whether it is a R/W session.
+   *
+   * @param token         The token this session operates with.
+   * @param sessionHandle The session handle to perform the operations with.
+   * @param rwSession     True for a R/W session, false for a R/O session, null if unknown.
+   */
+  protected Session(Token token, long sessionHandle, Boolean rwSession) {
     this.token = Functions.requireNonNull("token", token);
     this.module = token.getSlot().getModule();
     this.pkcs11 = module.getPKCS11Module();
     this.sessionHandle = sessionHandle;
     this.useUtf8 = token.isUseUtf8Encoding();
+    this.rwSession = rwSession;
   }
 
   /**
@@ -139,7 +180,15 @@ public class Session {
    * @throws PKCS11Exception If closing the session failed.
    */
   public void closeSession() throws PKCS11Exception {
-    this.handleEcParamsMap.evictAll();
+    if (sessionObjectHandles != null) {
+      AttributeCache cache = module.getAttributeCache();
+      long slotId = token.getTokenID();
+      for (Long handle : sessionObjectHandles) {
+        cache.invalidate(slotId, handle);
+      }
+      sessionObjectHandles = null;
+    }
+
     pkcs11.C_CloseSession(sessionHandle);
   }
 
@@ -297,7 +346,7 @@ public class Session {
    *                         created on the token.
    */
   public long createObject(AttributeVector template) throws PKCS11Exception {
-    return pkcs11.C_CreateObject(sessionHandle, toOutCKAttributes(template), useUtf8);
+    return objectCreated(pkcs11.C_CreateObject(sessionHandle, toOutCKAttributes(template), useUtf8), template);
   }
 
   /**
@@ -314,7 +363,8 @@ public class Session {
    * @throws PKCS11Exception If copying the object fails for some reason.
    */
   public long copyObject(long sourceObjectHandle, AttributeVector template) throws PKCS11Exception {
-    return pkcs11.C_CopyObject(sessionHandle, sourceObjectHandle, toOutCKAttributes(template), useUtf8);
+    return objectCreated(
+        pkcs11.C_CopyObject(sessionHandle, sourceObjectHandle, toOutCKAttributes(template), useUtf8), template);
   }
 
   /**
@@ -332,7 +382,12 @@ public class Session {
    * @throws PKCS11Exception If updateing the attributes fails. All or no attributes are updated.
    */
   public void setAttributeValues(long objectToUpdateHandle, AttributeVector template) throws PKCS11Exception {
-    pkcs11.C_SetAttributeValue(sessionHandle, objectToUpdateHandle, toOutCKAttributes(template), useUtf8);
+    try {
+      pkcs11.C_SetAttributeValue(sessionHandle, objectToUpdateHandle, toOutCKAttributes(template), useUtf8);
+    } finally {
+      module.getAttributeCache().invalidate(token.getTokenID(), objectToUpdateHandle);
+    }
+    module.objectModified(this, objectToUpdateHandle);
   }
 
   /**
@@ -344,7 +399,15 @@ public class Session {
    * @throws PKCS11Exception If the object could not be destroyed.
    */
   public void destroyObject(long objectHandle) throws PKCS11Exception {
-    pkcs11.C_DestroyObject(sessionHandle, objectHandle);
+    try {
+      pkcs11.C_DestroyObject(sessionHandle, objectHandle);
+    } finally {
+      module.getAttributeCache().invalidate(token.getTokenID(), objectHandle);
+      if (sessionObjectHandles != null) {
+        sessionObjectHandles.remove(objectHandle);
+      }
+    }
+    module.objectDestroyed(this, objectHandle);
   }
 
   /**
@@ -401,6 +464,81 @@ public class Session {
     pkcs11.C_FindObjectsFinal(sessionHandle);
   }
 
+  /**
+   * Starts a find operation and returns an iterator over the handles of the matching objects. The
+   * handles are fetched in batches of growing size, starting with
+   * {@link ObjectIterator#DEFAULT_INITIAL_BATCH_SIZE} up to {@link ObjectIterator#DEFAULT_MAX_BATCH_SIZE}.
+   * The iterator must be closed if it is not consumed completely.
+   *
+   * @param template       The search template, may be null to find all objects.
+   * @param attributeTypes The types of the attributes to read for every found object. May be empty.
+   * @return the iterator.
+   * @throws PKCS11Exception If initializing the find operation fails.
+   */
+  public ObjectIterator iterateObjects(AttributeVector template, long... attributeTypes) throws PKCS11Exception {
+    return new ObjectIterator(this, template, ObjectIterator.DEFAULT_INITIAL_BATCH_SIZE,
+        ObjectIterator.DEFAULT_MAX_BATCH_SIZE, attributeTypes);
+  }
+
+  /**
+   * Starts a find operation and returns an iterator over the handles of the matching objects. The
+   * iterator must be closed if it is not consumed completely.
+   *
+   * @param template         The search template, may be null to find all objects.
+   * @param initialBatchSize The number of handles fetched by the first C_FindObjects call.
+   * @param maxBatchSize     The maximal number of handles fetched by one C_FindObjects call.
+   * @param attributeTypes   The types of the attributes to read for every found object. May be empty.
+   * @return the iterator.
+   * @throws PKCS11Exception If initializing the find operation fails.
+   */
+  public ObjectIterator iterateObjects(AttributeVector template, int initialBatchSize, int maxBatchSize,
+                                       long... attributeTypes) throws PKCS11Exception {
+    return new ObjectIterator(this, template, initialBatchSize, maxBatchSize, attributeTypes);
+  }
+
+  /**
+   * Starts a find operation and returns the handles of the matching objects as stream. The stream
+   * must be closed, e.g. via try-with-resources, if it is not consumed completely. Errors while
+   * consuming the stream are thrown as {@link UncheckedPKCS11Exception}.
+   *
+   * @param template The search template, may be null to find all objects.
+   * @return the stream of object handles.
+   * @throws PKCS11Exception If initializing the find operation fails.
+   */
+  public LongStream streamObjects(AttributeVector template) throws PKCS11Exception {
+    ObjectIterator iterator = iterateObjects(template);
+    return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(iterator,
+        Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+        .onClose(() -> {
+          try {
+            iterator.close();
+          } catch (PKCS11Exception e) {
+            throw new UncheckedPKCS11Exception(e);
+          }
+        });
+  }
+
+  /**
+   * Finds the handles of all objects matching the given template.
+   *
+   * @param template The search template, may be null to find all objects.
+   * @return the handles of all matching objects, never null.
+   * @throws PKCS11Exception If finding the objects fails.
+   */
+  public long[] findAllObjects(AttributeVector template) throws PKCS11Exception {
+    long[] handles = new long[ObjectIterator.DEFAULT_INITIAL_BATCH_SIZE];
+    int n = 0;
+    try (ObjectIterator iterator = iterateObjects(template)) {
+      while (iterator.hasNextObject()) {
+        if (n == handles.length) {
+          handles = Arrays.copyOf(handles, n * 2);
+        }
+        handles[n++] = iterator.nextObject();
+      }
+    }
+    return n == handles.length ? handles : Arrays.copyOf(handles, n);
+  }
+
   /**
    * Initializes a new encryption operation. The application must call this method before calling
    * any other encrypt* operation. Before initializing a new operation, any currently pending
@@ -418,8 +556,91 @@ public class Session {
     pkcs11.C_EncryptInit(sessionHandle, toCkMechanism(mechanism), keyHandle, useUtf8);
   }
 
-  private static byte[] copy(byte[] bytes, int off, int len) {
-    return (off == 0 && len == bytes.length) ? bytes : Arrays.copyOfRange(bytes, off, off + len);
+  /**
+   * Enables or disables the pooling of scratch buffers. The native layer only accepts complete
+   * arrays, so input given with offset and length, or as ByteBuffer which is not backed by a
+   * matching array, is copied into a temporary array. If pooling is enabled, these arrays are
+   * reused for inputs of the same length, e.g. the chunks of a multi-part operation, and zeroized
+   * after each use. Pooling is disabled by default.
+   *
+   * @param enabled Whether to pool the scratch buffers.
+   */
+  public void setScratchBufferPooling(boolean enabled) {
+    scratchBuffers = enabled ? new ScratchBuffers() : null;
+  }
+
+  /**
+   * Enables or disables pre-hash signing. If enabled, a signing operation with a hash-and-sign
+   * mechanism, e.g. CKM_ECDSA_SHA256, CKM_SHA256_RSA_PKCS or CKM_SHA256_RSA_PKCS_PSS, hashes the
+   * data in software and lets the token sign only the hash value with the raw mechanism (CKM_ECDSA,
+   * CKM_RSA_PKCS with the DigestInfo, CKM_RSA_PKCS_PSS), so that large data are not transferred to
+   * the token. The signatures are the same. If the token or the Java runtime does not support the
+   * raw mechanism or the hash algorithm, the data are signed by the token as usual. The setting
+   * applies to operations initialized via {@link #signInit(Mechanism, long)} afterwards. Pre-hash
+   * signing is disabled by default.
+   *
+   * @param enabled Whether to hash the data in software.
+   */
+  public void setPreHashSigning(boolean enabled) {
+    preHashSigning = enabled;
+  }
+
+  public boolean isPreHashSigning() {
+    return preHashSigning;
+  }
+
+  private byte[] copy(byte[] bytes, int off, int len) {
+    if (off == 0 && len == bytes.length) {
+      return bytes;
+    }
+
+    byte[] ret = newScratch(len);
+    System.arraycopy(bytes, off, ret, 0, len);
+    return ret;
+  }
+
+  private byte[] copy(ByteBuffer in) {
+    Functions.requireNonNull("in", in);
+    int len = in.remaining();
+    if (in.hasArray()) {
+      return copy(in.array(), in.arrayOffset() + in.position(), len);
+    }
+
+    byte[] ret = newScratch(len);
+    int pos = in.position();
+    in.get(ret);
+    in.position(pos);
+    return ret;
+  }
+
+  private byte[] newScratch(int len) {
+    return (scratchBuffers == null) ? new byte[len] : scratchBuffers.take(len);
+  }
+
+  /**
+   * Returns the array created by copy() to the pool.
+   */
+  private void release(byte[] copied, byte[] in) {
+    if (scratchBuffers != null && copied != in) {
+      scratchBuffers.release(copied);
+    }
+  }
+
+  private void release(byte[] copied, ByteBuffer in) {
+    release(copied, in.hasArray() ? in.array() : null);
+  }
+
+  private static int copyResToBuffer(byte[] res, ByteBuffer out) throws PKCS11Exception {
+    Functions.requireNonNull("out", out);
+    int resLen = res == null ? 0 : res.length;
+
+    if (resLen > out.remaining()) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+    } else if (resLen > 0) {
+      out.put(res);
+    }
+
+    return resLen;
   }
 
   private static int copyResToBuffer(byte[] res, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
@@ -435,6 +656,20 @@ public class Session {
     return resLen;
   }
 
+  /**
+   * Encrypts the given data with the key and mechanism given to the encryptInit method. This method
+   * finalizes the current encryption operation; i.e. the application need (and should) not call
+   * encryptFinal() after this call. For encrypting multiple pices of data use encryptUpdate and
+   * encryptFinal.
+   *
+   * @param in the to-be-encrypted data
+   * @return the encrypted data
+   * @throws PKCS11Exception If encrypting failed.
+   */
+  public byte[] encrypt(byte[] in) throws PKCS11Exception {
+    return pkcs11.C_Encrypt(sessionHandle, Functions.requireNonNull("in", in));
+  }
+
   /**
    * Encrypts the given data with the key and mechanism given to the encryptInit method. This method
    * finalizes the current encryption operation; i.e. the application need (and should) not call
@@ -469,10 +704,37 @@ public class Session {
    */
   public int encrypt(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_Encrypt(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_Encrypt(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * Encrypts the remaining data of the input buffer with the key and mechanism given to the
+   * encryptInit method, and finalizes the current encryption operation.
+   *
+   * @param in  buffer containing the to-be-encrypted data, its position is set to its limit.
+   * @param out buffer for the encrypted data, its position is advanced by the returned length.
+   * @return the length of encrypted data
+   * @throws PKCS11Exception If encrypting failed.
+   */
+  public int encrypt(ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    byte[] res;
+    try {
+      res = pkcs11.C_Encrypt(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * This method can be used to encrypt multiple pieces of data; e.g. buffer-size pieces when
    * reading the data from a stream. Encrypts the given data with the key and mechanism given to the
@@ -507,10 +769,36 @@ public class Session {
    */
   public int encryptUpdate(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_EncryptUpdate(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_EncryptUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * Encrypts the remaining data of the input buffer as part of a multi-part encryption operation.
+   *
+   * @param in  buffer containing the to-be-encrypted data, its position is set to its limit.
+   * @param out buffer for the encrypted data, its position is advanced by the returned length.
+   * @return the length of encrypted data for this update
+   * @throws PKCS11Exception If encrypting the data failed.
+   */
+  public int encryptUpdate(ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    byte[] res;
+    try {
+      res = pkcs11.C_EncryptUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * This method finalizes an encrpytion operation and returns the final result. Use this method, if
    * you fed in the data using encryptUpdate. If you used the encrypt(byte[]) method, you need not
@@ -527,6 +815,29 @@ public class Session {
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * This method finalizes an encrpytion operation and returns the final result, which may be of any
+   * size, e.g. the tag of AES-GCM.
+   *
+   * @return the last part of the encrypted data
+   * @throws PKCS11Exception If calculating the final result failed.
+   */
+  public byte[] encryptFinal() throws PKCS11Exception {
+    byte[] res = pkcs11.C_EncryptFinal(sessionHandle);
+    return res == null ? new byte[0] : res;
+  }
+
+  /**
+   * This method finalizes an encrpytion operation and writes the final result to the buffer.
+   *
+   * @param out buffer for the encrypted data, its position is advanced by the returned length.
+   * @return the length of the last part of the encrypted data
+   * @throws PKCS11Exception If calculating the final result failed.
+   */
+  public int encryptFinal(ByteBuffer out) throws PKCS11Exception {
+    return copyResToBuffer(pkcs11.C_EncryptFinal(sessionHandle), out);
+  }
+
   /**
    * Initializes a new message encryption operation. The application must call this method before calling
    * any other encryptMessage* operation. Before initializing a new operation, any currently pending
@@ -566,6 +877,30 @@ public class Session {
     return rv;
   }
 
+  /**
+   * Encrypts the remaining data of the input buffer with the key and mechanism given to the
+   * MessageEncryptInit method.
+   *
+   * @param params         The parameter object
+   * @param associatedData The associated Data for AEAS Mechanisms
+   * @param plaintext      The plaintext getting encrypted, its position is set to its limit.
+   * @param out            buffer for the ciphertext, its position is advanced by the returned length.
+   * @return the length of the ciphertext
+   * @throws PKCS11Exception If encrypting failed.
+   */
+  public int encryptMessage(CkParams params, byte[] associatedData, ByteBuffer plaintext, ByteBuffer out)
+      throws PKCS11Exception {
+    byte[] inBytes = copy(plaintext);
+    byte[] res;
+    try {
+      res = encryptMessage(params, associatedData, inBytes);
+    } finally {
+      release(inBytes, plaintext);
+    }
+    plaintext.position(plaintext.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * Starts a multi-part message-encryption operation. Can only be called when an encryption operation has been
    * initialized before.
@@ -625,6 +960,20 @@ public class Session {
     pkcs11.C_DecryptInit(sessionHandle, toCkMechanism(mechanism), keyHandle, useUtf8);
   }
 
+  /**
+   * Decrypts the given data with the key and mechanism given to the decryptInit method. This method
+   * finalizes the current decryption operation; i.e. the application need (and should) not call
+   * decryptFinal() after this call. For decrypting multiple pieces of data use decryptUpdate and
+   * decryptFinal.
+   *
+   * @param in the to-be-decrypted data
+   * @return the decrypted data
+   * @throws PKCS11Exception If decrypting failed.
+   */
+  public byte[] decrypt(byte[] in) throws PKCS11Exception {
+    return pkcs11.C_Decrypt(sessionHandle, Functions.requireNonNull("in", in));
+  }
+
   /**
    * Decrypts the given data with the key and mechanism given to the decryptInit method. This method
    * finalizes the current decryption operation; i.e. the application need (and should) not call
@@ -659,10 +1008,37 @@ public class Session {
    */
   public int decrypt(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_Decrypt(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_Decrypt(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * Decrypts the remaining data of the input buffer with the key and mechanism given to the
+   * decryptInit method, and finalizes the current decryption operation.
+   *
+   * @param in  buffer containing the to-be-decrypted data, its position is set to its limit.
+   * @param out buffer for the decrypted data, its position is advanced by the returned length.
+   * @return the length of decrypted data
+   * @throws PKCS11Exception If decrypting failed.
+   */
+  public int decrypt(ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    byte[] res;
+    try {
+      res = pkcs11.C_Decrypt(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * This method can be used to decrypt multiple pieces of data; e.g. buffer-size pieces when
    * reading the data from a stream. Decrypts the given data with the key and mechanism given to the
@@ -697,10 +1073,36 @@ public class Session {
    */
   public int decryptUpdate(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_DecryptUpdate(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_DecryptUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * Decrypts the remaining data of the input buffer as part of a multi-part decryption operation.
+   *
+   * @param in  buffer containing the to-be-decrypted data, its position is set to its limit.
+   * @param out buffer for the decrypted data, its position is advanced by the returned length.
+   * @return the length of decrypted data for this update
+   * @throws PKCS11Exception If decrypting the data failed.
+   */
+  public int decryptUpdate(ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    byte[] res;
+    try {
+      res = pkcs11.C_DecryptUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * This method finalizes a decryption operation and returns the final result. Use this method, if
    * you fed in the data using decryptUpdate. If you used the decrypt(byte[]) method, you need not
@@ -718,6 +1120,29 @@ public class Session {
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * This method finalizes a decryption operation and returns the final result, which may be of any
+   * size, e.g. the complete plaintext of AES-GCM.
+   *
+   * @return the last part of the decrypted data
+   * @throws PKCS11Exception If calculating the final result failed.
+   */
+  public byte[] decryptFinal() throws PKCS11Exception {
+    byte[] res = pkcs11.C_DecryptFinal(sessionHandle);
+    return res == null ? new byte[0] : res;
+  }
+
+  /**
+   * This method finalizes a decryption operation and writes the final result to the buffer.
+   *
+   * @param out buffer for the decrypted data, its position is advanced by the returned length.
+   * @return the length of the last part of the decrypted data
+   * @throws PKCS11Exception If calculating the final result failed.
+   */
+  public int decryptFinal(ByteBuffer out) throws PKCS11Exception {
+    return copyResToBuffer(pkcs11.C_DecryptFinal(sessionHandle), out);
+  }
+
   /**
    * Initializes a new message decryption operation. The application must call this method before calling
    * any other decryptMessage* operation. Before initializing a new operation, any currently pending
@@ -750,6 +1175,30 @@ public class Session {
     return pkcs11.C_DecryptMessage(sessionHandle, toCkParameters(params), associatedData, plaintext, useUtf8);
   }
 
+  /**
+   * Decrypts the remaining data of the input buffer with the key and mechanism given to the
+   * MessageDecryptInit method.
+   *
+   * @param params         The parameter object
+   * @param associatedData The associated Data for AEAS Mechanisms
+   * @param ciphertext     The ciphertext getting decrypted, its position is set to its limit.
+   * @param out            buffer for the plaintext, its position is advanced by the returned length.
+   * @return the length of the plaintext
+   * @throws PKCS11Exception If decrypting failed.
+   */
+  public int decryptMessage(CkParams params, byte[] associatedData, ByteBuffer ciphertext, ByteBuffer out)
+      throws PKCS11Exception {
+    byte[] inBytes = copy(ciphertext);
+    byte[] res;
+    try {
+      res = decryptMessage(params, associatedData, inBytes);
+    } finally {
+      release(inBytes, ciphertext);
+    }
+    ciphertext.position(ciphertext.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * Starts a multi-part message-decryption operation.
    *
@@ -802,6 +1251,19 @@ public class Session {
     pkcs11.C_DigestInit(sessionHandle, toCkMechanism(mechanism), useUtf8);
   }
 
+  /**
+   * Digests the given data with the mechanism given to the digestInit method. This method finalizes
+   * the current digesting operation; i.e. the application need (and should) not call digestFinal()
+   * after this call. For digesting multiple pieces of data use digestUpdate and digestFinal.
+   *
+   * @param in the to-be-digested data
+   * @return the message digest
+   * @throws PKCS11Exception If digesting the data failed.
+   */
+  public byte[] digest(byte[] in) throws PKCS11Exception {
+    return pkcs11.C_Digest(sessionHandle, Functions.requireNonNull("in", in));
+  }
+
   /**
    * Digests the given data with the mechanism given to the digestInit method. This method finalizes
    * the current digesting operation; i.e. the application need (and should) not call digestFinal()
@@ -834,10 +1296,37 @@ public class Session {
    */
   public int digest(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_Digest(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_Digest(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * Digests the remaining data of the input buffer with the mechanism given to the digestInit
+   * method, and finalizes the current digesting operation.
+   *
+   * @param in  buffer containing the to-be-digested data, its position is set to its limit.
+   * @param out buffer for the message digest, its position is advanced by the returned length.
+   * @return the length of the message digest
+   * @throws PKCS11Exception If digesting the data failed.
+   */
+  public int digest(ByteBuffer in, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    byte[] res;
+    try {
+      res = pkcs11.C_Digest(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * This method can be used to digest multiple pieces of data; e.g. buffer-size pieces when reading
    * the data from a stream. Digests the given data with the mechanism given to the digestInit
@@ -851,7 +1340,28 @@ public class Session {
    */
   public void digestUpdate(byte[] in, int inOfs, int inLen) throws PKCS11Exception {
     checkInParams(in, inOfs, inLen);
-    pkcs11.C_DigestUpdate(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    try {
+      pkcs11.C_DigestUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+  }
+
+  /**
+   * Digests the remaining data of the input buffer as part of a multi-part digesting operation.
+   *
+   * @param in buffer containing the to-be-digested data, its position is set to its limit.
+   * @throws PKCS11Exception If digesting the data failed.
+   */
+  public void digestUpdate(ByteBuffer in) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    try {
+      pkcs11.C_DigestUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
   }
 
   /**
@@ -883,6 +1393,17 @@ public class Session {
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
+  /**
+   * This method finalizes a digesting operation and writes the message digest to the buffer.
+   *
+   * @param out buffer for the message digest, its position is advanced by the returned length.
+   * @return the length of message digest
+   * @throws PKCS11Exception If calculating the final message digest failed.
+   */
+  public int digestFinal(ByteBuffer out) throws PKCS11Exception {
+    return copyResToBuffer(pkcs11.C_DigestFinal(sessionHandle), out);
+  }
+
   /**
    * Initializes a new signing operation. Use it for signatures and MACs. The application must call
    * this method before calling any other sign* operation. Before initializing a new operation, any
@@ -899,6 +1420,26 @@ public class Session {
    */
   public void signInit(Mechanism mechanism, long keyHandle) throws PKCS11Exception {
     initSign(mechanism, keyHandle);
+    signPreHash = null;
+    signDigest = null;
+
+    PreHash preHash = preHashSigning ? PreHash.of(mechanism) : null;
+    MessageDigest digest = (preHash == null) ? null : preHash.newDigest();
+    if (digest != null) {
+      try {
+        pkcs11.C_SignInit(sessionHandle, toCkMechanism(preHash.rawMechanism(mechanism)), keyHandle, useUtf8);
+        signPreHash = preHash;
+        signDigest = digest;
+        return;
+      } catch (PKCS11Exception e) {
+        long code = e.getErrorCode();
+        if (code != PKCS11Constants.CKR_MECHANISM_INVALID && code != PKCS11Constants.CKR_MECHANISM_PARAM_INVALID) {
+          throw e;
+        }
+        // raw mechanism not supported, sign the data on the token.
+      }
+    }
+
     pkcs11.C_SignInit(sessionHandle, toCkMechanism(mechanism), keyHandle, useUtf8);
   }
 
@@ -928,10 +1469,41 @@ public class Session {
    * @throws PKCS11Exception If signing the data failed.
    */
   public byte[] sign(byte[] data) throws PKCS11Exception {
+    if (signDigest != null) {
+      signDigest.update(data);
+      return signFinal();
+    }
+
     byte[] sigValue = pkcs11.C_Sign(sessionHandle, data);
     return fixSignature(sigValue);
   }
 
+  /**
+   * Signs the remaining data of the input buffer with the key and mechanism given to the signInit
+   * method, and finalizes the current signing operation.
+   *
+   * @param data buffer containing the data to sign, its position is set to its limit.
+   * @param out  buffer for the signature, its position is advanced by the returned length.
+   * @return the length of the signature
+   * @throws PKCS11Exception If signing the data failed.
+   */
+  public int sign(ByteBuffer data, ByteBuffer out) throws PKCS11Exception {
+    if (signDigest != null) {
+      signDigest.update(data);
+      return copyResToBuffer(signFinal(), out);
+    }
+
+    byte[] inBytes = copy(data);
+    byte[] sigValue;
+    try {
+      sigValue = pkcs11.C_Sign(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, data);
+    }
+    data.position(data.limit());
+    return copyResToBuffer(fixSignature(sigValue), out);
+  }
+
   /**
    * This method can be used to sign multiple pieces of data; e.g. buffer-size pieces when reading
    * the data from a stream. Signs the given data with the mechanism given to the signInit method.
@@ -958,69 +1530,207 @@ public class Session {
    */
   public void signUpdate(byte[] in, int inOfs, int inLen) throws PKCS11Exception {
     checkInParams(in, inOfs, inLen);
-    pkcs11.C_SignUpdate(sessionHandle, copy(in, inOfs, inLen));
+    if (signDigest != null) {
+      signDigest.update(in, inOfs, inLen);
+      return;
+    }
+
+    byte[] inBytes = copy(in, inOfs, inLen);
+    try {
+      pkcs11.C_SignUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+  }
+
+  /**
+   * Signs the remaining data of the input buffer as part of a multi-part signing operation.
+   *
+   * @param in buffer containing the to-be-signed data, its position is set to its limit.
+   * @throws PKCS11Exception If signing the data failed.
+   */
+  public void signUpdate(ByteBuffer in) throws PKCS11Exception {
+    if (signDigest != null) {
+      signDigest.update(in);
+      return;
+    }
+
+    byte[] inBytes = copy(in);
+    try {
+      pkcs11.C_SignUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
+  }
+
+  /**
+   * This method finalizes a signing operation and returns the final result. Use this method, if you
+   * fed in the data using signUpdate. If you used the sign(byte[]) method, you need not (and shall
+   * not) call this method, because sign(byte[]) finalizes the signing operation itself.
+   *
+   * @return The final result of the signing operation; i.e. the signature
+   * value.
+   * @throws PKCS11Exception If calculating the final signature value failed.
+   */
+  public byte[] signFinal() throws PKCS11Exception {
+    byte[] sigValue;
+    if (signDigest != null) {
+      byte[] toBeSigned = signPreHash.toBeSigned(signDigest.digest());
+      signPreHash = null;
+      signDigest = null;
+      sigValue = pkcs11.C_Sign(sessionHandle, toBeSigned);
+    } else {
+      sigValue = pkcs11.C_SignFinal(sessionHandle);
+    }
+    return fixSignature(sigValue);
+  }
+
+  /**
+   * This method finalizes a signing operation and writes the signature to the buffer.
+   *
+   * @param out buffer for the signature, its position is advanced by the returned length.
+   * @return the length of the signature
+   * @throws PKCS11Exception If calculating the final signature value failed.
+   */
+  public int signFinal(ByteBuffer out) throws PKCS11Exception {
+    return copyResToBuffer(signFinal(), out);
+  }
+
+  private byte[] fixSignature(byte[] signatureValue) {
+    byte[] ecParams = (signatureType == SIGN_TYPE_ECDSA && module.getEcdsaSignatureFix().mayBeNeeded())
+        ? getSignKeyEcParams() : null;
+    return fixSignature(signatureValue, ecParams);
+  }
+
+  /**
+   * Returns the CKA_EC_PARAMS of the signing key, or null if it cannot be read.
+   */
+  private byte[] getSignKeyEcParams() {
+    byte[] ecParams = (byte[]) module.getAttributeCache().getShared(
+        token.getTokenID(), signKeyHandle, PKCS11Constants.CKA_EC_PARAMS);
+    if (ecParams == null) {
+      try {
+        ecParams = getByteArrayAttrValue(signKeyHandle, PKCS11Constants.CKA_EC_PARAMS);
+      } catch (PKCS11Exception e) {
+        return null;
+      }
+    }
+    return ecParams;
+  }
+
+  private byte[] fixSignature(byte[] signatureValue, byte[] ecParams) {
+    if (signatureType == SIGN_TYPE_ECDSA) {
+      PKCS11Module.Quirk quirk = module.getEcdsaSignatureFix();
+      if (quirk.mayBeNeeded() && ecParams != null) {
+        byte[] fixedSigValue = Functions.fixECDSASignature(signatureValue, ecParams);
+        // signatures of unknown curves are returned unchanged, they tell nothing about the token.
+        if (!quirk.isDetected() && Functions.getECOrderSize(ecParams) != 0) {
+          quirk.detected(fixedSigValue != signatureValue);
+        }
+        return fixedSigValue;
+      }
+    } else if (signatureType == SIGN_TYPE_SM2) {
+      PKCS11Module.Quirk quirk = module.getSm2SignatureFix();
+      if (quirk.mayBeNeeded()) {
+        byte[] fixedSigValue = Functions.fixECDSASignature(signatureValue, 32);
+        if (!quirk.isDetected()) {
+          quirk.detected(fixedSigValue != signatureValue);
+        }
+        return fixedSigValue;
+      }
+    }
+
+    return signatureValue;
   }
 
   /**
-   * This method finalizes a signing operation and returns the final result. Use this method, if you
-   * fed in the data using signUpdate. If you used the sign(byte[]) method, you need not (and shall
-   * not) call this method, because sign(byte[]) finalizes the signing operation itself.
+   * Signs each of the given data with a single-part operation. The mechanism is converted, and the
+   * key type and EC parameters of the key are resolved, once for the whole batch. A failed item
+   * does not abort the batch, its exception is reported in the result.
    *
-   * @return The final result of the signing operation; i.e. the signature
-   * value.
-   * @throws PKCS11Exception If calculating the final signature value failed.
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The signing key.
+   * @param data      The data to sign.
+   * @return the signatures, in the order of the data.
    */
-  public byte[] signFinal() throws PKCS11Exception {
-    byte[] sigValue = pkcs11.C_SignFinal(sessionHandle);
-    return fixSignature(sigValue);
-  }
+  public BatchResult<byte[]> signBatch(Mechanism mechanism, long keyHandle, List<byte[]> data) {
+    Functions.requireNonNull("data", data);
+    CK_MECHANISM ckMechanism = toCkMechanism(mechanism);
+    initSign(mechanism, keyHandle);
+    // the batch is always signed on the token.
+    signPreHash = null;
+    signDigest = null;
+    byte[] ecParams = null;
+    boolean ecParamsResolved = false;
+
+    Object[] values = new Object[data.size()];
+    PKCS11Exception[] exceptions = new PKCS11Exception[values.length];
+    int i = 0;
+    for (byte[] item : data) {
+      try {
+        pkcs11.C_SignInit(sessionHandle, ckMechanism, keyHandle, useUtf8);
+        byte[] sigValue = pkcs11.C_Sign(sessionHandle, item);
+
+        if (!ecParamsResolved && signatureType == SIGN_TYPE_ECDSA && module.getEcdsaSignatureFix().mayBeNeeded()) {
+          ecParams = getSignKeyEcParams();
+          ecParamsResolved = true;
+        }
+        values[i] = fixSignature(sigValue, ecParams);
+      } catch (PKCS11Exception e) {
+        exceptions[i] = e;
+      }
+      i++;
+    }
 
-  private byte[] fixSignature(byte[] signatureValue) {
-    if (signatureType == 0) {
-      return signatureValue;
-    }
-
-    synchronized (module) {
-      if (signatureType == SIGN_TYPE_ECDSA) {
-        Boolean b = module.getEcdsaSignatureFixNeeded();
-        if (b == null || b) {
-          // get the ecParams
-          byte[] ecParams = handleEcParamsMap.get(signKeyHandle);
-          if (ecParams == null) {
-            try {
-              ecParams = getByteArrayAttrValue(signKeyHandle, PKCS11Constants.CKA_EC_PARAMS);
-            } catch (PKCS11Exception e) {
-              return signatureValue;
-            }
+    return new BatchResult<>(values, exceptions);
+  }
 
-            if (ecParams != null) {
-              handleEcParamsMap.put(signKeyHandle, ecParams);
-            }
-          }
+  /**
+   * Verifies each of the given signatures against the corresponding data with a single-part
+   * operation. The mechanism is converted once for the whole batch. The value of an item is
+   * {@link Boolean#TRUE} if the signature is valid, and {@link Boolean#FALSE} if it is invalid
+   * (CKR_SIGNATURE_INVALID or CKR_SIGNATURE_LEN_RANGE). Other errors are reported as exception of
+   * the item, and do not abort the batch.
+   *
+   * @param mechanism  The signature mechanism.
+   * @param keyHandle  The verification key.
+   * @param data       The signed data.
+   * @param signatures The signatures, in the order of the data.
+   * @return whether the signatures are valid, in the order of the data.
+   */
+  public BatchResult<Boolean> verifyBatch(Mechanism mechanism, long keyHandle, List<byte[]> data,
+                                          List<byte[]> signatures) {
+    Functions.requireNonNull("data", data);
+    Functions.requireNonNull("signatures", signatures);
+    if (data.size() != signatures.size()) {
+      throw new IllegalArgumentException("data and signatures do not have the same size");
+    }
 
-          if (ecParams != null) {
-            byte[] fixedSigValue = Functions.fixECDSASignature(signatureValue, ecParams);
-            boolean fixed = !Arrays.equals(fixedSigValue, signatureValue);
-            if (b == null) {
-              module.setEcdsaSignatureFixNeeded(fixed);
-            }
-            return fixedSigValue;
-          }
-        }
-      } else if (signatureType == SIGN_TYPE_SM2) {
-        Boolean b = module.getSm2SignatureFixNeeded();
-        if (b == null || b) {
-          byte[] fixedSigValue = Functions.fixECDSASignature(signatureValue, 32);
-          boolean fixed = !Arrays.equals(fixedSigValue, signatureValue);
-          if (b == null) {
-            module.setSm2SignatureFixNeeded(fixed);
-          }
-          return fixedSigValue;
+    CK_MECHANISM ckMechanism = toCkMechanism(mechanism);
+
+    Object[] values = new Object[data.size()];
+    PKCS11Exception[] exceptions = new PKCS11Exception[values.length];
+    Iterator<byte[]> sigIt = signatures.iterator();
+    int i = 0;
+    for (byte[] item : data) {
+      byte[] signature = sigIt.next();
+      try {
+        pkcs11.C_VerifyInit(sessionHandle, ckMechanism, keyHandle, useUtf8);
+        pkcs11.C_Verify(sessionHandle, item, signature);
+        values[i] = Boolean.TRUE;
+      } catch (PKCS11Exception e) {
+        long code = e.getErrorCode();
+        if (code == PKCS11Constants.CKR_SIGNATURE_INVALID || code == PKCS11Constants.CKR_SIGNATURE_LEN_RANGE) {
+          values[i] = Boolean.FALSE;
+        } else {
+          exceptions[i] = e;
         }
       }
-
-      return signatureValue;
+      i++;
     }
+
+    return new BatchResult<>(values, exceptions);
   }
 
   /**
@@ -1072,7 +1782,13 @@ public class Session {
    */
   public int signRecover(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_SignRecover(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_SignRecover(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
@@ -1096,6 +1812,28 @@ public class Session {
     return pkcs11.C_SignMessage(sessionHandle, toCkParameters(params), data, useUtf8);
   }
 
+  /**
+   * Signs the remaining data of the input buffer with the key and mechanism given to the
+   * messageSignInit method.
+   *
+   * @param params    the mechanism parameter to use
+   * @param data      buffer containing the data to sign, its position is set to its limit.
+   * @param out       buffer for the signature, its position is advanced by the returned length.
+   * @return the length of the signature
+   * @throws PKCS11Exception if signing failed.
+   */
+  public int signMessage(CkParams params, ByteBuffer data, ByteBuffer out) throws PKCS11Exception {
+    byte[] inBytes = copy(data);
+    byte[] res;
+    try {
+      res = signMessage(params, inBytes);
+    } finally {
+      release(inBytes, data);
+    }
+    data.position(data.limit());
+    return copyResToBuffer(res, out);
+  }
+
   /**
    * SignMessageBegin begins a multiple-part message signature operation, where the signature is an
    * appendix to the message.
@@ -1167,6 +1905,25 @@ public class Session {
     pkcs11.C_Verify(sessionHandle, data, signature);
   }
 
+  /**
+   * Verifies the given signature against the remaining data of the input buffer with the key and
+   * mechanism given to the verifyInit method, and finalizes the current verification operation.
+   *
+   * @param data      buffer containing the data that was signed, its position is set to its limit.
+   * @param signature The signature or MAC to verify.
+   * @throws PKCS11Exception If verifying the signature fails. This is also the case, if the signature is
+   *                         forged.
+   */
+  public void verify(ByteBuffer data, byte[] signature) throws PKCS11Exception {
+    byte[] inBytes = copy(data);
+    try {
+      pkcs11.C_Verify(sessionHandle, inBytes, signature);
+    } finally {
+      release(inBytes, data);
+    }
+    data.position(data.limit());
+  }
+
   /**
    * This method can be used to verify a signature with multiple pieces of data; e.g. buffer-size
    * pieces when reading the data from a stream. To verify the signature or MAC call verifyFinal
@@ -1191,7 +1948,28 @@ public class Session {
    */
   public void verifyUpdate(byte[] in, int inOfs, int inLen) throws PKCS11Exception {
     checkInParams(in, inOfs, inLen);
-    pkcs11.C_VerifyUpdate(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    try {
+      pkcs11.C_VerifyUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+  }
+
+  /**
+   * Verifies the remaining data of the input buffer as part of a multi-part verification operation.
+   *
+   * @param in buffer containing the to-be-verified data, its position is set to its limit.
+   * @throws PKCS11Exception If verifying (e.g. digesting) the data failed.
+   */
+  public void verifyUpdate(ByteBuffer in) throws PKCS11Exception {
+    byte[] inBytes = copy(in);
+    try {
+      pkcs11.C_VerifyUpdate(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
+    in.position(in.limit());
   }
 
   /**
@@ -1271,7 +2049,13 @@ public class Session {
    */
   public int verifyRecover(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) throws PKCS11Exception {
     checkParams(in, inOfs, inLen, out, outOfs, outLen);
-    byte[] res = pkcs11.C_VerifyRecover(sessionHandle, copy(in, inOfs, inLen));
+    byte[] inBytes = copy(in, inOfs, inLen);
+    byte[] res;
+    try {
+      res = pkcs11.C_VerifyRecover(sessionHandle, inBytes);
+    } finally {
+      release(inBytes, in);
+    }
     return copyResToBuffer(res, out, outOfs, outLen);
   }
 
@@ -1423,7 +2207,8 @@ public class Session {
    *              If generating a new secret key or domain parameters failed.
    */
   public long generateKey(Mechanism mechanism, AttributeVector template) throws PKCS11Exception {
-    return pkcs11.C_GenerateKey(sessionHandle, toCkMechanism(mechanism), toOutCKAttributes(template), useUtf8);
+    return objectCreated(
+        pkcs11.C_GenerateKey(sessionHandle, toCkMechanism(mechanism), toOutCKAttributes(template), useUtf8), template);
   }
 
   /**
@@ -1443,7 +2228,8 @@ public class Session {
   public PKCS11KeyPair generateKeyPair(Mechanism mechanism, KeyPairTemplate template) throws PKCS11Exception {
     long[] objectHandles = pkcs11.C_GenerateKeyPair(sessionHandle, toCkMechanism(mechanism),
         toOutCKAttributes(template.publicKey()), toOutCKAttributes(template.privateKey()), useUtf8);
-    return new PKCS11KeyPair(objectHandles[0], objectHandles[1]);
+    return new PKCS11KeyPair(objectCreated(objectHandles[0], template.publicKey()),
+        objectCreated(objectHandles[1], template.privateKey()));
   }
 
   /**
@@ -1482,8 +2268,8 @@ public class Session {
    */
   public long unwrapKey(Mechanism mechanism, long unwrappingKeyHandle, byte[] wrappedKey,
                         AttributeVector keyTemplate) throws PKCS11Exception {
-    return pkcs11.C_UnwrapKey(sessionHandle, toCkMechanism(mechanism),
-        unwrappingKeyHandle, wrappedKey, toOutCKAttributes(keyTemplate), useUtf8);
+    return objectCreated(pkcs11.C_UnwrapKey(sessionHandle, toCkMechanism(mechanism),
+        unwrappingKeyHandle, wrappedKey, toOutCKAttributes(keyTemplate), useUtf8), keyTemplate);
   }
 
   /**
@@ -1504,8 +2290,25 @@ public class Session {
    *              If deriving the key or creating a new key object failed.
    */
   public long deriveKey(Mechanism mechanism, long baseKeyHandle, AttributeVector template) throws PKCS11Exception {
-    return pkcs11.C_DeriveKey(sessionHandle, toCkMechanism(mechanism), baseKeyHandle,
-        toOutCKAttributes(template), useUtf8);
+    return objectCreated(pkcs11.C_DeriveKey(sessionHandle, toCkMechanism(mechanism), baseKeyHandle,
+        toOutCKAttributes(template), useUtf8), template);
+  }
+
+  /**
+   * Removes the cached attributes of a handle which may have been used by an object destroyed
+   * before, remembers the handle if the new object may be a session object, and notifies the
+   * object listeners of the module.
+   */
+  private long objectCreated(long objectHandle, AttributeVector template) {
+    module.getAttributeCache().invalidate(token.getTokenID(), objectHandle);
+    if (template == null || !Boolean.TRUE.equals(template.token())) {
+      if (sessionObjectHandles == null) {
+        sessionObjectHandles = new HashSet<>();
+      }
+      sessionObjectHandles.add(objectHandle);
+    }
+    module.objectCreated(this, objectHandle);
+    return objectHandle;
   }
 
   /**
@@ -1535,6 +2338,18 @@ public class Session {
     return randomBytesBuffer;
   }
 
+  /**
+   * Fills the given array with random bytes.
+   *
+   * @param randomBytesBuffer
+   *          The array to fill.
+   * @exception PKCS11Exception
+   *              If generating random bytes failed.
+   */
+  public void generateRandom(byte[] randomBytesBuffer) throws PKCS11Exception {
+    pkcs11.C_GenerateRandom(sessionHandle, Functions.requireNonNull("randomBytesBuffer", randomBytesBuffer));
+  }
+
   /**
    * Legacy function that will normally throw an PKCS11Exception with the error-code
    * CKR_FUNCTION_NOT_PARALLEL.
@@ -1659,13 +2474,9 @@ public class Session {
       typeList.add(attrType);
     }
 
-    if (typeList.contains(PKCS11Constants.CKA_EC_POINT) && !typeList.contains(PKCS11Constants.CKA_EC_PARAMS)) {
-      synchronized (module) {
-        Boolean b = module.getEcPointFixNeeded();
-        if (b == null || b) {
-          typeList.add(PKCS11Constants.CKA_EC_PARAMS);
-        }
-      }
+    if (typeList.contains(PKCS11Constants.CKA_EC_POINT) && !typeList.contains(PKCS11Constants.CKA_EC_PARAMS)
+        && module.getEcPointFix().mayBeNeeded()) {
+      typeList.add(PKCS11Constants.CKA_EC_PARAMS);
     }
 
     Attribute[] attrs = new Attribute[typeList.size()];
@@ -1691,8 +2502,9 @@ public class Session {
 
   /**
    * This method reads the attributes at once. This can lead  to performance
-   * improvements. If reading all attributes at once fails, it tries to read
-   * each attributes individually.
+   * improvements. If reading all attributes at once fails, it splits the
+   * attributes recursively to isolate the failing ones, and remembers them
+   * per object class so that they are read separately next time.
    *
    * @param objectHandle
    *          The handle of the object which contains the attributes.
@@ -1711,45 +2523,93 @@ public class Session {
       return;
     }
 
-    CK_ATTRIBUTE[] attributeTemplateList = new CK_ATTRIBUTE[attributes.length];
+    // attributes whose values are taken from the cache are neither read nor post-processed.
+    boolean[] cached = new boolean[attributes.length];
+    int numCached = 0;
     for (int i = 0; i < attributes.length; i++) {
-      attributeTemplateList[i] = new CK_ATTRIBUTE();
-      attributeTemplateList[i].type = attributes[i].getType();
+      if (getCachedAttrValue(objectHandle, attributes[i])) {
+        cached[i] = true;
+        numCached++;
+      }
     }
 
-    PKCS11Exception delayedEx = null;
-    try {
-      pkcs11.C_GetAttributeValue(sessionHandle, objectHandle, attributeTemplateList, useUtf8);
-    } catch (PKCS11Exception ex) {
-      delayedEx = ex;
+    if (numCached == attributes.length) {
+      return;
     }
 
+    // attributes known to be unsupported or sensitive are not read at all, and attributes known
+    // to make the bulk read fail are read separately.
+    AttributeMemo memo = module.getAttributeMemo();
+    Long objectClass = getKnownLongAttrValue(objectHandle, attributes, cached, PKCS11Constants.CKA_CLASS);
+    Long keyType = getKnownLongAttrValue(objectHandle, attributes, cached, PKCS11Constants.CKA_KEY_TYPE);
+
+    List<Attribute> bulkAttrs = new ArrayList<>(attributes.length - numCached);
+    List<Attribute> separateAttrs = null;
     for (int i = 0; i < attributes.length; i++) {
-      Attribute attribute = attributes[i];
-      CK_ATTRIBUTE template = attributeTemplateList[i];
-      if (template != null) {
-        attribute.present(true).sensitive(false).ckAttribute(template);
+      if (cached[i]) {
+        continue;
+      }
+
+      Attribute attr = attributes[i];
+      if (applyAttrMemo(objectHandle, attr, objectClass, keyType)) {
+        continue;
+      }
+
+      if (objectClass != null && memo.isBulkFailure(objectClass, attr.getType())) {
+        if (separateAttrs == null) {
+          separateAttrs = new LinkedList<>();
+        }
+        separateAttrs.add(attr);
+      } else {
+        bulkAttrs.add(attr);
       }
     }
 
-    if (delayedEx != null) {
-      // do all failed separately again.
-      delayedEx = null;
-      for (Attribute attr : attributes) {
-        if (attr.getCkAttribute() == null || attr.getCkAttribute().pValue == null) {
-          try {
-            doGetAttrValue0(objectHandle, attr, false);
-          } catch (PKCS11Exception ex) {
-            if (delayedEx == null) {
-              delayedEx = ex;
-            }
+    Map<Attribute, Long> failedAttrs = new LinkedHashMap<>();
+    PKCS11Exception delayedEx = bulkAttrs.isEmpty() ? null
+        : bisectGetAttrValues(objectHandle, bulkAttrs, failedAttrs);
+
+    if (separateAttrs != null) {
+      for (Attribute attr : separateAttrs) {
+        try {
+          long ec = readAttrValue(objectHandle, attr);
+          if (isAttributeError(ec)) {
+            failedAttrs.put(attr, ec);
+          }
+        } catch (PKCS11Exception ex) {
+          if (delayedEx == null) {
+            delayedEx = ex;
+          }
+        }
+      }
+    }
+
+    if (!failedAttrs.isEmpty()) {
+      if (objectClass == null) {
+        objectClass = getKnownLongAttrValue(objectHandle, attributes, null, PKCS11Constants.CKA_CLASS);
+      }
+
+      if (keyType == null) {
+        keyType = getKnownLongAttrValue(objectHandle, attributes, null, PKCS11Constants.CKA_KEY_TYPE);
+      }
+
+      if (objectClass != null) {
+        Long memoKeyType = AttributeMemo.toMemoKeyType(objectClass, keyType);
+        for (Map.Entry<Attribute, Long> failed : failedAttrs.entrySet()) {
+          long type = failed.getKey().getType();
+          memo.recordBulkFailure(objectClass, type);
+          if (memoKeyType != null) {
+            memo.recordError(objectClass, memoKeyType, type, failed.getValue());
           }
         }
       }
     }
 
-    for (Attribute attr : attributes) {
-      postProcessGetAttribute(attr, objectHandle, attributes);
+    for (int i = 0; i < attributes.length; i++) {
+      if (!cached[i]) {
+        postProcessGetAttribute(attributes[i], objectHandle, attributes);
+        putCachedAttrValue(objectHandle, attributes[i]);
+      }
     }
 
     if (delayedEx != null) {
@@ -1757,6 +2617,154 @@ public class Session {
     }
   }
 
+  /**
+   * Reads the given attributes with one C_GetAttributeValue call. If the call fails with
+   * CKR_ATTRIBUTE_TYPE_INVALID or CKR_ATTRIBUTE_SENSITIVE, the values returned nevertheless are
+   * kept, and the attributes still missing are split into halves which are read recursively, so
+   * that k failing attributes out of n are isolated with O(k log n) calls. Other errors are
+   * returned unchanged.
+   *
+   * @param failedAttrs receives the attributes which could not be read, with the error code.
+   * @return the first exception which is not caused by a single attribute, or null.
+   */
+  private PKCS11Exception bisectGetAttrValues(
+      long objectHandle, List<Attribute> attributes, Map<Attribute, Long> failedAttrs) {
+    int n = attributes.size();
+    CK_ATTRIBUTE[] attributeTemplateList = new CK_ATTRIBUTE[n];
+    for (int i = 0; i < n; i++) {
+      attributeTemplateList[i] = new CK_ATTRIBUTE();
+      attributeTemplateList[i].type = attributes.get(i).getType();
+    }
+
+    PKCS11Exception ex;
+    try {
+      pkcs11.C_GetAttributeValue(sessionHandle, objectHandle, attributeTemplateList, useUtf8);
+      for (int i = 0; i < n; i++) {
+        attributes.get(i).present(true).sensitive(false).ckAttribute(attributeTemplateList[i]);
+      }
+      return null;
+    } catch (PKCS11Exception ex2) {
+      ex = ex2;
+    }
+
+    if (!isAttributeError(ex.getErrorCode())) {
+      return ex;
+    }
+
+    // keep the values returned by the failed call, only the missing attributes are read again.
+    List<Attribute> missing = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      if (attributeTemplateList[i].pValue != null) {
+        attributes.get(i).present(true).sensitive(false).ckAttribute(attributeTemplateList[i]);
+      } else {
+        missing.add(attributes.get(i));
+      }
+    }
+
+    int numMissing = missing.size();
+    if (numMissing == 0) {
+      return null;
+    } else if (numMissing == 1) {
+      Attribute attr = missing.get(0);
+      try {
+        handleGetAttrValueError(attr, ex);
+      } catch (PKCS11Exception ex2) {
+        return ex2;
+      }
+      failedAttrs.put(attr, ex.getErrorCode());
+      return null;
+    }
+
+    int mid = numMissing / 2;
+    PKCS11Exception ex1 = bisectGetAttrValues(objectHandle, missing.subList(0, mid), failedAttrs);
+    PKCS11Exception ex2 = bisectGetAttrValues(objectHandle, missing.subList(mid, numMissing), failedAttrs);
+    return ex1 != null ? ex1 : ex2;
+  }
+
+  /**
+   * Returns the value of a long attribute (CKA_CLASS or CKA_KEY_TYPE) if it is known without
+   * reading it from the token, i.e. if it is among the given attributes (only those marked as
+   * cached if cached is not null), or in the attribute cache.
+   */
+  private Long getKnownLongAttrValue(long objectHandle, Attribute[] attributes, boolean[] cached, long type) {
+    if (attributes != null) {
+      for (int i = 0; i < attributes.length; i++) {
+        Attribute attr = attributes[i];
+        if (attr.getType() == type && (cached == null || cached[i])) {
+          CK_ATTRIBUTE ckAttr = attr.getCkAttribute();
+          if (attr.isPresent() && ckAttr != null && ckAttr.pValue instanceof Long) {
+            return (Long) ckAttr.pValue;
+          }
+        }
+      }
+    }
+
+    return (Long) module.getAttributeCache().getShared(token.getTokenID(), objectHandle, type);
+  }
+
+  /**
+   * Marks the attribute as absent or sensitive if this is known from the attribute memo.
+   *
+   * @param objectClass the object class, or null to take it from the attribute cache.
+   * @param keyType the key type, or null to take it from the attribute cache.
+   * @return true if the attribute has been resolved and must not be read.
+   */
+  private boolean applyAttrMemo(long objectHandle, Attribute attribute, Long objectClass, Long keyType) {
+    if (objectClass == null) {
+      objectClass = getKnownLongAttrValue(objectHandle, null, null, PKCS11Constants.CKA_CLASS);
+      if (objectClass == null) {
+        return false;
+      }
+    }
+
+    if (keyType == null) {
+      keyType = getKnownLongAttrValue(objectHandle, null, null, PKCS11Constants.CKA_KEY_TYPE);
+    }
+
+    Long memoKeyType = AttributeMemo.toMemoKeyType(objectClass, keyType);
+    if (memoKeyType == null) {
+      return false;
+    }
+
+    int state = module.getAttributeMemo().getState(objectClass, memoKeyType, attribute.getType());
+    if (state == AttributeMemo.UNSUPPORTED) {
+      attribute.present(false).sensitive(false).getCkAttribute().pValue = null;
+      return true;
+    } else if (state == AttributeMemo.SENSITIVE) {
+      attribute.present(true).sensitive(true).getCkAttribute().pValue = null;
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Sets the value of the attribute from the module-wide attribute cache.
+   *
+   * @return true if the value was found in the cache, false otherwise.
+   */
+  private boolean getCachedAttrValue(long objectHandle, Attribute attribute) {
+    long type = attribute.getType();
+    if (!AttributeCache.isCacheable(type)) {
+      return false;
+    }
+
+    Object value = module.getAttributeCache().get(token.getTokenID(), objectHandle, type);
+    if (value == null) {
+      return false;
+    }
+
+    attribute.present(true).sensitive(false).getCkAttribute().pValue = value;
+    return true;
+  }
+
+  private void putCachedAttrValue(long objectHandle, Attribute attribute) {
+    CK_ATTRIBUTE ckAttr = attribute.getCkAttribute();
+    if (attribute.isPresent() && !attribute.isSensitive() && ckAttr != null && ckAttr.pValue != null) {
+      module.getAttributeCache().put(token.getTokenID(), objectHandle, attribute.getType(), ckAttr.pValue);
+    }
+  }
+
   /**
    * This method reads the attribute specified by <code>attribute</code> from
    * the token using the given <code>session</code>.
@@ -1783,19 +2791,43 @@ public class Session {
    */
   private void doGetAttrValue(long objectHandle, Attribute attribute)
       throws PKCS11Exception {
-    if (attribute.getType() == PKCS11Constants.CKA_EC_POINT) {
-      Boolean b = module.getEcPointFixNeeded();
-      if ((b == null || b)) {
-        doGetAttrValues(objectHandle, new ByteArrayAttribute(PKCS11Constants.CKA_EC_PARAMS), attribute);
-        return;
+    if (attribute.getType() == PKCS11Constants.CKA_EC_POINT && module.getEcPointFix().mayBeNeeded()) {
+      doGetAttrValues(objectHandle, new ByteArrayAttribute(PKCS11Constants.CKA_EC_PARAMS), attribute);
+      return;
+    }
+
+    if (getCachedAttrValue(objectHandle, attribute)) {
+      return;
+    }
+
+    if (applyAttrMemo(objectHandle, attribute, null, null)) {
+      postProcessGetAttribute(attribute, objectHandle);
+      return;
+    }
+
+    long ec = readAttrValue(objectHandle, attribute);
+    if (ec != PKCS11Constants.CKR_OK) {
+      Long objectClass = getKnownLongAttrValue(objectHandle, null, null, PKCS11Constants.CKA_CLASS);
+      if (objectClass != null) {
+        Long memoKeyType = AttributeMemo.toMemoKeyType(objectClass,
+            getKnownLongAttrValue(objectHandle, null, null, PKCS11Constants.CKA_KEY_TYPE));
+        if (memoKeyType != null) {
+          module.getAttributeMemo().recordError(objectClass, memoKeyType, attribute.getType(), ec);
+        }
       }
     }
 
-    doGetAttrValue0(objectHandle, attribute, true);
+    postProcessGetAttribute(attribute, objectHandle);
+    putCachedAttrValue(objectHandle, attribute);
   }
 
-  private void doGetAttrValue0(long objectHandle, Attribute attribute, boolean postProcess)
-      throws PKCS11Exception {
+  /**
+   * Reads only the given attribute.
+   *
+   * @return CKR_OK if the attribute has been read, otherwise the attribute-level error code.
+   * @throws PKCS11Exception if reading the attribute failed for other reasons.
+   */
+  private long readAttrValue(long objectHandle, Attribute attribute) throws PKCS11Exception {
     attribute.present(false);
 
     try {
@@ -1805,46 +2837,79 @@ public class Session {
       pkcs11.C_GetAttributeValue(sessionHandle, objectHandle, attributeTemplateList, useUtf8);
 
       attribute.ckAttribute(attributeTemplateList[0]).present(true).sensitive(false);
+      return PKCS11Constants.CKR_OK;
     } catch (PKCS11Exception ex) {
-      long ec = ex.getErrorCode();
-      if (ec == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
-        if (attribute.getType() == PKCS11Constants.CKA_EC_PARAMS) {
-          // this means, that some requested attributes are missing, but
-          // we can ignore this and proceed; e.g. a v2.01 module won't
-          // have the object ID attribute
-          attribute.present(false).getCkAttribute().pValue = null;
-        }
-      } else if (ec == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
+      handleGetAttrValueError(attribute, ex);
+      return ex.getErrorCode();
+    }
+  }
+
+  /**
+   * Returns whether the error is caused by a single attribute, and is therefore worth isolating
+   * and remembering. Other errors, e.g. a transient CKR_FUNCTION_FAILED, are not.
+   */
+  private static boolean isAttributeError(long ec) {
+    return ec == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID || ec == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE;
+  }
+
+  /**
+   * Marks the attribute according to the error returned when reading only this attribute.
+   *
+   * @throws PKCS11Exception the given exception if it does not concern the attribute itself.
+   */
+  private static void handleGetAttrValueError(Attribute attribute, PKCS11Exception ex) throws PKCS11Exception {
+    long ec = ex.getErrorCode();
+    if (ec == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
+      if (attribute.getType() == PKCS11Constants.CKA_EC_PARAMS) {
         // this means, that some requested attributes are missing, but
         // we can ignore this and proceed; e.g. a v2.01 module won't
         // have the object ID attribute
-        attribute.getCkAttribute().pValue = null;
-        attribute.present(true).sensitive(true).getCkAttribute().pValue = null;
-      } else if (ec == PKCS11Constants.CKR_ARGUMENTS_BAD || ec == PKCS11Constants.CKR_FUNCTION_FAILED || ec == PKCS11Constants.CKR_FUNCTION_REJECTED) {
-        attribute.present(false).sensitive(false).getCkAttribute().pValue = null;
-      } else {
-        // there was a different error that we should propagate
-        throw ex;
+        attribute.present(false).getCkAttribute().pValue = null;
       }
-    }
-
-    if (postProcess) {
-      postProcessGetAttribute(attribute, objectHandle);
+    } else if (ec == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
+      // this means, that some requested attributes are missing, but
+      // we can ignore this and proceed; e.g. a v2.01 module won't
+      // have the object ID attribute
+      attribute.getCkAttribute().pValue = null;
+      attribute.present(true).sensitive(true).getCkAttribute().pValue = null;
+    } else if (ec == PKCS11Constants.CKR_ARGUMENTS_BAD || ec == PKCS11Constants.CKR_FUNCTION_FAILED || ec == PKCS11Constants.CKR_FUNCTION_REJECTED) {
+      attribute.present(false).sensitive(false).getCkAttribute().pValue = null;
+    } else {
+      // there was a different error that we should propagate
+      throw ex;
     }
   }
 
   private CK_ATTRIBUTE[] toOutCKAttributes(AttributeVector template) {
     if (template == null) {
       return null;
+    } else if (template instanceof CompiledTemplate) {
+      CompiledTemplate compiled = (CompiledTemplate) template;
+      if (compiled.getModule() == module) {
+        return compiled.getOutCkAttributes();
+      }
     }
+    return toOutCKAttributes(module, template);
+  }
 
+  static CK_ATTRIBUTE[] toOutCKAttributes(PKCS11Module module, AttributeVector template) {
+    // the array is cached by the template, translate the key type in a copy.
     CK_ATTRIBUTE[] ret = template.toCkAttributes();
-    for (CK_ATTRIBUTE ckAttr : ret) {
+    for (int i = 0; i < ret.length; i++) {
+      CK_ATTRIBUTE ckAttr = ret[i];
       if (ckAttr.type == PKCS11Constants.CKA_KEY_TYPE && ckAttr.pValue != null) {
         long value = (long) ckAttr.pValue;
         if ((value & PKCS11Constants.CKK_VENDOR_DEFINED) != 0L) {
-          ckAttr.pValue = module.ckkGenericToVendor(value);
+          long vendorValue = module.ckkGenericToVendor(value);
+          if (vendorValue != value) {
+            CK_ATTRIBUTE translated = new CK_ATTRIBUTE();
+            translated.type = ckAttr.type;
+            translated.pValue = vendorValue;
+            ret = ret.clone();
+            ret[i] = translated;
+          }
         }
+        break;
       }
     }
     return ret;
@@ -1901,15 +2966,15 @@ public class Session {
         ckAttr.pValue = module.ckmVendorToGeneric(value);
       }
     } else if (type == PKCS11Constants.CKA_ALLOWED_MECHANISMS) {
-      long[] mechs = ((MechanismArrayAttribute) attr).getValue();
-      for (long mech : mechs) {
-        if ((mech & PKCS11Constants.CKM_VENDOR_DEFINED) != 0L) {
-          ckAttr.pValue = module.ckmVendorToGeneric(mech);
+      long[] mechs = (long[]) ckAttr.pValue;
+      for (int i = 0; i < mechs.length; i++) {
+        if ((mechs[i] & PKCS11Constants.CKM_VENDOR_DEFINED) != 0L) {
+          mechs[i] = module.ckmVendorToGeneric(mechs[i]);
         }
       }
     } else if (type == PKCS11Constants.CKA_EC_POINT) {
-      Boolean b = module.getEcPointFixNeeded();
-      if (b == null || b) {
+      PKCS11Module.Quirk quirk = module.getEcPointFix();
+      if (quirk.mayBeNeeded()) {
         byte[] ecParams = null;
         if (otherAttrs != null) {
           for (Attribute otherAttr : otherAttrs) {
@@ -1921,15 +2986,14 @@ public class Session {
 
         if (ecParams != null) {
           byte[] fixedValue = Functions.fixECPoint((byte[]) ckAttr.pValue, ecParams);
-          boolean fixed = Arrays.equals(fixedValue, (byte[]) ckAttr.pValue);
+          boolean fixed = fixedValue != ckAttr.pValue;
 
-          if (b == null) {
-            module.setEcPointFixNeeded(fixed);
+          // points of unknown curves are returned unchanged, they tell nothing about the token.
+          if (!quirk.isDetected() && Functions.getECFieldSize(ecParams) != 0) {
+            quirk.detected(fixed);
           }
 
-          if (fixed) {
-            ckAttr.pValue = fixedValue;
-          }
+          ckAttr.pValue = fixedValue;
         }
       }
     } else if (attr instanceof BooleanAttribute) {
@@ -1947,6 +3011,55 @@ public class Session {
     }
   }
 
+  /**
+   * Small pool of arrays, looked up by their exact length, since the native layer always passes
+   * the complete array. A session is used by one thread at a time, so no synchronization is needed.
+   */
+  private static final class ScratchBuffers {
+
+    private static final int MAX_POOLED_LENGTH = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[][] buffers = new byte[4][];
+
+    private int next;
+
+    byte[] take(int len) {
+      if (len == 0) {
+        return EMPTY;
+      }
+
+      for (int i = 0; i < buffers.length; i++) {
+        byte[] buffer = buffers[i];
+        if (buffer != null && buffer.length == len) {
+          buffers[i] = null;
+          return buffer;
+        }
+      }
+      return new byte[len];
+    }
+
+    void release(byte[] buffer) {
+      if (buffer.length == 0 || buffer.length > MAX_POOLED_LENGTH) {
+        return;
+      }
+
+      // the buffer may contain sensitive data
+      Arrays.fill(buffer, (byte) 0);
+      for (int i = 0; i < buffers.length; i++) {
+        if (buffers[i] == null) {
+          buffers[i] = buffer;
+          return;
+        }
+      }
+
+      buffers[next] = buffer;
+      next = (next + 1) % buffers.length;
+    }
+
+  } // class ScratchBuffers
+
   private static void checkParams(byte[] in, int inOfs, int inLen, byte[] out, int outOfs, int outLen) {
     checkInParams(in, inOfs, inLen);
     checkOutParams(out, outOfs, outLen);
@@ -1972,89 +3085,4 @@ public class Session {
     }
   }
 
-  private static class LruCache<K, V> {
-
-    private final LinkedHashMap<K, V> map;
-
-    /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
-
-    private final int maxSize;
-
-    public LruCache(int maxSize) {
-      if (maxSize < 0) {
-        throw new IllegalArgumentException("maxSize is not positive: " + maxSize);
-      }
-      this.maxSize = maxSize;
-      this.map = new LinkedHashMap<>(0, 0.75f, true);
-    }
-
-    public final V get(K key) {
-      if (key == null) {
-        throw new NullPointerException("key == null");
-      }
-
-      V mapValue;
-      synchronized (this) {
-        mapValue = map.get(key);
-        if (mapValue != null) {
-          return mapValue;
-        }
-      }
-
-      return null;
-    }
-
-    public final V put(K key, V value) {
-      if (key == null || value == null) {
-        throw new NullPointerException("key == null || value == null");
-      }
-
-      V previous;
-      synchronized (this) {
-        size++;
-        previous = map.put(key, value);
-        if (previous != null) {
-          size--;
-        }
-      }
-
-      trimToSize(maxSize);
-      return previous;
-    }
-
-    /**
-     * Remove the eldest entries until the total of remaining entries is at or
-     * below the requested size.
-     *
-     * @param maxSize the maximum size of the cache before returning. Could be -1
-     *            to evict even 0-sized elements.
-     */
-    public void trimToSize(int maxSize) {
-      while (true) {
-        K key;
-        synchronized (this) {
-          if (size < 0 || (map.isEmpty() && size != 0)) {
-            throw new IllegalStateException(getClass().getName()
-                + ".sizeOf() is reporting inconsistent results!");
-          }
-
-          if (size <= maxSize || map.isEmpty()) {
-            break;
-          }
-
-          Map.Entry<K, V> toEvict = map.entrySet().iterator().next();
-          key = toEvict.getKey();
-          map.remove(key);
-          size--;
-        }
-      }
-    }
-
-    public final void evictAll() {
-      trimToSize(-1); // -1 will evict 0-sized elements
-    }
-
-  } // class LruCache
-
 }
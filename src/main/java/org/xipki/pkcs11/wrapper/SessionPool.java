@@ -0,0 +1,619 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Elastic pool of {@link Session}s of one {@link Token}. Sessions are opened on demand up to the
+ * limits announced by the token (see {@link TokenInfo#getMaxSessionCount()} and
+ * {@link TokenInfo#getMaxRwSessionCount()}), and closed again after they have been idle for
+ * longer than the idle timeout.
+ * <p>
+ * Read-only and read-write sessions are kept in separate lanes, so that a burst of read-only
+ * requests cannot starve the (usually much smaller) number of read-write sessions.
+ * <p>
+ * All sessions of a token share the same login state. The pool therefore calls C_Login only once,
+ * on the first session it opens, and not for every session.
+ * <pre><code>
+ *   SessionPool pool = new SessionPool(token, CKU_USER, pin);
+ *   Session session = pool.borrowSession(false);
+ *   try {
+ *     session.signInit(mechanism, keyHandle);
+ *     byte[] signature = session.sign(data);
+ *   } finally {
+ *     pool.returnSession(session);
+ *   }
+ * </code></pre>
+ * A returned session must not have any pending operation. If a session is broken, e.g. because
+ * an operation could not be finished, hand it back via {@link #invalidateSession(Session)}.
+ * <p>
+ * Alternatively, a worker thread can bind a session to itself via {@link #getBoundSession(boolean)}.
+ * The session is borrowed once, when the thread asks for it the first time, and stays with the
+ * thread until {@link #releaseBoundSessions()} is called or the thread dies. This is the preferred
+ * mode for fixed-size thread pools, since the hot path needs neither borrow nor return, and the
+ * per-operation state of a {@link Session} stays confined to one thread.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class SessionPool implements AutoCloseable {
+
+  /**
+   * Maximal number of sessions if the token does not limit the number of sessions.
+   */
+  public static final int DEFAULT_MAX_SESSIONS = 32;
+
+  /**
+   * Default borrow timeout in milliseconds.
+   */
+  public static final long DEFAULT_BORROW_TIMEOUT = 10000L;
+
+  /**
+   * Default idle timeout in milliseconds.
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT = 300000L;
+
+  private static final class IdleSession {
+
+    private final Session session;
+
+    private final long idleSince;
+
+    IdleSession(Session session) {
+      this.session = session;
+      this.idleSince = System.nanoTime();
+    }
+
+  }
+
+  private static final class BoundSessions {
+
+    private final Thread thread;
+
+    private volatile Session roSession;
+
+    private volatile Session rwSession;
+
+    BoundSessions(Thread thread) {
+      this.thread = thread;
+    }
+
+  }
+
+  private final Token token;
+
+  private final Long userType;
+
+  private final char[] pin;
+
+  private final int maxSessions;
+
+  private final int maxRwSessions;
+
+  private final Semaphore permits;
+
+  private final Semaphore rwPermits;
+
+  private final LinkedBlockingDeque<IdleSession> idleRoSessions = new LinkedBlockingDeque<>();
+
+  private final LinkedBlockingDeque<IdleSession> idleRwSessions = new LinkedBlockingDeque<>();
+
+  /**
+   * Borrowed sessions, mapped to the flag whether they are read-write sessions.
+   */
+  private final Map<Session, Boolean> borrowedSessions = new ConcurrentHashMap<>();
+
+  /**
+   * Guards opening and closing sessions, {@link #openSessions} and {@link #loggedIn}.
+   */
+  private final Object sessionLock = new Object();
+
+  private final AtomicInteger openSessions = new AtomicInteger();
+
+  private final ThreadLocal<BoundSessions> boundSessions = new ThreadLocal<>();
+
+  /**
+   * Sessions bound to threads, used to release the sessions of dead threads.
+   */
+  private final Map<Thread, BoundSessions> threadBindings = new ConcurrentHashMap<>();
+
+  private volatile boolean loggedIn;
+
+  private volatile boolean closed;
+
+  private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+  private volatile long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+
+  /**
+   * Constructor which sizes the pool from the {@link TokenInfo} of the given token.
+   *
+   * @param token
+   *          The token whose sessions are pooled.
+   * @param userType
+   *          CKU_USER or CKU_SO to log in the sessions, or null if no login is required.
+   * @param pin
+   *          The PIN. May be null, if no login is required or if the token has a protected
+   *          authentication path.
+   * @exception PKCS11Exception
+   *              If reading the token information fails.
+   */
+  public SessionPool(Token token, Long userType, char[] pin) throws PKCS11Exception {
+    this(token, userType, pin, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param token
+   *          The token whose sessions are pooled.
+   * @param userType
+   *          CKU_USER or CKU_SO to log in the sessions, or null if no login is required.
+   * @param pin
+   *          The PIN. May be null, if no login is required or if the token has a protected
+   *          authentication path.
+   * @param maxSessions
+   *          Maximal number of sessions. Will be reduced to the limit announced by the token.
+   * @param maxRwSessions
+   *          Maximal number of read-write sessions. Will be reduced to the limit announced by the
+   *          token.
+   * @exception PKCS11Exception
+   *              If reading the token information fails.
+   */
+  public SessionPool(Token token, Long userType, char[] pin, int maxSessions, int maxRwSessions)
+      throws PKCS11Exception {
+    this.token = Functions.requireNonNull("token", token);
+    Functions.requireRange("maxSessions", maxSessions, 1, Integer.MAX_VALUE);
+    Functions.requireRange("maxRwSessions", maxRwSessions, 0, Integer.MAX_VALUE);
+
+    this.userType = userType;
+    this.pin = pin == null ? null : pin.clone();
+
+    TokenInfo tokenInfo = token.getTokenInfo();
+    int max = Math.min(maxSessions,
+        availableSessions(tokenInfo.getMaxSessionCount(), tokenInfo.getSessionCount()));
+    int maxRw = tokenInfo.hasFlagBit(CKF_WRITE_PROTECTED) ? 0
+        : Math.min(maxRwSessions, availableSessions(tokenInfo.getMaxRwSessionCount(), tokenInfo.getRwSessionCount()));
+
+    this.maxSessions = max;
+    this.maxRwSessions = Math.min(max, maxRw);
+    this.permits = new Semaphore(this.maxSessions, true);
+    this.rwPermits = new Semaphore(this.maxRwSessions, true);
+  }
+
+  private static int availableSessions(long maxCount, long count) {
+    if (maxCount == CK_EFFECTIVELY_INFINITE || isUnavailableInformation(maxCount) || maxCount > Integer.MAX_VALUE) {
+      return DEFAULT_MAX_SESSIONS;
+    }
+
+    int available = (int) maxCount;
+    if (!isUnavailableInformation(count) && count < maxCount) {
+      available -= (int) count;
+    }
+    return Math.max(1, available);
+  }
+
+  /**
+   * Get the token whose sessions are pooled.
+   *
+   * @return the token.
+   */
+  public Token getToken() {
+    return token;
+  }
+
+  /**
+   * Get the maximal number of sessions this pool opens.
+   *
+   * @return the maximal number of sessions.
+   */
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  /**
+   * Get the maximal number of read-write sessions this pool opens.
+   *
+   * @return the maximal number of read-write sessions.
+   */
+  public int getMaxRwSessions() {
+    return maxRwSessions;
+  }
+
+  /**
+   * Get the number of currently open sessions, both idle and borrowed.
+   *
+   * @return the number of open sessions.
+   */
+  public int getOpenSessionCount() {
+    return openSessions.get();
+  }
+
+  /**
+   * Get the number of currently borrowed sessions.
+   *
+   * @return the number of borrowed sessions.
+   */
+  public int getBorrowedSessionCount() {
+    return borrowedSessions.size();
+  }
+
+  public long getBorrowTimeout() {
+    return borrowTimeout;
+  }
+
+  /**
+   * Set the default time to wait for a free session.
+   *
+   * @param borrowTimeout
+   *          Timeout in milliseconds.
+   */
+  public void setBorrowTimeout(long borrowTimeout) {
+    if (borrowTimeout < 0) {
+      throw new IllegalArgumentException("borrowTimeout must not be negative: " + borrowTimeout);
+    }
+    this.borrowTimeout = borrowTimeout;
+  }
+
+  public long getIdleTimeout() {
+    return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+  }
+
+  /**
+   * Set the time after which an idle session will be closed.
+   *
+   * @param idleTimeout
+   *          Timeout in milliseconds. 0 to keep idle sessions open forever.
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    if (idleTimeout < 0) {
+      throw new IllegalArgumentException("idleTimeout must not be negative: " + idleTimeout);
+    }
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+  }
+
+  /**
+   * Borrows a session, waiting at most the default borrow timeout.
+   *
+   * @param rwSession
+   *          true to borrow a read-write session, false to borrow a read-only session.
+   * @return the borrowed session, which is logged in if the pool has been configured with a
+   *         user type.
+   * @exception PKCS11Exception
+   *              If no session is available within the borrow timeout (CKR_SESSION_COUNT), or
+   *              if opening or logging in a new session fails.
+   */
+  public Session borrowSession(boolean rwSession) throws PKCS11Exception {
+    return borrowSession(rwSession, borrowTimeout);
+  }
+
+  /**
+   * Borrows a session.
+   *
+   * @param rwSession
+   *          true to borrow a read-write session, false to borrow a read-only session.
+   * @param timeout
+   *          Maximal time in milliseconds to wait for a free session.
+   * @return the borrowed session, which is logged in if the pool has been configured with a
+   *         user type.
+   * @exception PKCS11Exception
+   *              If no session is available within the timeout (CKR_SESSION_COUNT), if the waiting
+   *              thread has been interrupted (CKR_FUNCTION_CANCELED), or if opening or logging in a
+   *              new session fails.
+   */
+  public Session borrowSession(boolean rwSession, long timeout) throws PKCS11Exception {
+    if (closed) {
+      throw new IllegalStateException("session pool is closed");
+    }
+
+    if (rwSession && maxRwSessions == 0) {
+      throw new PKCS11Exception(CKR_TOKEN_WRITE_PROTECTED);
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    try {
+      if (rwSession && !rwPermits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new PKCS11Exception(CKR_SESSION_COUNT);
+      }
+
+      if (!permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        if (rwSession) {
+          rwPermits.release();
+        }
+        throw new PKCS11Exception(CKR_SESSION_COUNT);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new PKCS11Exception(CKR_FUNCTION_CANCELED);
+    }
+
+    try {
+      evictIdleSessions();
+
+      IdleSession idle = (rwSession ? idleRwSessions : idleRoSessions).pollFirst();
+      Session session = (idle != null) ? idle.session : openSession(rwSession);
+      borrowedSessions.put(session, rwSession);
+      return session;
+    } catch (PKCS11Exception | RuntimeException ex) {
+      releasePermits(rwSession);
+      throw ex;
+    }
+  }
+
+  /**
+   * Returns a session borrowed from this pool. The session must not have any pending operation.
+   *
+   * @param session
+   *          The session to return.
+   */
+  public void returnSession(Session session) {
+    Boolean rwSession = borrowedSessions.remove(Functions.requireNonNull("session", session));
+    if (rwSession == null) {
+      throw new IllegalArgumentException("session is not borrowed from this pool");
+    }
+
+    if (closed) {
+      closeSession(session);
+    } else {
+      (rwSession ? idleRwSessions : idleRoSessions).offerFirst(new IdleSession(session));
+    }
+
+    releasePermits(rwSession);
+  }
+
+  /**
+   * Get the session bound to the current thread. If no session of the requested kind is bound to
+   * the current thread yet, a session is borrowed from this pool and bound to the thread. The
+   * returned session must only be used by the current thread, and must not be returned via
+   * {@link #returnSession(Session)}.
+   *
+   * @param rwSession
+   *          true for a read-write session, false for a read-only session.
+   * @return the session bound to the current thread.
+   * @exception PKCS11Exception
+   *              If no session is bound yet and borrowing a new one fails.
+   */
+  public Session getBoundSession(boolean rwSession) throws PKCS11Exception {
+    BoundSessions bound = boundSessions.get();
+    if (bound != null) {
+      Session session = rwSession ? bound.rwSession : bound.roSession;
+      if (session != null) {
+        return session;
+      }
+    } else {
+      bound = new BoundSessions(Thread.currentThread());
+      boundSessions.set(bound);
+    }
+
+    releaseDeadThreadSessions();
+
+    Session session = borrowSession(rwSession);
+    if (rwSession) {
+      bound.rwSession = session;
+    } else {
+      bound.roSession = session;
+    }
+    threadBindings.put(bound.thread, bound);
+    return session;
+  }
+
+  /**
+   * Returns the sessions bound to the current thread to this pool. The sessions must not have any
+   * pending operation.
+   */
+  public void releaseBoundSessions() {
+    BoundSessions bound = boundSessions.get();
+    if (bound == null) {
+      return;
+    }
+
+    boundSessions.remove();
+    threadBindings.remove(bound.thread);
+    releaseBoundSessions(bound, false);
+  }
+
+  /**
+   * Closes the sessions bound to the current thread instead of returning them, e.g. if a session
+   * is in an unknown state after an error. The next call of {@link #getBoundSession(boolean)}
+   * binds a fresh session.
+   */
+  public void invalidateBoundSessions() {
+    BoundSessions bound = boundSessions.get();
+    if (bound == null) {
+      return;
+    }
+
+    boundSessions.remove();
+    threadBindings.remove(bound.thread);
+    releaseBoundSessions(bound, true);
+  }
+
+  /**
+   * Closes the sessions bound to threads which are no longer alive. The state of these sessions is
+   * unknown, so they are not reused. This method is called whenever a new session is bound to a
+   * thread, and on every idle eviction.
+   */
+  public void releaseDeadThreadSessions() {
+    if (threadBindings.isEmpty()) {
+      return;
+    }
+
+    for (BoundSessions bound : threadBindings.values()) {
+      if (!bound.thread.isAlive() && threadBindings.remove(bound.thread) != null) {
+        releaseBoundSessions(bound, true);
+      }
+    }
+  }
+
+  private void releaseBoundSessions(BoundSessions bound, boolean invalidate) {
+    Session[] sessions = {bound.roSession, bound.rwSession};
+    bound.roSession = null;
+    bound.rwSession = null;
+
+    for (Session session : sessions) {
+      if (session != null) {
+        if (invalidate) {
+          invalidateSession(session);
+        } else {
+          returnSession(session);
+        }
+      }
+    }
+  }
+
+  /**
+   * Closes a session borrowed from this pool instead of returning it, e.g. if the session is
+   * in an unknown state after an error.
+   *
+   * @param session
+   *          The session to close.
+   */
+  public void invalidateSession(Session session) {
+    Boolean rwSession = borrowedSessions.remove(Functions.requireNonNull("session", session));
+    if (rwSession == null) {
+      throw new IllegalArgumentException("session is not borrowed from this pool");
+    }
+
+    closeSession(session);
+    releasePermits(rwSession);
+  }
+
+  /**
+   * Closes all sessions which have been idle for longer than the idle timeout. This method is
+   * called on every borrow; applications with long quiet periods may call it periodically.
+   */
+  public void evictIdleSessions() {
+    releaseDeadThreadSessions();
+
+    long timeout = idleTimeoutNanos;
+    if (timeout == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    evictIdleSessions(idleRoSessions, now, timeout);
+    evictIdleSessions(idleRwSessions, now, timeout);
+  }
+
+  private void evictIdleSessions(LinkedBlockingDeque<IdleSession> idleSessions, long now, long timeout) {
+    // the eldest idle session is always the last one.
+    IdleSession idle;
+    while ((idle = idleSessions.peekLast()) != null && now - idle.idleSince > timeout) {
+      if (idleSessions.removeLastOccurrence(idle)) {
+        closeSession(idle.session);
+      }
+    }
+  }
+
+  /**
+   * Closes all idle sessions and all sessions bound to threads. Borrowed sessions will be closed
+   * when they are returned. The worker threads should have stopped using their bound sessions
+   * before the pool is closed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Thread thread : threadBindings.keySet()) {
+      BoundSessions bound = threadBindings.remove(thread);
+      if (bound != null) {
+        releaseBoundSessions(bound, true);
+      }
+    }
+
+    IdleSession idle;
+    while ((idle = idleRoSessions.pollFirst()) != null) {
+      closeSession(idle.session);
+    }
+
+    while ((idle = idleRwSessions.pollFirst()) != null) {
+      closeSession(idle.session);
+    }
+
+    if (pin != null) {
+      Arrays.fill(pin, '\0');
+    }
+  }
+
+  private Session openSession(boolean rwSession) throws PKCS11Exception {
+    // Opening and closing sessions, the session count and the login state are changed under the
+    // same lock: otherwise a session opened while the last one is being closed would see the
+    // stale loggedIn flag, skip the login and stay logged out after the token's implicit logout.
+    synchronized (sessionLock) {
+      // idle sessions of the other lane still count for the token's session limit.
+      LinkedBlockingDeque<IdleSession> otherLane = rwSession ? idleRoSessions : idleRwSessions;
+      while (openSessions.get() >= maxSessions) {
+        IdleSession idle = otherLane.pollLast();
+        if (idle == null) {
+          break;
+        }
+        closeSession(idle.session);
+      }
+
+      Session session = token.openSession(rwSession);
+      openSessions.incrementAndGet();
+      try {
+        login(session);
+      } catch (PKCS11Exception | RuntimeException ex) {
+        closeSession(session);
+        throw ex;
+      }
+      return session;
+    }
+  }
+
+  /**
+   * Logs in the user with the first session. Must be called with the session lock held.
+   */
+  private void login(Session session) throws PKCS11Exception {
+    if (userType == null || loggedIn) {
+      return;
+    }
+
+    try {
+      session.login(userType, pin);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != CKR_USER_ALREADY_LOGGED_IN) {
+        throw ex;
+      }
+    }
+    loggedIn = true;
+  }
+
+  private void closeSession(Session session) {
+    synchronized (sessionLock) {
+      try {
+        session.closeSession();
+      } catch (PKCS11Exception ex) {
+        // ignore, the session is not usable anyway.
+      }
+
+      if (openSessions.decrementAndGet() == 0) {
+        // closing the last session of a token logs out the user.
+        loggedIn = false;
+      }
+    }
+  }
+
+  private void releasePermits(boolean rwSession) {
+    permits.release();
+    if (rwSession) {
+      rwPermits.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SessionPool of " + token + "\nmaxSessions: " + maxSessions + ", maxRwSessions: " + maxRwSessions
+        + ", open: " + openSessions.get() + ", borrowed: " + borrowedSessions.size();
+  }
+
+}
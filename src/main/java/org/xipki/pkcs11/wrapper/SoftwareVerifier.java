@@ -0,0 +1,539 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import iaik.pkcs.pkcs11.wrapper.CK_RSA_PKCS_PSS_PARAMS;
+import org.xipki.pkcs11.wrapper.params.RSA_PKCS_PSS_PARAMS;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Verifies signatures in software with the public keys of the token. Verification needs no secret,
+ * so the token is only asked once per public key for its attributes (CKA_MODULUS and
+ * CKA_PUBLIC_EXPONENT, or CKA_EC_PARAMS and CKA_EC_POINT), which are converted to a JCA
+ * {@link PublicKey} and kept. The verifications themselves run in the calling threads, or, via
+ * {@link #verifyAsync(Mechanism, long, byte[], byte[])}, in an executor which uses all cores.
+ * <p>
+ * Supported are RSA PKCS#1 v1.5 and PSS with SHA-1 and SHA-2 (CKM_RSA_PKCS and
+ * CKM_SHA*_RSA_PKCS[_PSS]), ECDSA (CKM_ECDSA and CKM_ECDSA_SHA*), and EdDSA (CKM_EDDSA) if the
+ * Java runtime provides the algorithm. All other mechanisms and keys, e.g. SHA-3 on older Java
+ * versions or curves unknown to the runtime, are verified by the token with a session of the
+ * {@link SessionPool}.
+ * <pre><code>
+ *   SoftwareVerifier verifier = new SoftwareVerifier(pool);
+ *   boolean valid = verifier.verify(mechanism, publicKeyHandle, data, signature);
+ * </code></pre>
+ * Public keys modified or destroyed via any {@link Session} of the same module are removed
+ * automatically, since the handle may be reused for another object. Changes made by other
+ * applications must be signaled via {@link #invalidate(long)}. The verifier should be closed if it
+ * is not used any more, so that it is no longer notified of object changes. This class is
+ * thread-safe.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class SoftwareVerifier implements AutoCloseable {
+
+  /**
+   * Maximal number of cached public keys. If more keys are used, the cache is cleared.
+   */
+  public static final int MAX_CACHED_KEYS = 10000;
+
+  private static final LongMap<String> SIGNATURE_ALGORITHMS = new LongMap<>(32);
+
+  private static final LongMap<String> HASH_ALGORITHMS = new LongMap<>(8);
+
+  private static final LongMap<String> MGF_HASH_ALGORITHMS = new LongMap<>(8);
+
+  private static final LongMap<Long> PSS_HASH_MECHANISMS = new LongMap<>(8);
+
+  private static final String PSS = "RSASSA-PSS";
+
+  static {
+    LongMap<String> m = SIGNATURE_ALGORITHMS;
+    m.put(CKM_RSA_PKCS, "NONEwithRSA");
+    m.put(CKM_SHA1_RSA_PKCS, "SHA1withRSA");
+    m.put(CKM_SHA224_RSA_PKCS, "SHA224withRSA");
+    m.put(CKM_SHA256_RSA_PKCS, "SHA256withRSA");
+    m.put(CKM_SHA384_RSA_PKCS, "SHA384withRSA");
+    m.put(CKM_SHA512_RSA_PKCS, "SHA512withRSA");
+    m.put(CKM_SHA3_224_RSA_PKCS, "SHA3-224withRSA");
+    m.put(CKM_SHA3_256_RSA_PKCS, "SHA3-256withRSA");
+    m.put(CKM_SHA3_384_RSA_PKCS, "SHA3-384withRSA");
+    m.put(CKM_SHA3_512_RSA_PKCS, "SHA3-512withRSA");
+    m.put(CKM_SHA1_RSA_PKCS_PSS, PSS);
+    m.put(CKM_SHA224_RSA_PKCS_PSS, PSS);
+    m.put(CKM_SHA256_RSA_PKCS_PSS, PSS);
+    m.put(CKM_SHA384_RSA_PKCS_PSS, PSS);
+    m.put(CKM_SHA512_RSA_PKCS_PSS, PSS);
+    m.put(CKM_ECDSA, "NONEwithECDSA");
+    m.put(CKM_ECDSA_SHA1, "SHA1withECDSA");
+    m.put(CKM_ECDSA_SHA224, "SHA224withECDSA");
+    m.put(CKM_ECDSA_SHA256, "SHA256withECDSA");
+    m.put(CKM_ECDSA_SHA384, "SHA384withECDSA");
+    m.put(CKM_ECDSA_SHA512, "SHA512withECDSA");
+    m.put(CKM_ECDSA_SHA3_224, "SHA3-224withECDSA");
+    m.put(CKM_ECDSA_SHA3_256, "SHA3-256withECDSA");
+    m.put(CKM_ECDSA_SHA3_384, "SHA3-384withECDSA");
+    m.put(CKM_ECDSA_SHA3_512, "SHA3-512withECDSA");
+    m.put(CKM_EDDSA, "EdDSA");
+
+    HASH_ALGORITHMS.put(CKM_SHA_1, "SHA-1");
+    HASH_ALGORITHMS.put(CKM_SHA224, "SHA-224");
+    HASH_ALGORITHMS.put(CKM_SHA256, "SHA-256");
+    HASH_ALGORITHMS.put(CKM_SHA384, "SHA-384");
+    HASH_ALGORITHMS.put(CKM_SHA512, "SHA-512");
+
+    PSS_HASH_MECHANISMS.put(CKM_SHA1_RSA_PKCS_PSS, CKM_SHA_1);
+    PSS_HASH_MECHANISMS.put(CKM_SHA224_RSA_PKCS_PSS, CKM_SHA224);
+    PSS_HASH_MECHANISMS.put(CKM_SHA256_RSA_PKCS_PSS, CKM_SHA256);
+    PSS_HASH_MECHANISMS.put(CKM_SHA384_RSA_PKCS_PSS, CKM_SHA384);
+    PSS_HASH_MECHANISMS.put(CKM_SHA512_RSA_PKCS_PSS, CKM_SHA512);
+
+    MGF_HASH_ALGORITHMS.put(CKG_MGF1_SHA1, "SHA-1");
+    MGF_HASH_ALGORITHMS.put(CKG_MGF1_SHA224, "SHA-224");
+    MGF_HASH_ALGORITHMS.put(CKG_MGF1_SHA256, "SHA-256");
+    MGF_HASH_ALGORITHMS.put(CKG_MGF1_SHA384, "SHA-384");
+    MGF_HASH_ALGORITHMS.put(CKG_MGF1_SHA512, "SHA-512");
+  }
+
+  // OID 1.2.840.10045.2.1 (id-ecPublicKey)
+  private static final byte[] EC_PUBLIC_KEY_OID = {0x06, 0x07, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x02, 0x01};
+
+  // OID 1.3.101.112 (id-Ed25519)
+  private static final byte[] ED25519_OID = {0x06, 0x03, 0x2b, 0x65, 0x70};
+
+  // OID 1.3.101.113 (id-Ed448)
+  private static final byte[] ED448_OID = {0x06, 0x03, 0x2b, 0x65, 0x71};
+
+  /**
+   * Public key of a handle, with a null key if the key cannot be used in software.
+   */
+  private static final class KeyEntry {
+
+    private final long keyType;
+
+    private final PublicKey key;
+
+    /**
+     * The size of the curve order in bytes for EC keys, 0 otherwise.
+     */
+    private final int ecOrderSize;
+
+    KeyEntry(long keyType, PublicKey key) {
+      this.keyType = keyType;
+      this.key = key;
+      this.ecOrderSize = (key instanceof ECPublicKey)
+          ? (((ECPublicKey) key).getParams().getOrder().bitLength() + 7) / 8 : 0;
+    }
+
+  } // class KeyEntry
+
+  private final SessionPool pool;
+
+  private final Executor executor;
+
+  private final ConcurrentHashMap<Long, KeyEntry> keys = new ConcurrentHashMap<>();
+
+  private final PKCS11Module module;
+
+  private final PKCS11Module.ObjectListener listener;
+
+  /**
+   * Constructor which runs asynchronous verifications in the common fork-join pool.
+   *
+   * @param pool The pool providing the sessions to read the public keys and to verify on the token.
+   */
+  public SoftwareVerifier(SessionPool pool) {
+    this(pool, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param pool     The pool providing the sessions to read the public keys and to verify on the
+   *                 token.
+   * @param executor The executor of asynchronous verifications.
+   */
+  public SoftwareVerifier(SessionPool pool, Executor executor) {
+    this.pool = Functions.requireNonNull("pool", pool);
+    this.executor = Functions.requireNonNull("executor", executor);
+    this.module = pool.getToken().getSlot().getModule();
+
+    final long tokenId = pool.getToken().getTokenID();
+    this.listener = new PKCS11Module.ObjectListener() {
+      @Override
+      public void objectCreated(Session session, long objectHandle) {
+        // the handle of an object destroyed by another application may have been reused.
+        objectChanged(session, objectHandle);
+      }
+
+      @Override
+      public void objectModified(Session session, long objectHandle) {
+        objectChanged(session, objectHandle);
+      }
+
+      @Override
+      public void objectDestroyed(Session session, long objectHandle) {
+        objectChanged(session, objectHandle);
+      }
+
+      private void objectChanged(Session session, long objectHandle) {
+        if (session.getToken().getTokenID() == tokenId) {
+          keys.remove(objectHandle);
+        }
+      }
+    };
+
+    module.addObjectListener(listener);
+  }
+
+  /**
+   * Verifies the signature.
+   *
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The public key.
+   * @param data      The signed data.
+   * @param signature The signature.
+   * @return true if the signature is valid, false otherwise.
+   * @throws PKCS11Exception If reading the public key, or verifying on the token failed.
+   */
+  public boolean verify(Mechanism mechanism, long keyHandle, byte[] data, byte[] signature)
+      throws PKCS11Exception {
+    Functions.requireNonNull("mechanism", mechanism);
+    Functions.requireNonNull("data", data);
+    Functions.requireNonNull("signature", signature);
+
+    Signature verifier = softwareVerifier(mechanism, keyHandle);
+    if (verifier != null) {
+      try {
+        verifier.update(data);
+        return verifier.verify(toJcaSignature(mechanism.getMechanismCode(), publicKey(keyHandle), signature));
+      } catch (SignatureException e) {
+        // malformed signature
+        return false;
+      }
+    }
+
+    return verifyOnToken(mechanism, keyHandle, data, signature);
+  }
+
+  /**
+   * Verifies the signature in the executor.
+   *
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The public key.
+   * @param data      The signed data.
+   * @param signature The signature.
+   * @return the future of the verification result.
+   */
+  public CompletableFuture<Boolean> verifyAsync(Mechanism mechanism, long keyHandle, byte[] data, byte[] signature) {
+    CompletableFuture<Boolean> future = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        future.complete(verify(mechanism, keyHandle, data, signature));
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Returns whether signatures of the given mechanism and key are verified in software.
+   *
+   * @param mechanism The signature mechanism.
+   * @param keyHandle The public key.
+   * @return true if verified in software, false if verified on the token.
+   * @throws PKCS11Exception If reading the public key failed.
+   */
+  public boolean isVerifiedInSoftware(Mechanism mechanism, long keyHandle) throws PKCS11Exception {
+    return softwareVerifier(mechanism, keyHandle) != null;
+  }
+
+  /**
+   * Removes the public key of the given handle, e.g. after the object has been destroyed by another
+   * application.
+   *
+   * @param keyHandle The handle of the public key.
+   */
+  public void invalidate(long keyHandle) {
+    keys.remove(keyHandle);
+  }
+
+  /**
+   * Removes all public keys.
+   */
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * Stops listening to object changes and removes all public keys. The pool is not closed.
+   */
+  @Override
+  public void close() {
+    module.removeObjectListener(listener);
+    keys.clear();
+  }
+
+  @Override
+  public String toString() {
+    return "SoftwareVerifier: " + keys.size() + " public keys, " + pool;
+  }
+
+  /**
+   * Returns the initialized JCA signature, or null if the mechanism or the key is not supported in
+   * software.
+   */
+  private Signature softwareVerifier(Mechanism mechanism, long keyHandle) throws PKCS11Exception {
+    long code = mechanism.getMechanismCode();
+    String algorithm = SIGNATURE_ALGORITHMS.get(code);
+    if (algorithm == null || (code == CKM_EDDSA && mechanism.getParameters() != null)) {
+      // Ed25519ph, Ed25519ctx and Ed448 with context are verified on the token.
+      return null;
+    }
+
+    KeyEntry entry = publicKey(keyHandle);
+    if (entry.key == null || !matches(code, entry.keyType)) {
+      return null;
+    }
+
+    try {
+      Signature signature = Signature.getInstance(algorithm);
+      if (algorithm.equals(PSS)) {
+        PSSParameterSpec spec = toPssSpec(mechanism);
+        if (spec == null) {
+          return null;
+        }
+        signature.setParameter(spec);
+      }
+      signature.initVerify(entry.key);
+      return signature;
+    } catch (GeneralSecurityException e) {
+      // algorithm or parameters not supported by the Java runtime.
+      return null;
+    }
+  }
+
+  private static boolean matches(long mechanism, long keyType) {
+    if (mechanism == CKM_EDDSA) {
+      return keyType == CKK_EC_EDWARDS;
+    } else if (mechanism == CKM_ECDSA || (mechanism >= CKM_ECDSA_SHA1 && mechanism <= CKM_ECDSA_SHA3_512)) {
+      return keyType == CKK_EC;
+    } else {
+      return keyType == CKK_RSA;
+    }
+  }
+
+  private static PSSParameterSpec toPssSpec(Mechanism mechanism) {
+    if (!(mechanism.getParameters() instanceof RSA_PKCS_PSS_PARAMS)) {
+      return null;
+    }
+
+    CK_RSA_PKCS_PSS_PARAMS params = ((RSA_PKCS_PSS_PARAMS) mechanism.getParameters()).getParams();
+    Long mechanismHash = PSS_HASH_MECHANISMS.get(mechanism.getMechanismCode());
+    if (mechanismHash != null && mechanismHash != params.hashAlg) {
+      // rejected by the token with CKR_MECHANISM_PARAM_INVALID
+      return null;
+    }
+
+    String hashAlg = HASH_ALGORITHMS.get(params.hashAlg);
+    String mgfHashAlg = MGF_HASH_ALGORITHMS.get(params.mgf);
+    if (hashAlg == null || mgfHashAlg == null) {
+      return null;
+    }
+
+    return new PSSParameterSpec(hashAlg, "MGF1", new MGF1ParameterSpec(mgfHashAlg), (int) params.sLen, 1);
+  }
+
+  private KeyEntry publicKey(long keyHandle) throws PKCS11Exception {
+    KeyEntry entry = keys.get(keyHandle);
+    if (entry == null) {
+      entry = readPublicKey(keyHandle);
+      if (keys.size() >= MAX_CACHED_KEYS) {
+        keys.clear();
+      }
+      keys.put(keyHandle, entry);
+    }
+    return entry;
+  }
+
+  private KeyEntry readPublicKey(long keyHandle) throws PKCS11Exception {
+    Session session = pool.borrowSession(false);
+    try {
+      AttributeVector attrs = session.getAttrValues(keyHandle, CKA_CLASS, CKA_KEY_TYPE);
+      Long objectClass = attrs.class_();
+      Long keyType = attrs.keyType();
+      if (objectClass == null || objectClass != CKO_PUBLIC_KEY || keyType == null) {
+        return new KeyEntry(keyType == null ? -1 : keyType, null);
+      }
+
+      PublicKey key = null;
+      try {
+        if (keyType == CKK_RSA) {
+          attrs = session.getAttrValues(keyHandle, CKA_MODULUS, CKA_PUBLIC_EXPONENT);
+          BigInteger modulus = attrs.modulus();
+          BigInteger exponent = attrs.publicExponent();
+          if (modulus != null && exponent != null) {
+            key = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+          }
+        } else if (keyType == CKK_EC || keyType == CKK_EC_EDWARDS) {
+          attrs = session.getAttrValues(keyHandle, CKA_EC_PARAMS, CKA_EC_POINT);
+          byte[] ecParams = attrs.ecParams();
+          byte[] ecPoint = attrs.ecPoint();
+          if (ecParams != null && ecPoint != null) {
+            key = toEcPublicKey(keyType, Functions.fixECParams(ecParams), ecPoint);
+          }
+        }
+      } catch (GeneralSecurityException e) {
+        // key not supported by the Java runtime, e.g. unknown curve.
+        key = null;
+      }
+      return new KeyEntry(keyType, key);
+    } finally {
+      pool.returnSession(session);
+    }
+  }
+
+  private static PublicKey toEcPublicKey(long keyType, byte[] ecParams, byte[] ecPoint)
+      throws GeneralSecurityException {
+    byte[] point = octetStringContent(Functions.fixECPoint(ecPoint, ecParams));
+    if (point == null) {
+      return null;
+    }
+
+    byte[] algId;
+    String keyAlgorithm;
+    if (keyType == CKK_EC) {
+      algId = derSequence(EC_PUBLIC_KEY_OID, ecParams);
+      keyAlgorithm = "EC";
+    } else if (Arrays.equals(ED25519_OID, ecParams)) {
+      algId = derSequence(ED25519_OID);
+      keyAlgorithm = "Ed25519";
+    } else if (Arrays.equals(ED448_OID, ecParams)) {
+      algId = derSequence(ED448_OID);
+      keyAlgorithm = "Ed448";
+    } else {
+      return null;
+    }
+
+    byte[] bitString = new byte[1 + point.length];
+    System.arraycopy(point, 0, bitString, 1, point.length);
+    byte[] spki = derSequence(algId, derEncode(0x03, bitString));
+    return KeyFactory.getInstance(keyAlgorithm).generatePublic(new X509EncodedKeySpec(spki));
+  }
+
+  /**
+   * Converts the PKCS#11 signature to the format expected by JCA: ECDSA signatures from r || s to
+   * the DER-encoded SEQUENCE of r and s, each of the size of the curve order.
+   */
+  private static byte[] toJcaSignature(long mechanism, KeyEntry key, byte[] signature)
+      throws SignatureException {
+    if (mechanism == CKM_EDDSA || !matches(mechanism, CKK_EC)) {
+      return signature;
+    }
+
+    // the token rejects other lengths with CKR_SIGNATURE_LEN_RANGE
+    if (signature.length != 2 * key.ecOrderSize) {
+      throw new SignatureException("invalid ECDSA signature length");
+    }
+
+    int len = signature.length / 2;
+    byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, len)).toByteArray();
+    byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, len, signature.length)).toByteArray();
+    return derSequence(derEncode(0x02, r), derEncode(0x02, s));
+  }
+
+  private static byte[] octetStringContent(byte[] encoded) {
+    if (encoded.length < 2 || encoded[0] != 0x04) {
+      return null;
+    }
+
+    int ofs = 1;
+    int b = 0xFF & encoded[ofs++];
+    int len;
+    if (b < 0x80) {
+      len = b;
+    } else {
+      int numLenBytes = b & 0x7F;
+      if (numLenBytes > 3 || ofs + numLenBytes > encoded.length) {
+        return null;
+      }
+      len = 0;
+      for (int i = 0; i < numLenBytes; i++) {
+        len = (len << 8) | (0xFF & encoded[ofs++]);
+      }
+    }
+
+    return (ofs + len == encoded.length) ? Arrays.copyOfRange(encoded, ofs, encoded.length) : null;
+  }
+
+  private static byte[] derSequence(byte[]... elements) {
+    int len = 0;
+    for (byte[] element : elements) {
+      len += element.length;
+    }
+
+    byte[] content = new byte[len];
+    int ofs = 0;
+    for (byte[] element : elements) {
+      System.arraycopy(element, 0, content, ofs, element.length);
+      ofs += element.length;
+    }
+    return derEncode(0x30, content);
+  }
+
+  private static byte[] derEncode(int tag, byte[] content) {
+    int len = content.length;
+    int numLenBytes = (len <= 0x7F) ? 0 : (len <= 0xFF) ? 1 : (len <= 0xFFFF) ? 2 : 3;
+    byte[] ret = new byte[2 + numLenBytes + len];
+    ret[0] = (byte) tag;
+    if (numLenBytes == 0) {
+      ret[1] = (byte) len;
+    } else {
+      ret[1] = (byte) (0x80 | numLenBytes);
+      for (int i = 0; i < numLenBytes; i++) {
+        ret[1 + numLenBytes - i] = (byte) (len >> (8 * i));
+      }
+    }
+    System.arraycopy(content, 0, ret, 2 + numLenBytes, len);
+    return ret;
+  }
+
+  private boolean verifyOnToken(Mechanism mechanism, long keyHandle, byte[] data, byte[] signature)
+      throws PKCS11Exception {
+    Session session = pool.borrowSession(false);
+    try {
+      session.verifyInit(mechanism, keyHandle);
+      session.verify(data, signature);
+      return true;
+    } catch (PKCS11Exception e) {
+      long code = e.getErrorCode();
+      if (code == CKR_SIGNATURE_INVALID || code == CKR_SIGNATURE_LEN_RANGE) {
+        return false;
+      }
+      throw e;
+    } finally {
+      pool.returnSession(session);
+    }
+  }
+
+}
@@ -0,0 +1,215 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-part operation of a {@link Session} fed chunk by chunk, used by {@link OperationInputStream}
+ * and {@link OperationOutputStream}. The operation must have been initialized in the session, e.g.
+ * via {@link Session#encryptInit(Mechanism, long)}.
+ *
+ * @author Lijun Liao (xipki)
+ */
+abstract class StreamOperation {
+
+  static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+  static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Maximal number of bytes an update of an encryption or decryption may output in addition to its
+   * input, e.g. buffered bytes of a previous block.
+   */
+  private static final int MAX_OUTPUT_OVERHEAD = 256;
+
+  private static final int MAX_DIGEST_SIZE = 128;
+
+  private static final byte[] NO_OUTPUT = new byte[0];
+
+  private static volatile ExecutorService ioExecutor;
+
+  final Session session;
+
+  private byte[] result;
+
+  private StreamOperation(Session session) {
+    this.session = Functions.requireNonNull("session", session);
+  }
+
+  /**
+   * Returns the executor used for the read-ahead and write-behind of the streams. Its threads are
+   * daemon threads and terminate if they are idle.
+   */
+  static ExecutorService ioExecutor() {
+    ExecutorService executor = ioExecutor;
+    if (executor == null) {
+      synchronized (StreamOperation.class) {
+        executor = ioExecutor;
+        if (executor == null) {
+          AtomicInteger counter = new AtomicInteger();
+          executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "pkcs11-stream-io-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+          ioExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  static int checkChunkSize(int chunkSize) {
+    return Functions.requireRange("chunkSize", chunkSize, 1, MAX_CHUNK_SIZE);
+  }
+
+  /**
+   * Returns whether the operation transforms the data (encryption, decryption). Otherwise the data
+   * are only consumed (signing, verification, digesting).
+   */
+  abstract boolean hasOutput();
+
+  /**
+   * Returns the size of the output buffer required for an input chunk of the given size.
+   */
+  int outputBufferSize(int chunkSize) {
+    return hasOutput() ? chunkSize + MAX_OUTPUT_OVERHEAD : 0;
+  }
+
+  /**
+   * Processes the chunk.
+   *
+   * @return the number of bytes written to out.
+   */
+  abstract int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception;
+
+  /**
+   * Finalizes the operation. The final output is returned as array and not written to a buffer of
+   * the chunk size, since it may be much larger than a chunk, e.g. the complete plaintext of an
+   * AES-GCM decryption.
+   *
+   * @return the final output, empty if the operation has no output.
+   */
+  abstract byte[] doFinal() throws PKCS11Exception;
+
+  /**
+   * Returns the signature or message digest, available after {@link #doFinal()}.
+   */
+  byte[] getResult() {
+    return result == null ? null : result.clone();
+  }
+
+  static StreamOperation encrypt(Session session) {
+    return new StreamOperation(session) {
+      @Override
+      boolean hasOutput() {
+        return true;
+      }
+
+      @Override
+      int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception {
+        return session.encryptUpdate(in, inOfs, inLen, out, 0, out.length);
+      }
+
+      @Override
+      byte[] doFinal() throws PKCS11Exception {
+        return session.encryptFinal();
+      }
+    };
+  }
+
+  static StreamOperation decrypt(Session session) {
+    return new StreamOperation(session) {
+      @Override
+      boolean hasOutput() {
+        return true;
+      }
+
+      @Override
+      int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception {
+        return session.decryptUpdate(in, inOfs, inLen, out, 0, out.length);
+      }
+
+      @Override
+      byte[] doFinal() throws PKCS11Exception {
+        return session.decryptFinal();
+      }
+    };
+  }
+
+  static StreamOperation sign(Session session) {
+    return new StreamOperation(session) {
+      @Override
+      boolean hasOutput() {
+        return false;
+      }
+
+      @Override
+      int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception {
+        session.signUpdate(in, inOfs, inLen);
+        return 0;
+      }
+
+      @Override
+      byte[] doFinal() throws PKCS11Exception {
+        setResult(session.signFinal());
+        return NO_OUTPUT;
+      }
+    };
+  }
+
+  static StreamOperation verify(Session session, byte[] signature) {
+    Functions.requireNonNull("signature", signature);
+    return new StreamOperation(session) {
+      @Override
+      boolean hasOutput() {
+        return false;
+      }
+
+      @Override
+      int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception {
+        session.verifyUpdate(in, inOfs, inLen);
+        return 0;
+      }
+
+      @Override
+      byte[] doFinal() throws PKCS11Exception {
+        session.verifyFinal(signature);
+        return NO_OUTPUT;
+      }
+    };
+  }
+
+  static StreamOperation digest(Session session) {
+    return new StreamOperation(session) {
+      @Override
+      boolean hasOutput() {
+        return false;
+      }
+
+      @Override
+      int update(byte[] in, int inOfs, int inLen, byte[] out) throws PKCS11Exception {
+        session.digestUpdate(in, inOfs, inLen);
+        return 0;
+      }
+
+      @Override
+      byte[] doFinal() throws PKCS11Exception {
+        byte[] digest = new byte[MAX_DIGEST_SIZE];
+        int len = session.digestFinal(digest, 0, digest.length);
+        setResult(Arrays.copyOf(digest, len));
+        return NO_OUTPUT;
+      }
+    };
+  }
+
+  void setResult(byte[] result) {
+    this.result = result;
+  }
+
+}
@@ -183,7 +183,24 @@ public class Token {
   public Session openSession(boolean rwSession, Object application) throws PKCS11Exception {
     long flags = rwSession ? PKCS11Constants.CKF_SERIAL_SESSION | PKCS11Constants.CKF_RW_SESSION : PKCS11Constants.CKF_SERIAL_SESSION;
     long sessionHandle = slot.getModule().getPKCS11Module().C_OpenSession(slot.getSlotID(), flags, application, null);
-    return new Session(this, sessionHandle);
+    return new Session(this, sessionHandle, rwSession);
+  }
+
+  /**
+   * Creates a new pool of sessions of this token. The pool is sized from the session limits
+   * announced in the {@link TokenInfo}.
+   *
+   * @param userType
+   *          CKU_USER or CKU_SO to log in the sessions, or null if no login is required.
+   * @param pin
+   *          The PIN. May be null, if no login is required or if the token has a protected
+   *          authentication path.
+   * @return the new session pool.
+   * @exception PKCS11Exception
+   *              If reading the token information fails.
+   */
+  public SessionPool newSessionPool(Long userType, char[] pin) throws PKCS11Exception {
+    return new SessionPool(this, userType, pin);
   }
 
   /**
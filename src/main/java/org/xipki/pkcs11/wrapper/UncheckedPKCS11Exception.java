@@ -0,0 +1,35 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper;
+
+/**
+ * Wraps a {@link PKCS11Exception} with an unchecked exception. It is thrown by the methods which
+ * cannot declare checked exceptions, e.g. those of {@link java.util.Iterator} and
+ * {@link java.util.stream.Stream}.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class UncheckedPKCS11Exception extends RuntimeException {
+
+  /**
+   * Constructor taking the exception to wrap.
+   *
+   * @param cause
+   *          The PKCS11Exception to wrap.
+   */
+  public UncheckedPKCS11Exception(PKCS11Exception cause) {
+    super(Functions.requireNonNull("cause", cause));
+  }
+
+  /**
+   * Returns the wrapped exception.
+   *
+   * @return the wrapped PKCS11Exception.
+   */
+  @Override
+  public PKCS11Exception getCause() {
+    return (PKCS11Exception) super.getCause();
+  }
+
+}
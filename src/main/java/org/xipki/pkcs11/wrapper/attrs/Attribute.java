@@ -9,6 +9,7 @@ package org.xipki.pkcs11.wrapper.attrs;
 import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
 import org.xipki.pkcs11.wrapper.AttributeVector;
 import org.xipki.pkcs11.wrapper.Functions;
+import org.xipki.pkcs11.wrapper.LongMap;
 import org.xipki.pkcs11.wrapper.PKCS11Constants;
 
 import java.math.BigInteger;
@@ -45,7 +46,7 @@ public abstract class Attribute {
     MECHANISMARRAY
   }
 
-  private static final Map<Long, AttrType> attributeTypes;
+  private static final LongMap<AttrType> attributeTypes;
 
   /**
    * True, if the object really possesses this attribute.
@@ -64,7 +65,7 @@ public abstract class Attribute {
   protected CK_ATTRIBUTE ckAttribute;
 
   static {
-    attributeTypes = new HashMap<>(130);
+    attributeTypes = new LongMap<>(130);
     String propFile = "org/xipki/pkcs11/wrapper/type-CKA.properties";
     Properties props = new Properties();
     try {
@@ -0,0 +1,315 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.params.ByteArrayParams;
+import org.xipki.pkcs11.wrapper.params.GCM_PARAMS;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayOutputStream;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Cipher of the {@link PKCS11Provider}. The input (and for GCM the AAD) is collected in memory and
+ * encrypted or decrypted with a single-part operation by doFinal, update returns no output.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PKCS11CipherSpi extends CipherSpi {
+
+  private static final int AES_BLOCK_SIZE = 16;
+
+  private static final int DEFAULT_TAG_BITS = 128;
+
+  private final PKCS11Provider provider;
+
+  private final long mechanismCode;
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private final ByteArrayOutputStream aad = new ByteArrayOutputStream();
+
+  private PKCS11Key key;
+
+  private boolean encrypt;
+
+  private byte[] iv;
+
+  private int tagBits;
+
+  /**
+   * Whether the IV has been used for a GCM encryption, and must not be used again.
+   */
+  private boolean ivUsed;
+
+  PKCS11CipherSpi(PKCS11Provider provider, Mechanism mechanism) {
+    this.provider = provider;
+    this.mechanismCode = mechanism.getMechanismCode();
+  }
+
+  @Override
+  protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+    // the services are registered with the complete transformation.
+    throw new NoSuchAlgorithmException("mode cannot be changed");
+  }
+
+  @Override
+  protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+    throw new NoSuchPaddingException("padding cannot be changed");
+  }
+
+  @Override
+  protected int engineGetBlockSize() {
+    return isRsa() ? 0 : AES_BLOCK_SIZE;
+  }
+
+  @Override
+  protected int engineGetOutputSize(int inputLen) {
+    int len = buffer.size() + inputLen;
+    if (isRsa()) {
+      return (key == null) ? len : (key.getBitLength() + 7) / 8;
+    } else if (mechanismCode == CKM_AES_GCM) {
+      return encrypt ? len + tagBits / 8 : Math.max(0, len - tagBits / 8);
+    } else if (mechanismCode == CKM_AES_CBC_PAD && encrypt) {
+      return (len / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+    } else {
+      return len;
+    }
+  }
+
+  @Override
+  protected byte[] engineGetIV() {
+    return iv == null ? null : iv.clone();
+  }
+
+  @Override
+  protected AlgorithmParameters engineGetParameters() {
+    if (iv == null) {
+      return null;
+    }
+
+    try {
+      AlgorithmParameters params;
+      if (mechanismCode == CKM_AES_GCM) {
+        params = AlgorithmParameters.getInstance("GCM");
+        params.init(new GCMParameterSpec(tagBits, iv));
+      } else {
+        params = AlgorithmParameters.getInstance("AES");
+        params.init(new IvParameterSpec(iv));
+      }
+      return params;
+    } catch (GeneralSecurityException e) {
+      return null;
+    }
+  }
+
+  @Override
+  protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+    try {
+      engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new InvalidKeyException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    AlgorithmParameterSpec spec = null;
+    if (params != null) {
+      try {
+        spec = (mechanismCode == CKM_AES_GCM) ? params.getParameterSpec(GCMParameterSpec.class)
+            : params.getParameterSpec(IvParameterSpec.class);
+      } catch (InvalidParameterSpecException e) {
+        throw new InvalidAlgorithmParameterException(e.getMessage(), e);
+      }
+    }
+    engineInit(opmode, key, spec, random);
+  }
+
+  @Override
+  protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if (opmode != Cipher.ENCRYPT_MODE && opmode != Cipher.DECRYPT_MODE) {
+      throw new InvalidParameterException("unsupported opmode " + opmode);
+    }
+    boolean encrypt = opmode == Cipher.ENCRYPT_MODE;
+
+    PKCS11Key p11Key;
+    if (isRsa()) {
+      p11Key = encrypt ? provider.requireKey(key, PKCS11Key.Public.class, CKK_RSA)
+          : provider.requireKey(key, PKCS11Key.Private.class, CKK_RSA);
+    } else {
+      p11Key = provider.requireKey(key, PKCS11Key.Secret.class, CKK_AES);
+    }
+
+    byte[] iv = null;
+    int tagBits = DEFAULT_TAG_BITS;
+    if (mechanismCode == CKM_AES_GCM) {
+      if (params instanceof GCMParameterSpec) {
+        iv = ((GCMParameterSpec) params).getIV();
+        tagBits = ((GCMParameterSpec) params).getTLen();
+      } else if (params != null) {
+        throw new InvalidAlgorithmParameterException("GCMParameterSpec is required");
+      }
+    } else if (mechanismCode == CKM_AES_CBC || mechanismCode == CKM_AES_CBC_PAD) {
+      if (params instanceof IvParameterSpec) {
+        iv = ((IvParameterSpec) params).getIV();
+        if (iv.length != AES_BLOCK_SIZE) {
+          throw new InvalidAlgorithmParameterException("IV must be " + AES_BLOCK_SIZE + " bytes long");
+        }
+      } else if (params != null) {
+        throw new InvalidAlgorithmParameterException("IvParameterSpec is required");
+      }
+    } else if (params != null) {
+      throw new InvalidAlgorithmParameterException("parameters are not supported");
+    }
+
+    if (iv == null && (mechanismCode == CKM_AES_GCM || mechanismCode == CKM_AES_CBC
+        || mechanismCode == CKM_AES_CBC_PAD)) {
+      if (!encrypt) {
+        throw new InvalidAlgorithmParameterException("IV is required for decryption");
+      }
+      iv = new byte[mechanismCode == CKM_AES_GCM ? 12 : AES_BLOCK_SIZE];
+      (random == null ? new SecureRandom() : random).nextBytes(iv);
+    }
+
+    this.key = p11Key;
+    this.encrypt = encrypt;
+    this.iv = iv;
+    this.tagBits = tagBits;
+    this.ivUsed = false;
+    buffer.reset();
+    aad.reset();
+  }
+
+  @Override
+  protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+    checkInitialized();
+    buffer.write(input, inputOffset, inputLen);
+    return new byte[0];
+  }
+
+  @Override
+  protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+    engineUpdate(input, inputOffset, inputLen);
+    return 0;
+  }
+
+  @Override
+  protected void engineUpdateAAD(byte[] src, int offset, int len) {
+    checkInitialized();
+    if (mechanismCode != CKM_AES_GCM) {
+      throw new IllegalStateException("AAD is only supported by GCM");
+    } else if (buffer.size() != 0) {
+      throw new IllegalStateException("AAD must be supplied before the data");
+    }
+    aad.write(src, offset, len);
+  }
+
+  @Override
+  protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+      throws IllegalBlockSizeException, BadPaddingException {
+    checkInitialized();
+    if (encrypt && ivUsed) {
+      throw new IllegalStateException("Cipher must be re-initialized with a new IV");
+    }
+
+    if (input != null) {
+      buffer.write(input, inputOffset, inputLen);
+    }
+    byte[] data = buffer.toByteArray();
+    buffer.reset();
+
+    Mechanism mechanism;
+    if (mechanismCode == CKM_AES_GCM) {
+      mechanism = new Mechanism(mechanismCode, new GCM_PARAMS(iv, aad.toByteArray(), tagBits));
+      aad.reset();
+      ivUsed = encrypt;
+    } else {
+      mechanism = (iv == null) ? new Mechanism(mechanismCode)
+          : new Mechanism(mechanismCode, new ByteArrayParams(iv));
+    }
+
+    try {
+      Session session = provider.borrowSession();
+      try {
+        if (encrypt) {
+          session.encryptInit(mechanism, key.getHandle());
+          return session.encrypt(data);
+        } else {
+          session.decryptInit(mechanism, key.getHandle());
+          return session.decrypt(data);
+        }
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      long code = e.getErrorCode();
+      if (code == CKR_DATA_LEN_RANGE || code == CKR_ENCRYPTED_DATA_LEN_RANGE) {
+        throw (IllegalBlockSizeException) new IllegalBlockSizeException(e.getMessage()).initCause(e);
+      } else if (code == CKR_ENCRYPTED_DATA_INVALID || code == CKR_AEAD_DECRYPT_FAILED) {
+        BadPaddingException ex = (mechanismCode == CKM_AES_GCM)
+            ? new AEADBadTagException(e.getMessage()) : new BadPaddingException(e.getMessage());
+        throw (BadPaddingException) ex.initCause(e);
+      } else {
+        throw new ProviderException(e.getMessage(), e);
+      }
+    }
+  }
+
+  @Override
+  protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+      throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+    if (output.length - outputOffset < engineGetOutputSize(inputLen)) {
+      throw new ShortBufferException("output buffer too small");
+    }
+
+    byte[] result = engineDoFinal(input, inputOffset, inputLen);
+    System.arraycopy(result, 0, output, outputOffset, result.length);
+    return result.length;
+  }
+
+  @Override
+  protected int engineGetKeySize(Key key) throws InvalidKeyException {
+    if (!(key instanceof PKCS11Key)) {
+      throw new InvalidKeyException("key is not a PKCS11Key");
+    }
+    return ((PKCS11Key) key).getBitLength();
+  }
+
+  private boolean isRsa() {
+    return mechanismCode == CKM_RSA_PKCS;
+  }
+
+  private void checkInitialized() {
+    if (key == null) {
+      throw new IllegalStateException("Cipher not initialized");
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.Functions;
+import org.xipki.pkcs11.wrapper.Token;
+
+import java.security.Key;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * JCA {@link Key} referencing a key object of a token. The key material never leaves the token,
+ * {@link #getEncoded()} therefore returns null. Besides the handle, the key carries the attributes
+ * the {@link PKCS11Provider} needs to use it (key type, CKA_EC_PARAMS and the key size), so that
+ * initializing an operation does not need to read any attribute from the token.
+ * <p>
+ * Instances are created by {@link PKCS11Provider#getKey(long)} and
+ * {@link PKCS11Provider#findKey(long, byte[], String)}.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public abstract class PKCS11Key implements Key {
+
+  /**
+   * Private key of a token.
+   */
+  public static final class Private extends PKCS11Key implements java.security.PrivateKey {
+
+    private static final long serialVersionUID = 1L;
+
+    Private(Token token, long handle, long keyType, byte[] id, String label, int bitLength, byte[] ecParams) {
+      super(token, handle, CKO_PRIVATE_KEY, keyType, id, label, bitLength, ecParams);
+    }
+
+  } // class Private
+
+  /**
+   * Public key of a token.
+   */
+  public static final class Public extends PKCS11Key implements java.security.PublicKey {
+
+    private static final long serialVersionUID = 1L;
+
+    Public(Token token, long handle, long keyType, byte[] id, String label, int bitLength, byte[] ecParams) {
+      super(token, handle, CKO_PUBLIC_KEY, keyType, id, label, bitLength, ecParams);
+    }
+
+  } // class Public
+
+  /**
+   * Secret key of a token.
+   */
+  public static final class Secret extends PKCS11Key implements javax.crypto.SecretKey {
+
+    private static final long serialVersionUID = 1L;
+
+    Secret(Token token, long handle, long keyType, byte[] id, String label, int bitLength) {
+      super(token, handle, CKO_SECRET_KEY, keyType, id, label, bitLength, null);
+    }
+
+  } // class Secret
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient Token token;
+
+  private final long handle;
+
+  private final long objectClass;
+
+  private final long keyType;
+
+  private final byte[] id;
+
+  private final String label;
+
+  private final int bitLength;
+
+  private final byte[] ecParams;
+
+  private PKCS11Key(Token token, long handle, long objectClass, long keyType, byte[] id, String label,
+                    int bitLength, byte[] ecParams) {
+    this.token = token;
+    this.handle = handle;
+    this.objectClass = objectClass;
+    this.keyType = keyType;
+    this.id = id;
+    this.label = label;
+    this.bitLength = bitLength;
+    this.ecParams = ecParams;
+  }
+
+  public Token getToken() {
+    return token;
+  }
+
+  public long getHandle() {
+    return handle;
+  }
+
+  public long getObjectClass() {
+    return objectClass;
+  }
+
+  public long getKeyType() {
+    return keyType;
+  }
+
+  public byte[] getId() {
+    return id == null ? null : id.clone();
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  /**
+   * Returns the size of the key: the bit length of the modulus for RSA keys, of the curve order
+   * for EC keys, and of the value for secret keys.
+   *
+   * @return the size in bits, or 0 if unknown.
+   */
+  public int getBitLength() {
+    return bitLength;
+  }
+
+  /**
+   * Returns the CKA_EC_PARAMS of EC and EdDSA keys.
+   *
+   * @return the DER-encoded curve, or null for other keys.
+   */
+  public byte[] getEcParams() {
+    return ecParams == null ? null : ecParams.clone();
+  }
+
+  byte[] ecParams() {
+    return ecParams;
+  }
+
+  /**
+   * Returns the JCA name of the key algorithm, e.g. RSA, EC or AES.
+   *
+   * @return the algorithm name.
+   */
+  @Override
+  public String getAlgorithm() {
+    return algorithmName(keyType);
+  }
+
+  /**
+   * Returns null, keys of a token have no encoded form.
+   *
+   * @return null.
+   */
+  @Override
+  public String getFormat() {
+    return null;
+  }
+
+  /**
+   * Returns null, the key material does not leave the token.
+   *
+   * @return null.
+   */
+  @Override
+  public byte[] getEncoded() {
+    return null;
+  }
+
+  /**
+   * Returns the size of the curve order of an EC key in bytes.
+   */
+  int ecOrderSize() {
+    int size = ecParams == null ? 0 : Functions.getECOrderSize(ecParams);
+    return (size != 0) ? size : (bitLength + 7) / 8;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " " + getAlgorithm() + " key: handle=" + handle
+        + ", id=" + (id == null ? null : Functions.toHex(id)) + ", label=" + label;
+  }
+
+  static String algorithmName(long keyType) {
+    if (keyType == CKK_RSA) {
+      return "RSA";
+    } else if (keyType == CKK_EC) {
+      return "EC";
+    } else if (keyType == CKK_EC_EDWARDS) {
+      return "EdDSA";
+    } else if (keyType == CKK_DSA) {
+      return "DSA";
+    } else if (keyType == CKK_AES) {
+      return "AES";
+    } else if (keyType == CKK_DES3) {
+      return "DESede";
+    } else if (keyType == CKK_GENERIC_SECRET) {
+      return "Generic";
+    } else if (keyType == CKK_SHA_1_HMAC) {
+      return "HmacSHA1";
+    } else if (keyType == CKK_SHA224_HMAC) {
+      return "HmacSHA224";
+    } else if (keyType == CKK_SHA256_HMAC) {
+      return "HmacSHA256";
+    } else if (keyType == CKK_SHA384_HMAC) {
+      return "HmacSHA384";
+    } else if (keyType == CKK_SHA512_HMAC) {
+      return "HmacSHA512";
+    } else {
+      return ckkCodeToName(keyType);
+    }
+  }
+
+}
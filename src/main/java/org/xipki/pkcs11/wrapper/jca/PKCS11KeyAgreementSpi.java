@@ -0,0 +1,142 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.params.ECDH1_DERIVE_PARAMS;
+
+import javax.crypto.KeyAgreementSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECPoint;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * ECDH key agreement of the {@link PKCS11Provider} via CKM_ECDH1_DERIVE. The shared secret is
+ * derived as non-sensitive session object, read, and destroyed again.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PKCS11KeyAgreementSpi extends KeyAgreementSpi {
+
+  private final PKCS11Provider provider;
+
+  private final Mechanism mechanism;
+
+  private PKCS11Key key;
+
+  private byte[] peerPoint;
+
+  private int secretLength;
+
+  PKCS11KeyAgreementSpi(PKCS11Provider provider, Mechanism mechanism) {
+    this.provider = provider;
+    this.mechanism = mechanism;
+  }
+
+  @Override
+  protected void engineInit(Key key, SecureRandom random) throws InvalidKeyException {
+    this.key = provider.requireKey(key, PKCS11Key.Private.class, CKK_EC);
+    this.peerPoint = null;
+  }
+
+  @Override
+  protected void engineInit(Key key, AlgorithmParameterSpec params, SecureRandom random)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if (params != null) {
+      throw new InvalidAlgorithmParameterException("parameters are not supported");
+    }
+    engineInit(key, random);
+  }
+
+  @Override
+  protected Key engineDoPhase(Key key, boolean lastPhase) throws InvalidKeyException {
+    if (this.key == null) {
+      throw new IllegalStateException("KeyAgreement not initialized");
+    } else if (!lastPhase) {
+      throw new IllegalStateException("ECDH has only one phase");
+    } else if (!(key instanceof ECPublicKey)) {
+      throw new InvalidKeyException("key is not an ECPublicKey");
+    }
+
+    ECPublicKey peerKey = (ECPublicKey) key;
+    int fieldSize = (peerKey.getParams().getCurve().getField().getFieldSize() + 7) / 8;
+    ECPoint w = peerKey.getW();
+    // uncompressed point: 04 || x || y
+    byte[] point = new byte[1 + 2 * fieldSize];
+    point[0] = 0x04;
+    copyUnsigned(w.getAffineX(), point, 1, fieldSize);
+    copyUnsigned(w.getAffineY(), point, 1 + fieldSize, fieldSize);
+
+    this.peerPoint = point;
+    this.secretLength = fieldSize;
+    return null;
+  }
+
+  @Override
+  protected byte[] engineGenerateSecret() {
+    if (peerPoint == null) {
+      throw new IllegalStateException("doPhase() has not been called");
+    }
+
+    Mechanism deriveMechanism = new Mechanism(mechanism.getMechanismCode(),
+        new ECDH1_DERIVE_PARAMS(CKD_NULL, null, peerPoint));
+    AttributeVector template = AttributeVector.newSecretKey(CKK_GENERIC_SECRET).token(false)
+        .sensitive(false).extractable(true).valueLen(secretLength);
+    peerPoint = null;
+
+    try {
+      Session session = provider.borrowSession();
+      try {
+        long handle = session.deriveKey(deriveMechanism, key.getHandle(), template);
+        try {
+          return session.getByteArrayAttrValue(handle, CKA_VALUE);
+        } finally {
+          session.destroyObject(handle);
+        }
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      throw new ProviderException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected int engineGenerateSecret(byte[] sharedSecret, int offset) throws ShortBufferException {
+    if (sharedSecret.length - offset < secretLength) {
+      throw new ShortBufferException("output buffer too small");
+    }
+
+    byte[] secret = engineGenerateSecret();
+    System.arraycopy(secret, 0, sharedSecret, offset, secret.length);
+    return secret.length;
+  }
+
+  @Override
+  protected SecretKey engineGenerateSecret(String algorithm) {
+    return new SecretKeySpec(engineGenerateSecret(), algorithm);
+  }
+
+  private static void copyUnsigned(BigInteger value, byte[] dest, int offset, int len) {
+    byte[] bytes = value.toByteArray();
+    int srcOfs = (bytes.length > len) ? bytes.length - len : 0;
+    int n = bytes.length - srcOfs;
+    System.arraycopy(bytes, srcOfs, dest, offset + len - n, n);
+  }
+
+}
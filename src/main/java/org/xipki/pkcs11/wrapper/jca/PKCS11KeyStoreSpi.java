@@ -0,0 +1,289 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.Functions;
+import org.xipki.pkcs11.wrapper.ObjectIndex;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Read-only KeyStore of the {@link PKCS11Provider} over the token objects. {@code load()}
+ * enumerates the objects once via an {@link ObjectIndex}, i.e. one C_FindObjects pass per object
+ * class plus one C_GetAttributeValue call per key and certificate, and builds the alias index
+ * from it:
+ * <ul>
+ *   <li>each private key is a key entry, with the certificate of the same CKA_ID (or, without
+ *       CKA_ID, the same CKA_LABEL) as chain,</li>
+ *   <li>each secret key is a key entry,</li>
+ *   <li>each other certificate is a trusted certificate entry.</li>
+ * </ul>
+ * The alias is the CKA_LABEL, or the hex-encoded CKA_ID if the object has no label. Afterwards,
+ * the KeyStore methods resolve the handles via the alias index, and never search the token again.
+ * Keys and certificates are read from the token on their first access, and kept.
+ * <pre><code>
+ *   KeyStore keyStore = KeyStore.getInstance("PKCS11", provider);
+ *   keyStore.load(null, null);
+ *   PrivateKey key = (PrivateKey) keyStore.getKey("my-signing-key", null);
+ * </code></pre>
+ * The password passed to {@code load()} and {@code getKey()} is ignored, the sessions are logged
+ * in by the {@link org.xipki.pkcs11.wrapper.SessionPool}. Objects created or destroyed after
+ * {@code load()} are only seen after the next {@code load()}.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PKCS11KeyStoreSpi extends KeyStoreSpi {
+
+  private static final class Entry {
+
+    private final long keyHandle;
+
+    private final long certHandle;
+
+    private volatile Key key;
+
+    private volatile Certificate cert;
+
+    /**
+     * Constructor.
+     *
+     * @param keyHandle  The handle of the private or secret key, 0 for a certificate entry.
+     * @param certHandle The handle of the certificate, 0 if none.
+     */
+    Entry(long keyHandle, long certHandle) {
+      this.keyHandle = keyHandle;
+      this.certHandle = certHandle;
+    }
+
+  } // class Entry
+
+  private final PKCS11Provider provider;
+
+  private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+  private volatile Date loadDate;
+
+  PKCS11KeyStoreSpi(PKCS11Provider provider) {
+    this.provider = provider;
+  }
+
+  @Override
+  public void engineLoad(InputStream stream, char[] password) throws IOException {
+    if (stream != null) {
+      throw new IOException("stream must be null, the entries are read from the token");
+    }
+
+    Map<String, Entry> newEntries = new LinkedHashMap<>();
+    try (ObjectIndex index = new ObjectIndex(provider.getToken())) {
+      Session session = provider.borrowSession();
+      try {
+        index.refresh(session);
+      } finally {
+        provider.returnSession(session);
+      }
+
+      Set<Long> usedCerts = new HashSet<>();
+      for (long handle : index.findByClass(CKO_PRIVATE_KEY)) {
+        ObjectIndex.Entry key = index.get(handle);
+        long[] certs = (key.getId() != null) ? index.find(CKO_CERTIFICATE, null, key.getId(), null)
+            : (key.getLabel() != null) ? index.find(CKO_CERTIFICATE, null, null, key.getLabel())
+            : new long[0];
+        long certHandle = certs.length == 0 ? 0 : certs[0];
+        if (certHandle != 0) {
+          usedCerts.add(certHandle);
+        }
+        put(newEntries, key, new Entry(handle, certHandle));
+      }
+
+      for (long handle : index.findByClass(CKO_SECRET_KEY)) {
+        put(newEntries, index.get(handle), new Entry(handle, 0));
+      }
+
+      for (long handle : index.findByClass(CKO_CERTIFICATE)) {
+        if (!usedCerts.contains(handle)) {
+          put(newEntries, index.get(handle), new Entry(0, handle));
+        }
+      }
+    } catch (PKCS11Exception e) {
+      throw new IOException("error enumerating the token objects: " + e.getMessage(), e);
+    }
+
+    this.entries = newEntries;
+    this.loadDate = new Date();
+  }
+
+  @Override
+  public Key engineGetKey(String alias, char[] password) throws UnrecoverableKeyException {
+    Entry entry = entries.get(alias);
+    if (entry == null || entry.keyHandle == 0) {
+      return null;
+    }
+
+    Key key = entry.key;
+    if (key == null) {
+      try {
+        key = provider.getKey(entry.keyHandle);
+      } catch (PKCS11Exception e) {
+        throw (UnrecoverableKeyException) new UnrecoverableKeyException(
+            "error reading key " + alias + ": " + e.getMessage()).initCause(e);
+      }
+      entry.key = key;
+    }
+    return key;
+  }
+
+  @Override
+  public Certificate[] engineGetCertificateChain(String alias) {
+    Entry entry = entries.get(alias);
+    if (entry == null || entry.keyHandle == 0) {
+      return null;
+    }
+
+    Certificate cert = engineGetCertificate(alias);
+    return cert == null ? null : new Certificate[]{cert};
+  }
+
+  @Override
+  public Certificate engineGetCertificate(String alias) {
+    Entry entry = entries.get(alias);
+    if (entry == null || entry.certHandle == 0) {
+      return null;
+    }
+
+    Certificate cert = entry.cert;
+    if (cert == null) {
+      cert = readCertificate(entry.certHandle);
+      entry.cert = cert;
+    }
+    return cert;
+  }
+
+  @Override
+  public Date engineGetCreationDate(String alias) {
+    return entries.containsKey(alias) ? loadDate : null;
+  }
+
+  @Override
+  public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain)
+      throws KeyStoreException {
+    throw new KeyStoreException("KeyStore is read-only");
+  }
+
+  @Override
+  public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+    throw new KeyStoreException("KeyStore is read-only");
+  }
+
+  @Override
+  public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+    throw new KeyStoreException("KeyStore is read-only");
+  }
+
+  @Override
+  public void engineDeleteEntry(String alias) throws KeyStoreException {
+    throw new KeyStoreException("KeyStore is read-only");
+  }
+
+  @Override
+  public Enumeration<String> engineAliases() {
+    return Collections.enumeration(entries.keySet());
+  }
+
+  @Override
+  public boolean engineContainsAlias(String alias) {
+    return entries.containsKey(alias);
+  }
+
+  @Override
+  public int engineSize() {
+    return entries.size();
+  }
+
+  @Override
+  public boolean engineIsKeyEntry(String alias) {
+    Entry entry = entries.get(alias);
+    return entry != null && entry.keyHandle != 0;
+  }
+
+  @Override
+  public boolean engineIsCertificateEntry(String alias) {
+    Entry entry = entries.get(alias);
+    return entry != null && entry.keyHandle == 0;
+  }
+
+  @Override
+  public String engineGetCertificateAlias(Certificate cert) {
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().certHandle != 0 && cert.equals(engineGetCertificate(entry.getKey()))) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Does nothing, the entries are stored on the token.
+   */
+  @Override
+  public void engineStore(OutputStream stream, char[] password) {
+  }
+
+  private static void put(Map<String, Entry> entries, ObjectIndex.Entry object, Entry entry) {
+    byte[] id = object.getId();
+    String alias = (object.getLabel() != null) ? object.getLabel()
+        : (id != null && id.length > 0) ? Functions.toHex(id) : "handle-" + object.getHandle();
+    if (entries.containsKey(alias)) {
+      // e.g. a secret key with the same label as a private key
+      alias += "-" + object.getHandle();
+    }
+    entries.put(alias, entry);
+  }
+
+  private Certificate readCertificate(long handle) {
+    byte[] encoded;
+    try {
+      Session session = provider.borrowSession();
+      try {
+        encoded = session.getByteArrayAttrValue(handle, CKA_VALUE);
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      // KeyStore.getCertificate() cannot throw other exceptions.
+      return null;
+    }
+
+    if (encoded == null) {
+      return null;
+    }
+
+    try {
+      return CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(encoded));
+    } catch (CertificateException e) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+
+import javax.crypto.MacSpi;
+import java.io.ByteArrayOutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * HMAC of the {@link PKCS11Provider}. The data is collected in memory and authenticated with a
+ * single-part operation.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PKCS11MacSpi extends MacSpi {
+
+  private final PKCS11Provider provider;
+
+  private final Mechanism mechanism;
+
+  private final int macLength;
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private PKCS11Key key;
+
+  PKCS11MacSpi(PKCS11Provider provider, Mechanism mechanism) {
+    this.provider = provider;
+    this.mechanism = mechanism;
+    long code = mechanism.getMechanismCode();
+    this.macLength = (code == CKM_SHA_1_HMAC) ? 20 : (code == CKM_SHA224_HMAC) ? 28
+        : (code == CKM_SHA256_HMAC) ? 32 : (code == CKM_SHA384_HMAC) ? 48 : 64;
+  }
+
+  @Override
+  protected int engineGetMacLength() {
+    return macLength;
+  }
+
+  @Override
+  protected void engineInit(Key key, AlgorithmParameterSpec params)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if (params != null) {
+      throw new InvalidAlgorithmParameterException("parameters are not supported");
+    }
+    this.key = provider.requireKey(key, PKCS11Key.Secret.class);
+    buffer.reset();
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    buffer.write(input);
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    buffer.write(input, offset, len);
+  }
+
+  @Override
+  protected byte[] engineDoFinal() {
+    if (key == null) {
+      throw new IllegalStateException("Mac not initialized");
+    }
+
+    byte[] data = buffer.toByteArray();
+    buffer.reset();
+    try {
+      Session session = provider.borrowSession();
+      try {
+        session.signInit(mechanism, key.getHandle());
+        return session.sign(data);
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      throw new ProviderException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected void engineReset() {
+    buffer.reset();
+  }
+
+}
@@ -0,0 +1,482 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.*;
+import org.xipki.pkcs11.wrapper.params.RSA_PKCS_PSS_PARAMS;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * JCA {@link Provider} whose services are executed by one token. The operations are executed with
+ * sessions of a {@link SessionPool}, which are borrowed only for the native calls of one
+ * operation, so that concurrent JCA objects do not serialize on a single session. All operations
+ * go through {@link Session}, i.e. the mechanism codes are mapped to the vendor codes, and ECDSA
+ * signatures of non-conforming tokens are fixed.
+ * <p>
+ * Provided services, if the underlying mechanism is supported by the token:
+ * <ul>
+ *   <li>Signature: SHA*withRSA, SHA*withRSAandMGF1, NONEwithECDSA, SHA*withECDSA, Ed25519</li>
+ *   <li>Cipher: AES/ECB/NoPadding, AES/CBC/NoPadding, AES/CBC/PKCS5Padding, AES/GCM/NoPadding,
+ *       RSA/ECB/PKCS1Padding</li>
+ *   <li>Mac: HmacSHA1, HmacSHA224, HmacSHA256, HmacSHA384, HmacSHA512</li>
+ *   <li>KeyAgreement: ECDH</li>
+ *   <li>SecureRandom: PKCS11, backed by a {@link RandomPool}</li>
+ *   <li>KeyStore: PKCS11, read-only view of the keys and certificates of the token</li>
+ * </ul>
+ * The services accept only {@link PKCS11Key}s of the same token, which are obtained via
+ * {@link #getKey(long)} and {@link #findKey(long, byte[], String)}. The keys are cached together
+ * with the attributes needed to use them, and removed from the cache when their objects are
+ * modified or destroyed via any session of the same module. For other keys, the delayed provider
+ * selection of JCA picks the next provider.
+ * <pre><code>
+ *   PKCS11Provider provider = new PKCS11Provider(pool);
+ *   Security.addProvider(provider);
+ *   PrivateKey key = (PrivateKey) provider.findKey(CKO_PRIVATE_KEY, null, "my-signing-key");
+ *   Signature signer = Signature.getInstance("SHA256withECDSA");
+ *   signer.initSign(key);
+ * </code></pre>
+ * Multi-part operations are collected in memory and executed as single-part operations when they
+ * are finished, so that no session is held between the calls of the application.
+ *
+ * @author Lijun Liao (xipki)
+ */
+public class PKCS11Provider extends Provider implements AutoCloseable {
+
+  public static final String DEFAULT_NAME = "XiPKCS11";
+
+  /**
+   * Maximal number of cached keys. If more keys are used, the cache is cleared.
+   */
+  public static final int MAX_CACHED_KEYS = 10000;
+
+  private static final long serialVersionUID = 1L;
+
+  private static final double VERSION = 1.0;
+
+  private static final Map<String, String> ATTRIBUTES = Collections.singletonMap("ThreadSafe", "true");
+
+  private static final class Algorithm {
+
+    private final String type;
+
+    private final String name;
+
+    private final List<String> aliases;
+
+    private final Mechanism mechanism;
+
+    Algorithm(String type, String name, Mechanism mechanism, String... aliases) {
+      this.type = type;
+      this.name = name;
+      this.mechanism = mechanism;
+      this.aliases = Arrays.asList(aliases);
+    }
+
+  } // class Algorithm
+
+  private static final List<Algorithm> ALGORITHMS = new ArrayList<>();
+
+  static {
+    addSignature("SHA1withRSA", CKM_SHA1_RSA_PKCS);
+    addSignature("SHA224withRSA", CKM_SHA224_RSA_PKCS);
+    addSignature("SHA256withRSA", CKM_SHA256_RSA_PKCS);
+    addSignature("SHA384withRSA", CKM_SHA384_RSA_PKCS);
+    addSignature("SHA512withRSA", CKM_SHA512_RSA_PKCS);
+    addSignature("SHA3-224withRSA", CKM_SHA3_224_RSA_PKCS);
+    addSignature("SHA3-256withRSA", CKM_SHA3_256_RSA_PKCS);
+    addSignature("SHA3-384withRSA", CKM_SHA3_384_RSA_PKCS);
+    addSignature("SHA3-512withRSA", CKM_SHA3_512_RSA_PKCS);
+
+    addPss("SHA1", CKM_SHA1_RSA_PKCS_PSS, CKM_SHA_1, CKG_MGF1_SHA1, 20);
+    addPss("SHA224", CKM_SHA224_RSA_PKCS_PSS, CKM_SHA224, CKG_MGF1_SHA224, 28);
+    addPss("SHA256", CKM_SHA256_RSA_PKCS_PSS, CKM_SHA256, CKG_MGF1_SHA256, 32);
+    addPss("SHA384", CKM_SHA384_RSA_PKCS_PSS, CKM_SHA384, CKG_MGF1_SHA384, 48);
+    addPss("SHA512", CKM_SHA512_RSA_PKCS_PSS, CKM_SHA512, CKG_MGF1_SHA512, 64);
+
+    addSignature("NONEwithECDSA", CKM_ECDSA);
+    addSignature("SHA1withECDSA", CKM_ECDSA_SHA1);
+    addSignature("SHA224withECDSA", CKM_ECDSA_SHA224);
+    addSignature("SHA256withECDSA", CKM_ECDSA_SHA256);
+    addSignature("SHA384withECDSA", CKM_ECDSA_SHA384);
+    addSignature("SHA512withECDSA", CKM_ECDSA_SHA512);
+    addSignature("SHA3-224withECDSA", CKM_ECDSA_SHA3_224);
+    addSignature("SHA3-256withECDSA", CKM_ECDSA_SHA3_256);
+    addSignature("SHA3-384withECDSA", CKM_ECDSA_SHA3_384);
+    addSignature("SHA3-512withECDSA", CKM_ECDSA_SHA3_512);
+    // CKM_EDDSA without parameters is the pure Ed25519.
+    addSignature("Ed25519", CKM_EDDSA);
+
+    add("Cipher", "AES/ECB/NoPadding", CKM_AES_ECB);
+    add("Cipher", "AES/CBC/NoPadding", CKM_AES_CBC);
+    add("Cipher", "AES/CBC/PKCS5Padding", CKM_AES_CBC_PAD);
+    add("Cipher", "AES/GCM/NoPadding", CKM_AES_GCM);
+    add("Cipher", "RSA/ECB/PKCS1Padding", CKM_RSA_PKCS);
+
+    add("Mac", "HmacSHA1", CKM_SHA_1_HMAC);
+    add("Mac", "HmacSHA224", CKM_SHA224_HMAC);
+    add("Mac", "HmacSHA256", CKM_SHA256_HMAC);
+    add("Mac", "HmacSHA384", CKM_SHA384_HMAC);
+    add("Mac", "HmacSHA512", CKM_SHA512_HMAC);
+
+    add("KeyAgreement", "ECDH", CKM_ECDH1_DERIVE);
+  }
+
+  private static void add(String type, String name, long mechanism, String... aliases) {
+    ALGORITHMS.add(new Algorithm(type, name, new Mechanism(mechanism), aliases));
+  }
+
+  private static void addSignature(String name, long mechanism) {
+    add("Signature", name, mechanism);
+  }
+
+  private static void addPss(String hash, long mechanism, long hashAlg, long mgf, int saltLength) {
+    ALGORITHMS.add(new Algorithm("Signature", hash + "withRSAandMGF1",
+        new Mechanism(mechanism, new RSA_PKCS_PSS_PARAMS(hashAlg, mgf, saltLength)), hash + "withRSA/PSS"));
+  }
+
+  /**
+   * Service which creates the SPI objects with a reference to the provider.
+   */
+  private static final class SpiService extends Service {
+
+    private final Mechanism mechanism;
+
+    SpiService(PKCS11Provider provider, String type, String algorithm, List<String> aliases,
+               Mechanism mechanism) {
+      super(provider, type, algorithm, spiClassName(type), aliases, ATTRIBUTES);
+      this.mechanism = mechanism;
+    }
+
+    @Override
+    public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+      PKCS11Provider provider = (PKCS11Provider) getProvider();
+      switch (getType()) {
+        case "Signature":
+          return new PKCS11SignatureSpi(provider, mechanism);
+        case "Cipher":
+          return new PKCS11CipherSpi(provider, mechanism);
+        case "Mac":
+          return new PKCS11MacSpi(provider, mechanism);
+        case "KeyAgreement":
+          return new PKCS11KeyAgreementSpi(provider, mechanism);
+        case "SecureRandom":
+          return new PKCS11SecureRandomSpi(provider.getRandomPool());
+        case "KeyStore":
+          return new PKCS11KeyStoreSpi(provider);
+        default:
+          throw new NoSuchAlgorithmException("unsupported service " + getType() + "." + getAlgorithm());
+      }
+    }
+
+    @Override
+    public boolean supportsParameter(Object parameter) {
+      return parameter instanceof PKCS11Key
+          && ((PKCS11Key) parameter).getToken() == ((PKCS11Provider) getProvider()).getToken();
+    }
+
+  } // class SpiService
+
+  private final transient SessionPool pool;
+
+  private final transient ConcurrentHashMap<Long, PKCS11Key> keyCache = new ConcurrentHashMap<>();
+
+  private final transient ConcurrentHashMap<String, PKCS11Key> namedKeyCache = new ConcurrentHashMap<>();
+
+  private final transient PKCS11Module.ObjectListener listener;
+
+  private transient RandomPool randomPool;
+
+  /**
+   * Constructor with the name {@link #DEFAULT_NAME}.
+   *
+   * @param pool The pool providing the sessions. It is not closed by {@link #close()}.
+   * @throws PKCS11Exception If reading the mechanisms of the token failed.
+   */
+  public PKCS11Provider(SessionPool pool) throws PKCS11Exception {
+    this(DEFAULT_NAME, pool);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of the provider, must be unique if more than one token is registered.
+   * @param pool The pool providing the sessions. It is not closed by {@link #close()}.
+   * @throws PKCS11Exception If reading the mechanisms of the token failed.
+   */
+  public PKCS11Provider(String name, SessionPool pool) throws PKCS11Exception {
+    super(Functions.requireNonNull("name", name), VERSION, "JCA provider of the PKCS#11 token "
+        + Functions.requireNonNull("pool", pool).getToken().getTokenID());
+    this.pool = pool;
+
+    long[] mechanisms = pool.getToken().getMechanismList();
+    Arrays.sort(mechanisms);
+    for (Algorithm algorithm : ALGORITHMS) {
+      if (Arrays.binarySearch(mechanisms, algorithm.mechanism.getMechanismCode()) >= 0) {
+        putService(new SpiService(this, algorithm.type, algorithm.name, algorithm.aliases, algorithm.mechanism));
+      }
+    }
+
+    if (pool.getToken().getTokenInfo().hasFlagBit(CKF_RNG)) {
+      putService(new SpiService(this, "SecureRandom", "PKCS11", null, null));
+    }
+
+    putService(new SpiService(this, "KeyStore", "PKCS11", null, null));
+
+    final long tokenId = pool.getToken().getTokenID();
+    this.listener = new PKCS11Module.ObjectListener() {
+      @Override
+      public void objectCreated(Session session, long objectHandle) {
+        // the handle of an object destroyed by another application may have been reused.
+        objectChanged(session, objectHandle);
+      }
+
+      @Override
+      public void objectModified(Session session, long objectHandle) {
+        objectChanged(session, objectHandle);
+      }
+
+      @Override
+      public void objectDestroyed(Session session, long objectHandle) {
+        objectChanged(session, objectHandle);
+      }
+
+      private void objectChanged(Session session, long objectHandle) {
+        // the named keys are also in keyCache, so that most notifications end here.
+        if (session.getToken().getTokenID() == tokenId && keyCache.remove(objectHandle) != null) {
+          invalidate(objectHandle);
+        }
+      }
+    };
+
+    pool.getToken().getSlot().getModule().addObjectListener(listener);
+  }
+
+  public SessionPool getSessionPool() {
+    return pool;
+  }
+
+  public Token getToken() {
+    return pool.getToken();
+  }
+
+  /**
+   * Returns the key of the given handle.
+   *
+   * @param handle The handle of the private, public or secret key.
+   * @return the key.
+   * @throws PKCS11Exception If reading the attributes failed, or with CKR_KEY_HANDLE_INVALID if
+   *         the object is not a key.
+   */
+  public PKCS11Key getKey(long handle) throws PKCS11Exception {
+    PKCS11Key key = keyCache.get(handle);
+    if (key == null) {
+      Session session = pool.borrowSession(false);
+      try {
+        key = readKey(session, handle);
+      } finally {
+        pool.returnSession(session);
+      }
+      cache(null, key);
+    }
+    return key;
+  }
+
+  /**
+   * Finds the key of the given class with the given CKA_ID and CKA_LABEL. The result is cached,
+   * later calls with the same arguments do not search the token again.
+   *
+   * @param objectClass The class: CKO_PRIVATE_KEY, CKO_PUBLIC_KEY or CKO_SECRET_KEY.
+   * @param id          The CKA_ID, or null to match any.
+   * @param label       The CKA_LABEL, or null to match any.
+   * @return the first matching key, or null if no key matches.
+   * @throws PKCS11Exception If searching the key or reading its attributes failed.
+   */
+  public PKCS11Key findKey(long objectClass, byte[] id, String label) throws PKCS11Exception {
+    Functions.requireAmong("objectClass", objectClass, CKO_PRIVATE_KEY, CKO_PUBLIC_KEY, CKO_SECRET_KEY);
+    String name = objectClass + "/" + (id == null ? "" : Functions.toHex(id)) + "/" + (label == null ? "" : label);
+    PKCS11Key key = namedKeyCache.get(name);
+    if (key != null) {
+      return key;
+    }
+
+    Session session = pool.borrowSession(false);
+    try {
+      AttributeVector template = new AttributeVector().class_(objectClass);
+      if (id != null) {
+        template.id(id);
+      }
+      if (label != null) {
+        template.label(label);
+      }
+
+      long[] handles = session.findAllObjects(template);
+      if (handles.length == 0) {
+        return null;
+      }
+
+      key = keyCache.get(handles[0]);
+      if (key == null) {
+        key = readKey(session, handles[0]);
+      }
+    } finally {
+      pool.returnSession(session);
+    }
+
+    cache(name, key);
+    return key;
+  }
+
+  /**
+   * Removes the key of the given handle from the cache, e.g. after the object has been destroyed
+   * by another application.
+   *
+   * @param handle The handle of the key.
+   */
+  public void invalidate(long handle) {
+    keyCache.remove(handle);
+    namedKeyCache.values().removeIf(key -> key.getHandle() == handle);
+  }
+
+  /**
+   * Removes all keys from the cache.
+   */
+  public void clearKeyCache() {
+    keyCache.clear();
+    namedKeyCache.clear();
+  }
+
+  /**
+   * Returns the pool of random bytes used by the SecureRandom service.
+   *
+   * @return the random pool.
+   */
+  public synchronized RandomPool getRandomPool() {
+    if (randomPool == null) {
+      randomPool = new RandomPool(pool);
+    }
+    return randomPool;
+  }
+
+  /**
+   * Stops the {@link RandomPool}, stops listening to object changes and clears the key cache. The
+   * session pool is not closed.
+   */
+  @Override
+  public synchronized void close() {
+    pool.getToken().getSlot().getModule().removeObjectListener(listener);
+    if (randomPool != null) {
+      randomPool.close();
+      randomPool = null;
+    }
+    clearKeyCache();
+  }
+
+  Session borrowSession() throws PKCS11Exception {
+    return pool.borrowSession(false);
+  }
+
+  void returnSession(Session session) {
+    pool.returnSession(session);
+  }
+
+  /**
+   * Returns the given key as key of this provider.
+   *
+   * @param key      The key.
+   * @param type     The expected class of the key.
+   * @param keyTypes The expected CKA_KEY_TYPEs, none to accept all.
+   * @return the key.
+   * @throws InvalidKeyException If the key is not of this provider, or of a different type.
+   */
+  <T extends PKCS11Key> T requireKey(Key key, Class<T> type, long... keyTypes) throws InvalidKeyException {
+    if (!type.isInstance(key) || ((PKCS11Key) key).getToken() != getToken()) {
+      throw new InvalidKeyException("key is not a " + type.getName() + " of the token " + getToken().getTokenID());
+    }
+
+    T p11Key = type.cast(key);
+    if (keyTypes.length == 0) {
+      return p11Key;
+    }
+
+    for (long keyType : keyTypes) {
+      if (p11Key.getKeyType() == keyType) {
+        return p11Key;
+      }
+    }
+    throw new InvalidKeyException("unsupported key type " + ckkCodeToName(p11Key.getKeyType()));
+  }
+
+  private void cache(String name, PKCS11Key key) {
+    if (keyCache.size() >= MAX_CACHED_KEYS) {
+      clearKeyCache();
+    }
+
+    keyCache.put(key.getHandle(), key);
+    if (name != null) {
+      namedKeyCache.put(name, key);
+    }
+  }
+
+  private PKCS11Key readKey(Session session, long handle) throws PKCS11Exception {
+    AttributeVector attrs = session.getAttrValues(handle, CKA_CLASS, CKA_KEY_TYPE, CKA_ID, CKA_LABEL);
+    Long objectClass = attrs.class_();
+    Long keyType = attrs.keyType();
+    if (objectClass == null || keyType == null
+        || (objectClass != CKO_PRIVATE_KEY && objectClass != CKO_PUBLIC_KEY && objectClass != CKO_SECRET_KEY)) {
+      throw new PKCS11Exception(CKR_KEY_HANDLE_INVALID);
+    }
+
+    Token token = getToken();
+    if (objectClass == CKO_SECRET_KEY) {
+      Integer valueLen = session.getAttrValues(handle, CKA_VALUE_LEN).valueLen();
+      return new PKCS11Key.Secret(token, handle, keyType, attrs.id(), attrs.label(),
+          valueLen == null ? 0 : valueLen * 8);
+    }
+
+    int bitLength = 0;
+    byte[] ecParams = null;
+    if (keyType == CKK_RSA) {
+      BigInteger modulus = session.getAttrValues(handle, CKA_MODULUS).modulus();
+      bitLength = modulus == null ? 0 : modulus.bitLength();
+    } else if (keyType == CKK_EC || keyType == CKK_EC_EDWARDS || keyType == CKK_EC_MONTGOMERY) {
+      ecParams = session.getAttrValues(handle, CKA_EC_PARAMS).ecParams();
+      bitLength = ecParams == null ? 0 : Functions.getECOrderSize(ecParams) * 8;
+    }
+
+    return (objectClass == CKO_PRIVATE_KEY)
+        ? new PKCS11Key.Private(token, handle, keyType, attrs.id(), attrs.label(), bitLength, ecParams)
+        : new PKCS11Key.Public(token, handle, keyType, attrs.id(), attrs.label(), bitLength, ecParams);
+  }
+
+  private static String spiClassName(String type) {
+    switch (type) {
+      case "Signature":
+        return PKCS11SignatureSpi.class.getName();
+      case "Cipher":
+        return PKCS11CipherSpi.class.getName();
+      case "Mac":
+        return PKCS11MacSpi.class.getName();
+      case "KeyAgreement":
+        return PKCS11KeyAgreementSpi.class.getName();
+      case "KeyStore":
+        return PKCS11KeyStoreSpi.class.getName();
+      default:
+        return PKCS11SecureRandomSpi.class.getName();
+    }
+  }
+
+}
@@ -0,0 +1,220 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package org.xipki.pkcs11.wrapper.jca;
+
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.util.Arrays;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signature of the {@link PKCS11Provider}. The data is collected in memory and signed or verified
+ * with a single-part operation. ECDSA signatures are converted between the PKCS#11 format r || s
+ * and the DER-encoded format of JCA.
+ *
+ * @author Lijun Liao (xipki)
+ */
+final class PKCS11SignatureSpi extends SignatureSpi {
+
+  private final PKCS11Provider provider;
+
+  private final Mechanism mechanism;
+
+  private final long keyType;
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+  private PKCS11Key key;
+
+  PKCS11SignatureSpi(PKCS11Provider provider, Mechanism mechanism) {
+    this.provider = provider;
+    this.mechanism = mechanism;
+    long code = mechanism.getMechanismCode();
+    this.keyType = (code == CKM_EDDSA) ? CKK_EC_EDWARDS
+        : (code == CKM_ECDSA || (code >= CKM_ECDSA_SHA1 && code <= CKM_ECDSA_SHA3_512)) ? CKK_EC : CKK_RSA;
+  }
+
+  @Override
+  protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+    key = provider.requireKey(publicKey, PKCS11Key.Public.class, keyType);
+    buffer.reset();
+  }
+
+  @Override
+  protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+    key = provider.requireKey(privateKey, PKCS11Key.Private.class, keyType);
+    buffer.reset();
+  }
+
+  @Override
+  protected void engineUpdate(byte b) {
+    buffer.write(b);
+  }
+
+  @Override
+  protected void engineUpdate(byte[] b, int off, int len) {
+    buffer.write(b, off, len);
+  }
+
+  @Override
+  protected byte[] engineSign() throws SignatureException {
+    if (!(key instanceof PKCS11Key.Private)) {
+      throw new SignatureException("not initialized for signing");
+    }
+
+    byte[] data = buffer.toByteArray();
+    buffer.reset();
+
+    byte[] signature;
+    try {
+      Session session = provider.borrowSession();
+      try {
+        session.signInit(mechanism, key.getHandle());
+        signature = session.sign(data);
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      throw new SignatureException(e.getMessage(), e);
+    }
+
+    return (keyType == CKK_EC) ? toDerSignature(signature) : signature;
+  }
+
+  @Override
+  protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+    if (!(key instanceof PKCS11Key.Public)) {
+      throw new SignatureException("not initialized for verification");
+    }
+
+    byte[] data = buffer.toByteArray();
+    buffer.reset();
+
+    byte[] signature = (keyType == CKK_EC) ? toPlainSignature(sigBytes, key.ecOrderSize()) : sigBytes;
+    try {
+      Session session = provider.borrowSession();
+      try {
+        session.verifyInit(mechanism, key.getHandle());
+        session.verify(data, signature);
+        return true;
+      } finally {
+        provider.returnSession(session);
+      }
+    } catch (PKCS11Exception e) {
+      long code = e.getErrorCode();
+      if (code == CKR_SIGNATURE_INVALID || code == CKR_SIGNATURE_LEN_RANGE) {
+        return false;
+      }
+      throw new SignatureException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  @Deprecated
+  protected void engineSetParameter(String param, Object value) {
+    throw new InvalidParameterException("parameters are not supported");
+  }
+
+  @Override
+  @Deprecated
+  protected Object engineGetParameter(String param) {
+    throw new InvalidParameterException("parameters are not supported");
+  }
+
+  /**
+   * Converts r || s to the DER-encoded SEQUENCE of r and s.
+   */
+  private static byte[] toDerSignature(byte[] signature) throws SignatureException {
+    if (signature.length == 0 || signature.length % 2 != 0) {
+      throw new SignatureException("invalid ECDSA signature length " + signature.length);
+    }
+
+    int len = signature.length / 2;
+    byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, len)).toByteArray();
+    byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, len, signature.length)).toByteArray();
+
+    int contentLen = 2 + r.length + 2 + s.length;
+    int numLenBytes = (contentLen <= 0x7F) ? 0 : 1;
+    byte[] der = new byte[2 + numLenBytes + contentLen];
+    int ofs = 0;
+    der[ofs++] = 0x30;
+    if (numLenBytes == 1) {
+      der[ofs++] = (byte) 0x81;
+    }
+    der[ofs++] = (byte) contentLen;
+    for (byte[] integer : new byte[][]{r, s}) {
+      der[ofs++] = 0x02;
+      der[ofs++] = (byte) integer.length;
+      System.arraycopy(integer, 0, der, ofs, integer.length);
+      ofs += integer.length;
+    }
+    return der;
+  }
+
+  /**
+   * Converts the DER-encoded SEQUENCE of r and s to r || s, each of the given length.
+   */
+  private static byte[] toPlainSignature(byte[] der, int orderSize) throws SignatureException {
+    try {
+      int ofs = 0;
+      if (der[ofs++] != 0x30) {
+        throw new SignatureException("invalid DER-encoded ECDSA signature");
+      }
+
+      int len = 0xFF & der[ofs++];
+      if (len == 0x81) {
+        len = 0xFF & der[ofs++];
+      } else if (len > 0x7F) {
+        throw new SignatureException("invalid DER-encoded ECDSA signature");
+      }
+
+      if (ofs + len != der.length) {
+        throw new SignatureException("invalid DER-encoded ECDSA signature");
+      }
+
+      byte[][] integers = new byte[2][];
+      for (int i = 0; i < 2; i++) {
+        if (der[ofs++] != 0x02) {
+          throw new SignatureException("invalid DER-encoded ECDSA signature");
+        }
+        int intLen = 0xFF & der[ofs++];
+        integers[i] = new BigInteger(1, Arrays.copyOfRange(der, ofs, ofs + intLen)).toByteArray();
+        ofs += intLen;
+      }
+
+      if (ofs != der.length) {
+        throw new SignatureException("invalid DER-encoded ECDSA signature");
+      }
+
+      int size = orderSize;
+      for (byte[] integer : integers) {
+        // toByteArray() may prepend a sign byte
+        int intLen = (integer.length > 1 && integer[0] == 0) ? integer.length - 1 : integer.length;
+        size = Math.max(size, intLen);
+      }
+
+      byte[] plain = new byte[2 * size];
+      for (int i = 0; i < 2; i++) {
+        byte[] integer = integers[i];
+        int intLen = Math.min(integer.length, size);
+        System.arraycopy(integer, integer.length - intLen, plain, (i + 1) * size - intLen, intLen);
+      }
+      return plain;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new SignatureException("invalid DER-encoded ECDSA signature");
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper;
+
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.attrs.ByteArrayAttribute;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+public class AttributeVectorTest {
+
+  @Test
+  public void testGetAndReplace() {
+    AttributeVector attrs = new AttributeVector().class_(CKO_SECRET_KEY).keyType(CKK_AES)
+        .label("first").token(true);
+    Assert.assertEquals(4, attrs.size());
+    Assert.assertEquals("first", attrs.label());
+    Assert.assertNull(attrs.id());
+
+    // replacing keeps the position
+    attrs.label("second");
+    Assert.assertEquals(4, attrs.size());
+    Assert.assertEquals("second", attrs.label());
+    Assert.assertEquals(CKA_LABEL, attrs.snapshot().get(2).getType());
+  }
+
+  @Test
+  public void testManyAttributes() {
+    AttributeVector attrs = new AttributeVector();
+    for (long type = 0; type < 100; type++) {
+      attrs.attr(new ByteArrayAttribute(CKA_VENDOR_DEFINED | type).byteArrayValue(new byte[]{(byte) type}));
+    }
+
+    Assert.assertEquals(100, attrs.size());
+    for (long type = 0; type < 100; type++) {
+      Assert.assertEquals(CKA_VENDOR_DEFINED | type, attrs.snapshot().get((int) type).getType());
+      Assert.assertNotNull(attrs.getAttribute(CKA_VENDOR_DEFINED | type));
+    }
+    Assert.assertNull(attrs.getAttribute(CKA_VENDOR_DEFINED | 100));
+  }
+
+  @Test
+  public void testCachedCkAttributes() {
+    AttributeVector attrs = new AttributeVector().class_(CKO_DATA).label("label");
+    CK_ATTRIBUTE[] ckAttrs = attrs.toCkAttributes();
+    Assert.assertEquals(2, ckAttrs.length);
+    Assert.assertSame(ckAttrs, attrs.toCkAttributes());
+
+    // changing the presence of an attribute is detected
+    attrs.getAttribute(CKA_LABEL).present(false);
+    CK_ATTRIBUTE[] ckAttrs2 = attrs.toCkAttributes();
+    Assert.assertEquals(1, ckAttrs2.length);
+
+    attrs.token(true);
+    Assert.assertEquals(2, attrs.toCkAttributes().length);
+  }
+
+}
@@ -0,0 +1,61 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.LongMap;
+
+import java.util.Arrays;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+public class LongMapTest {
+
+  @Test
+  public void testPutGet() {
+    LongMap<String> map = new LongMap<>(2);
+    Assert.assertTrue(map.isEmpty());
+    Assert.assertNull(map.get(CKA_CLASS));
+
+    // 0 is a valid key, e.g. CKA_CLASS and CKO_DATA.
+    Assert.assertNull(map.put(CKA_CLASS, "CKA_CLASS"));
+    Assert.assertNull(map.put(CKA_VENDOR_DEFINED, "CKA_VENDOR_DEFINED"));
+    Assert.assertNull(map.put(CKM_VENDOR_DEFINED | CKM_SHA256, "vendor"));
+    Assert.assertNull(map.put(-1L, "-1"));
+
+    Assert.assertEquals(4, map.size());
+    Assert.assertEquals("CKA_CLASS", map.get(CKA_CLASS));
+    Assert.assertEquals("CKA_VENDOR_DEFINED", map.get(CKA_VENDOR_DEFINED));
+    Assert.assertEquals("vendor", map.get(CKM_VENDOR_DEFINED | CKM_SHA256));
+    Assert.assertEquals("-1", map.get(-1L));
+    Assert.assertNull(map.get(CKM_SHA256));
+    Assert.assertEquals("default", map.getOrDefault(CKM_SHA256, "default"));
+
+    Assert.assertEquals("CKA_CLASS", map.put(CKA_CLASS, "class"));
+    Assert.assertEquals(4, map.size());
+    Assert.assertEquals("class", map.get(CKA_CLASS));
+  }
+
+  @Test
+  public void testRehash() {
+    LongMap<Long> map = new LongMap<>();
+    for (long i = 0; i < 10000; i++) {
+      map.put(i * 31, i);
+    }
+
+    Assert.assertEquals(10000, map.size());
+    for (long i = 0; i < 10000; i++) {
+      Assert.assertEquals(Long.valueOf(i), map.get(i * 31));
+      Assert.assertFalse(map.containsKey(i * 31 + 1));
+    }
+
+    long[] keys = map.keys();
+    Arrays.sort(keys);
+    Assert.assertEquals(10000, keys.length);
+    Assert.assertEquals(0, keys[0]);
+    Assert.assertEquals(9999 * 31, keys[9999]);
+  }
+
+}
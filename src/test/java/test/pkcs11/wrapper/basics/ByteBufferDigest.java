@@ -0,0 +1,80 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKM_SHA256;
+
+/**
+ * This demo program digests data passed in direct and heap {@link ByteBuffer}s.
+ */
+public class ByteBufferDigest extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception, NoSuchAlgorithmException {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws PKCS11Exception, NoSuchAlgorithmException {
+    Mechanism mechanism = getSupportedMechanism(token, CKM_SHA256);
+    byte[] data = randomBytes(10000);
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+    session.setScratchBufferPooling(true);
+
+    // multi-part, direct buffer
+    ByteBuffer in = ByteBuffer.allocateDirect(data.length);
+    in.put(data).flip();
+
+    session.digestInit(mechanism);
+    for (int off = 0; off < data.length; off += 1000) {
+      in.limit(off + 1000);
+      session.digestUpdate(in);
+      Assert.assertEquals(off + 1000, in.position());
+    }
+
+    ByteBuffer out = ByteBuffer.allocate(64);
+    out.position(10);
+    int len = session.digestFinal(out);
+    Assert.assertEquals(32, len);
+    Assert.assertEquals(42, out.position());
+
+    byte[] hash = new byte[len];
+    out.position(10);
+    out.get(hash);
+    Assert.assertArrayEquals(expected, hash);
+
+    // single-part, slice of a heap buffer
+    byte[] padded = new byte[data.length + 20];
+    System.arraycopy(data, 0, padded, 10, data.length);
+    ByteBuffer heapIn = ByteBuffer.wrap(padded, 10, data.length);
+    ByteBuffer directOut = ByteBuffer.allocateDirect(32);
+
+    session.digestInit(mechanism);
+    session.digest(heapIn, directOut);
+    Assert.assertFalse(heapIn.hasRemaining());
+
+    directOut.flip();
+    directOut.get(hash);
+    Assert.assertArrayEquals(expected, hash);
+  }
+
+}
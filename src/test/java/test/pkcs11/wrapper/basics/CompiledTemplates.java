@@ -0,0 +1,66 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.CompiledTemplate;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKO_DATA;
+
+/**
+ * This demo program creates and finds objects with {@link CompiledTemplate}s.
+ */
+public class CompiledTemplates extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception {
+    Token token = getNonNullToken();
+    Session session = openReadWriteSession(token);
+    try {
+      main0(session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Session session) throws PKCS11Exception {
+    String label = "compiled-label-" + System.currentTimeMillis();
+    AttributeVector template = new AttributeVector().class_(CKO_DATA).label(label)
+        .value("hello world".getBytes()).token(false);
+    CompiledTemplate createTemplate = CompiledTemplate.compile(session.getModule(), template);
+    CompiledTemplate searchTemplate = CompiledTemplate.compile(session.getModule(),
+        new AttributeVector().class_(CKO_DATA).label(label));
+
+    // later changes of the source template have no effect
+    template.label("changed");
+    Assert.assertEquals(label, createTemplate.label());
+
+    try {
+      createTemplate.label("changed");
+      Assert.fail("CompiledTemplate is not immutable");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    long handle1 = session.createObject(createTemplate);
+    long handle2 = session.createObject(createTemplate);
+    try {
+      long[] handles = session.findAllObjects(searchTemplate);
+      Assert.assertEquals(2, handles.length);
+      LOG.info("found objects {} and {}", handles[0], handles[1]);
+    } finally {
+      session.destroyObject(handle1);
+      session.destroyObject(handle2);
+    }
+
+    Assert.assertEquals(0, session.findAllObjects(searchTemplate).length);
+  }
+
+}
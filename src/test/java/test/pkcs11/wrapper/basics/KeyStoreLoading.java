@@ -0,0 +1,63 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.SessionPool;
+import org.xipki.pkcs11.wrapper.Token;
+import org.xipki.pkcs11.wrapper.jca.PKCS11Key;
+import org.xipki.pkcs11.wrapper.jca.PKCS11Provider;
+import test.pkcs11.wrapper.TestBase;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.Key;
+import java.security.KeyStore;
+import java.util.Collections;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program loads the objects of the token via the KeyStore of the {@link PKCS11Provider}.
+ */
+public class KeyStoreLoading extends TestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    if (!Util.supports(token, CKM_AES_KEY_GEN)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(CKM_AES_KEY_GEN));
+      return;
+    }
+
+    Session session = openReadWriteSession(token);
+    String label = "keystore-label-" + System.currentTimeMillis();
+    AttributeVector template = AttributeVector.newAESSecretKey().label(label).id(randomBytes(8))
+        .valueLen(16).token(true).encrypt(true).decrypt(true);
+    long handle = session.generateKey(new Mechanism(CKM_AES_KEY_GEN), template);
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         PKCS11Provider provider = new PKCS11Provider(pool)) {
+      KeyStore keyStore = KeyStore.getInstance("PKCS11", provider);
+      keyStore.load(null, null);
+      LOG.info("KeyStore has {} entries", keyStore.size());
+      Assert.assertEquals(keyStore.size(), Collections.list(keyStore.aliases()).size());
+
+      Assert.assertTrue(keyStore.containsAlias(label));
+      Assert.assertTrue(keyStore.isKeyEntry(label));
+      Key key = keyStore.getKey(label, null);
+      Assert.assertTrue(key instanceof PKCS11Key.Secret);
+      Assert.assertEquals(handle, ((PKCS11Key) key).getHandle());
+      Assert.assertEquals(128, ((PKCS11Key) key).getBitLength());
+      // materialized once
+      Assert.assertSame(key, keyStore.getKey(label, null));
+    } finally {
+      session.destroyObject(handle);
+      session.closeSession();
+    }
+  }
+
+}
@@ -0,0 +1,49 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.TestBase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKM_SHA256;
+
+/**
+ * This demo program digests a file via {@link MappedFiles}.
+ */
+public class MappedFileDigest extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception, IOException, NoSuchAlgorithmException {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    Path file = Files.createTempFile("mapped-", ".bin");
+    try {
+      byte[] data = randomBytes(100000);
+      Files.write(file, data);
+      byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+      Mechanism mechanism = getSupportedMechanism(token, CKM_SHA256);
+
+      Assert.assertArrayEquals(expected, MappedFiles.digest(session, mechanism, file));
+
+      // small windows and chunks, to exercise the remapping
+      session.digestInit(mechanism);
+      MappedFiles.digestUpdate(session, file, 30000, 7000);
+      byte[] hash = new byte[32];
+      session.digestFinal(hash, 0, hash.length);
+      Assert.assertArrayEquals(expected, hash);
+    } finally {
+      session.closeSession();
+      Files.deleteIfExists(file);
+    }
+  }
+
+}
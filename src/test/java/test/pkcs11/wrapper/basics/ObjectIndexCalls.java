@@ -0,0 +1,101 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Implementation;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.TestBase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program counts the C_GetAttributeValue calls of {@link ObjectIndex#refresh(Session)}.
+ * It connects a second time to the PKCS#11 library, through a wrapper which counts the calls.
+ */
+public class ObjectIndexCalls extends TestBase {
+
+  private static final class CountingImplementation extends PKCS11Implementation {
+
+    private final AtomicInteger getAttributeValueCalls = new AtomicInteger();
+
+    CountingImplementation(String pkcs11ModulePath) throws IOException {
+      super(pkcs11ModulePath);
+    }
+
+    @Override
+    public void C_GetAttributeValue(long hSession, long hObject, CK_ATTRIBUTE[] pTemplate, boolean useUtf8)
+        throws iaik.pkcs.pkcs11.wrapper.PKCS11Exception {
+      getAttributeValueCalls.incrementAndGet();
+      super.C_GetAttributeValue(hSession, hObject, pTemplate, useUtf8);
+    }
+
+  } // class CountingImplementation
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    String modulePath = ((PKCS11Implementation) getModule().getPKCS11Module()).getPkcs11ModulePath();
+
+    CountingImplementation counting = new CountingImplementation(modulePath);
+    PKCS11Module countingModule = new PKCS11Module(counting) {
+    };
+    try {
+      countingModule.initialize();
+    } catch (PKCS11Exception e) {
+      // the library has already been initialized by the TestBase
+      if (e.getErrorCode() != CKR_CRYPTOKI_ALREADY_INITIALIZED) {
+        throw e;
+      }
+    }
+
+    Token countingToken = null;
+    for (Slot slot : countingModule.getSlotList(true)) {
+      if (slot.getSlotID() == token.getSlot().getSlotID()) {
+        countingToken = slot.getToken();
+      }
+    }
+    Assert.assertNotNull(countingToken);
+
+    // some data objects, which have neither CKA_KEY_TYPE nor CKA_ID
+    Session rwSession = openReadWriteSession(token);
+    long[] handles = new long[10];
+    try {
+      for (int i = 0; i < handles.length; i++) {
+        handles[i] = rwSession.createObject(new AttributeVector().class_(CKO_DATA)
+            .label("index-calls-" + i).value(randomBytes(10)).token(true));
+      }
+
+      Session session = countingToken.openSession(false);
+      try (ObjectIndex index = new ObjectIndex(countingToken)) {
+        counting.getAttributeValueCalls.set(0);
+        index.refresh(session);
+        int calls = counting.getAttributeValueCalls.get();
+        LOG.info("{}, {} C_GetAttributeValue calls", index, calls);
+
+        // one call per object, plus one for the class of objects of other classes
+        int numOtherObjects = index.size();
+        for (long objectClass : new long[]{CKO_PRIVATE_KEY, CKO_PUBLIC_KEY, CKO_SECRET_KEY, CKO_CERTIFICATE, CKO_DATA}) {
+          numOtherObjects -= index.findByClass(objectClass).length;
+        }
+        Assert.assertTrue(calls <= index.size() + numOtherObjects);
+      } finally {
+        session.closeSession();
+      }
+    } finally {
+      for (long handle : handles) {
+        if (handle != 0) {
+          rwSession.destroyObject(handle);
+        }
+      }
+      rwSession.closeSession();
+    }
+  }
+
+}
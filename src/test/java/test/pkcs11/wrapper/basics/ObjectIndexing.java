@@ -0,0 +1,57 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.ObjectIndex;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKO_DATA;
+
+/**
+ * This demo program shows how to look up objects via an {@link ObjectIndex}.
+ */
+public class ObjectIndexing extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception {
+    Token token = getNonNullToken();
+    Session session = openReadWriteSession(token);
+    try (ObjectIndex index = new ObjectIndex(token)) {
+      index.refresh(session);
+      LOG.info("{}", index);
+      int size = index.size();
+
+      String label = "index-label-" + System.currentTimeMillis();
+      AttributeVector template = new AttributeVector().class_(CKO_DATA)
+          .label(label).value("hello world".getBytes()).token(true);
+
+      long handle = session.createObject(template);
+      try {
+        // the index is updated without refresh
+        Assert.assertEquals(size + 1, index.size());
+        long[] handles = index.findByLabel(label);
+        Assert.assertEquals(1, handles.length);
+        Assert.assertEquals(handle, handles[0]);
+
+        handles = index.find(CKO_DATA, null, null, label);
+        Assert.assertEquals(1, handles.length);
+        LOG.info("{}", index.get(handle));
+      } finally {
+        session.destroyObject(handle);
+      }
+
+      Assert.assertEquals(0, index.findByLabel(label).length);
+      Assert.assertEquals(size, index.size());
+    } finally {
+      session.closeSession();
+    }
+  }
+
+}
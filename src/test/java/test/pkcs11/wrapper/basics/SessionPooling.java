@@ -0,0 +1,78 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.SessionPool;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKU_USER;
+
+/**
+ * This demo program shows how to borrow sessions from a {@link SessionPool}.
+ */
+public class SessionPooling extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception {
+    Token token = getNonNullToken();
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin())) {
+      LOG.info("##################################################");
+      LOG.info("{}", pool);
+
+      Session session = pool.borrowSession(false);
+      long handle = session.getSessionHandle();
+      Assert.assertFalse(session.isRwSession());
+      pool.returnSession(session);
+
+      // the same session is handed out again
+      session = pool.borrowSession(false);
+      Assert.assertEquals(handle, session.getSessionHandle());
+
+      if (pool.getMaxRwSessions() > 0) {
+        Session rwSession = pool.borrowSession(true);
+        Assert.assertTrue(rwSession.isRwSession());
+        pool.returnSession(rwSession);
+      }
+
+      pool.returnSession(session);
+      Assert.assertEquals(0, pool.getBorrowedSessionCount());
+      LOG.info("{}", pool);
+      LOG.info("##################################################");
+    }
+  }
+
+  @Test
+  public void boundSessions() throws Exception {
+    Token token = getNonNullToken();
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin())) {
+      Session session = pool.getBoundSession(false);
+      // the same session is bound to this thread
+      Assert.assertSame(session, pool.getBoundSession(false));
+
+      Thread worker = new Thread(() -> {
+        try {
+          pool.getBoundSession(false);
+        } catch (PKCS11Exception ex) {
+          throw new IllegalStateException(ex);
+        }
+      });
+      worker.start();
+      worker.join();
+
+      Assert.assertEquals(2, pool.getBorrowedSessionCount());
+      // the session of the dead worker thread is released
+      pool.releaseDeadThreadSessions();
+      Assert.assertEquals(1, pool.getBorrowedSessionCount());
+
+      pool.releaseBoundSessions();
+      Assert.assertEquals(0, pool.getBorrowedSessionCount());
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.basics;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.AttributeVector;
+import org.xipki.pkcs11.wrapper.ObjectIterator;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import java.util.stream.LongStream;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program lists objects via {@link ObjectIterator} and {@link LongStream}.
+ */
+public class StreamingFind extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Session session) throws PKCS11Exception {
+    LOG.info("##################################################");
+    long[] allHandles = session.findAllObjects(null);
+    LOG.info("found {} objects", allHandles.length);
+
+    // small batches, to exercise multiple C_FindObjects calls
+    int count = 0;
+    try (ObjectIterator it = session.iterateObjects(null, 1, 4, CKA_CLASS, CKA_LABEL)) {
+      while (it.hasNextObject()) {
+        long handle = it.nextObject();
+        AttributeVector attrs = it.getAttributes();
+        LOG.info("handle={}, class={}, label={}", handle, ckoCodeToName(attrs.class_()), attrs.label());
+        count++;
+      }
+    }
+    Assert.assertEquals(allHandles.length, count);
+
+    // early termination closes the find operation
+    try (LongStream stream = session.streamObjects(AttributeVector.newPrivateKey())) {
+      LOG.info("first private key: {}", stream.findFirst());
+    }
+
+    // a new find operation can be started
+    Assert.assertEquals(allHandles.length, session.findAllObjects(null).length);
+    LOG.info("##################################################");
+  }
+
+}
@@ -0,0 +1,75 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.encryption;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.TestBase;
+import test.pkcs11.wrapper.util.Util;
+
+import java.util.Arrays;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program encrypts and decrypts messages via {@link MessageCipher}.
+ */
+public class AESGCMMessageCipher extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception {
+    Token token = getNonNullToken();
+
+    Session session = openReadWriteSession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws PKCS11Exception {
+    LOG.info("##################################################");
+    if (!Util.supports(token, CKM_AES_GCM) || !token.getMechanismInfo(CKM_AES_GCM).hasFlagBit(CKF_MESSAGE_ENCRYPT)) {
+      System.out.println("Message-based encryption with CKM_AES_GCM is not supported");
+      return;
+    }
+
+    LOG.info("generate secret encryption/decryption key");
+    AttributeVector keyTemplate = newSecretKey(CKK_AES).encrypt(true).decrypt(true).valueLen(16).token(false);
+    long key = session.generateKey(getSupportedMechanism(token, CKM_AES_KEY_GEN), keyTemplate);
+
+    byte[] associatedData = randomBytes(20);
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         MessageCipher cipher = new MessageCipher(pool, key)) {
+      // the IV counter is shared with earlier MessageCiphers of the same key handle
+      long encryptedCount = cipher.getEncryptedCount();
+      byte[] previousIv = null;
+      for (int i = 0; i < 10; i++) {
+        byte[] message = randomBytes(100 + i);
+        byte[] sealed = cipher.encrypt(associatedData, message);
+        Assert.assertEquals(MessageCipher.IV_LENGTH + message.length + cipher.getTagLength(), sealed.length);
+
+        byte[] iv = Arrays.copyOf(sealed, MessageCipher.IV_LENGTH);
+        Assert.assertFalse(Arrays.equals(previousIv, iv));
+        previousIv = iv;
+
+        Assert.assertArrayEquals(message, cipher.decrypt(associatedData, sealed));
+      }
+      Assert.assertEquals(encryptedCount + 10, cipher.getEncryptedCount());
+
+      // modified associated data
+      byte[] sealed = cipher.encrypt(associatedData, randomBytes(100));
+      try {
+        cipher.decrypt(randomBytes(20), sealed);
+        Assert.fail("no exception thrown");
+      } catch (PKCS11Exception e) {
+        LOG.info("expected exception: {}", e.getMessage());
+      }
+    }
+    LOG.info("##################################################");
+  }
+
+}
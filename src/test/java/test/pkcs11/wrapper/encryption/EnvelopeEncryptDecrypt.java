@@ -0,0 +1,77 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.encryption;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.TestBase;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.GeneralSecurityException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program encrypts and decrypts payloads via {@link EnvelopeCipher}.
+ */
+public class EnvelopeEncryptDecrypt extends TestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+
+    Session session = openReadWriteSession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    if (!Util.supports(token, CKM_AES_KEY_WRAP)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(CKM_AES_KEY_WRAP));
+      return;
+    }
+
+    LOG.info("generate key-encryption key");
+    AttributeVector kekTemplate = newSecretKey(CKK_AES).wrap(true).unwrap(true).valueLen(32).token(false);
+    long kek = session.generateKey(getSupportedMechanism(token, CKM_AES_KEY_GEN), kekTemplate);
+
+    byte[] associatedData = randomBytes(20);
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin())) {
+      EnvelopeCipher cipher = new EnvelopeCipher(pool, kek);
+      cipher.setMaxMessagesPerDataKey(5);
+
+      byte[][] payloads = new byte[12][];
+      byte[][] envelopes = new byte[payloads.length][];
+      for (int i = 0; i < payloads.length; i++) {
+        payloads[i] = randomBytes(100 + i);
+        envelopes[i] = cipher.encrypt(associatedData, payloads[i]);
+      }
+      // 3 data keys have been generated
+      Assert.assertEquals(3, cipher.getCachedKeyCount());
+
+      // decrypt with the data keys unwrapped on the token
+      cipher.clearCache();
+      for (int i = 0; i < payloads.length; i++) {
+        Assert.assertArrayEquals(payloads[i], cipher.decrypt(associatedData, envelopes[i]));
+      }
+      Assert.assertEquals(3, cipher.getCachedKeyCount());
+
+      // modified envelope
+      envelopes[0][envelopes[0].length - 1] ^= 1;
+      try {
+        cipher.decrypt(associatedData, envelopes[0]);
+        Assert.fail("no exception thrown");
+      } catch (GeneralSecurityException e) {
+        LOG.info("expected exception: {}", e.getMessage());
+      }
+    }
+    LOG.info("##################################################");
+  }
+
+}
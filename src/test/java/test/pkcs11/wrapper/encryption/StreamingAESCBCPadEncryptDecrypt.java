@@ -0,0 +1,72 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.encryption;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import org.xipki.pkcs11.wrapper.params.ByteArrayParams;
+import test.pkcs11.wrapper.TestBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program encrypts data via {@link OperationOutputStream} and decrypts them via
+ * {@link OperationInputStream} with CKM_AES_CBC_PAD.
+ */
+public class StreamingAESCBCPadEncryptDecrypt extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception, IOException {
+    Token token = getNonNullToken();
+
+    Session session = openReadWriteSession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws PKCS11Exception, IOException {
+    LOG.info("##################################################");
+    LOG.info("generate secret encryption/decryption key");
+    AttributeVector keyTemplate = newSecretKey(CKK_AES).encrypt(true).decrypt(true).valueLen(16).token(false);
+    long key = session.generateKey(getSupportedMechanism(token, CKM_AES_KEY_GEN), keyTemplate);
+
+    byte[] iv = randomBytes(16);
+    Mechanism mechanism = getSupportedMechanism(token, CKM_AES_CBC_PAD, new ByteArrayParams(iv));
+    byte[] rawData = randomBytes(10000);
+
+    LOG.info("encrypting data");
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    session.encryptInit(mechanism, key);
+    // chunk size not multiple of the block size, and writes not aligned to the chunks
+    try (OperationOutputStream out = OperationOutputStream.encrypting(session, encrypted, 1000)) {
+      for (int i = 0; i < rawData.length; i += 777) {
+        out.write(rawData, i, Math.min(777, rawData.length - i));
+      }
+    }
+
+    LOG.info("decrypting data");
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    session.decryptInit(mechanism, key);
+    try (OperationInputStream in = OperationInputStream.decrypting(session,
+        new ByteArrayInputStream(encrypted.toByteArray()), 512)) {
+      byte[] buffer = new byte[300];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        decrypted.write(buffer, 0, len);
+      }
+    }
+
+    Assert.assertArrayEquals(rawData, decrypted.toByteArray());
+    LOG.info("##################################################");
+  }
+
+}
@@ -0,0 +1,77 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.encryption;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import org.xipki.pkcs11.wrapper.params.GCM_PARAMS;
+import test.pkcs11.wrapper.TestBase;
+import test.pkcs11.wrapper.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * This demo program encrypts data via {@link OperationOutputStream} and decrypts them via
+ * {@link OperationInputStream} with CKM_AES_GCM. The data span many chunks, and the token may
+ * return the complete plaintext in the final decryption step.
+ */
+public class StreamingAESGCMEncryptDecrypt extends TestBase {
+
+  @Test
+  public void main() throws PKCS11Exception, IOException {
+    Token token = getNonNullToken();
+    if (!Util.supports(token, CKM_AES_GCM)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(CKM_AES_GCM));
+      return;
+    }
+
+    Session session = openReadWriteSession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws PKCS11Exception, IOException {
+    LOG.info("##################################################");
+    LOG.info("generate secret encryption/decryption key");
+    AttributeVector keyTemplate = newSecretKey(CKK_AES).encrypt(true).decrypt(true).valueLen(16).token(false);
+    long key = session.generateKey(getSupportedMechanism(token, CKM_AES_KEY_GEN), keyTemplate);
+
+    Mechanism mechanism = getSupportedMechanism(token, CKM_AES_GCM,
+        new GCM_PARAMS(randomBytes(12), randomBytes(16), 128));
+    // many times the chunk size
+    byte[] rawData = randomBytes(100000);
+
+    LOG.info("encrypting data");
+    ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+    session.encryptInit(mechanism, key);
+    try (OperationOutputStream out = OperationOutputStream.encrypting(session, encrypted, 4096)) {
+      out.write(rawData);
+    }
+    Assert.assertEquals(rawData.length + 16, encrypted.size());
+
+    LOG.info("decrypting data");
+    ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+    session.decryptInit(mechanism, key);
+    try (OperationInputStream in = OperationInputStream.decrypting(session,
+        new ByteArrayInputStream(encrypted.toByteArray()), 4096)) {
+      byte[] buffer = new byte[1000];
+      int len;
+      while ((len = in.read(buffer)) != -1) {
+        decrypted.write(buffer, 0, len);
+      }
+    }
+
+    Assert.assertArrayEquals(rawData, decrypted.toByteArray());
+    LOG.info("##################################################");
+  }
+
+}
@@ -0,0 +1,47 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.RandomPool;
+import org.xipki.pkcs11.wrapper.SessionPool;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.TestBase;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.CKU_USER;
+
+/**
+ * This demo program serves small random values, e.g. nonces, from a {@link RandomPool}.
+ */
+public class PooledRandom extends TestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    LOG.info("##################################################");
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         RandomPool randomPool = new RandomPool(pool, 1024, 2)) {
+      // small requests span several blocks, no nonce may repeat.
+      Set<String> nonces = new HashSet<>();
+      for (int i = 0; i < 1000; i++) {
+        Assert.assertTrue(nonces.add(new String(randomPool.nextBytes(12), "ISO-8859-1")));
+      }
+
+      // larger than a block
+      Assert.assertEquals(4000, randomPool.nextBytes(4000).length);
+
+      SecureRandom random = randomPool.asSecureRandom();
+      byte[] bytes = new byte[32];
+      random.nextBytes(bytes);
+      LOG.info("{}", randomPool);
+    }
+    LOG.info("##################################################");
+  }
+
+}
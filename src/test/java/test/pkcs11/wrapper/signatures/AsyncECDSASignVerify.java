@@ -0,0 +1,75 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs and verifies hash values asynchronously using CKM_ECDSA via an {@link AsyncToken}.
+ */
+public class AsyncECDSASignVerify extends SignatureTestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_ECDSA;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+    Mechanism signatureMechanism = getSupportedMechanism(token, mechCode);
+
+    // OID: 1.2.840.10045.3.1.7 (secp256r1, alias NIST P-256)
+    final byte[] ecParams = new byte[] {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    // the session keys are visible to the sessions of the workers.
+    PKCS11KeyPair keyPair = generateECKeypair(token, session, ecParams, false);
+
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         AsyncToken asyncToken = new AsyncToken(pool, 2)) {
+      List<byte[]> hashValues = new ArrayList<>();
+      List<CompletableFuture<Boolean>> verifications = new ArrayList<>();
+      for (int i = 0; i < 10; i++) {
+        byte[] hashValue = md.digest(randomBytes(100));
+        hashValues.add(hashValue);
+        verifications.add(asyncToken.sign(signatureMechanism, keyPair.getPrivateKey(), hashValue)
+            .thenCompose(signature -> asyncToken.verify(signatureMechanism, keyPair.getPublicKey(),
+                hashValue, signature)));
+      }
+
+      for (CompletableFuture<Boolean> verification : verifications) {
+        Assert.assertTrue(verification.get());
+      }
+
+      // invalid signature
+      byte[] signature = asyncToken.sign(signatureMechanism, keyPair.getPrivateKey(), hashValues.get(0)).get();
+      signature[signature.length - 1] ^= 1;
+      Assert.assertFalse(asyncToken.verify(signatureMechanism, keyPair.getPublicKey(),
+          hashValues.get(0), signature).get());
+      LOG.info("{}", asyncToken);
+    }
+    LOG.info("##################################################");
+  }
+
+}
@@ -0,0 +1,75 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs and verifies a batch of hash values on the token using CKM_ECDSA.
+ */
+public class ECDSABatchSignVerify extends SignatureTestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_ECDSA;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+    Mechanism signatureMechanism = getSupportedMechanism(token, mechCode);
+
+    // OID: 1.2.840.10045.3.1.7 (secp256r1, alias NIST P-256)
+    final byte[] ecParams = new byte[] {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    PKCS11KeyPair keyPair = generateECKeypair(token, session, ecParams, false);
+
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    List<byte[]> hashValues = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      hashValues.add(md.digest(randomBytes(100)));
+    }
+
+    LOG.info("signing {} hash values", hashValues.size());
+    BatchResult<byte[]> signResult = session.signBatch(signatureMechanism, keyPair.getPrivateKey(), hashValues);
+    Assert.assertEquals(0, signResult.getFailureCount());
+
+    List<byte[]> signatures = new ArrayList<>();
+    for (int i = 0; i < signResult.size(); i++) {
+      signatures.add(signResult.get(i));
+    }
+
+    // corrupt one signature
+    byte[] corrupted = signatures.get(5).clone();
+    corrupted[corrupted.length - 1] ^= 1;
+    signatures.set(5, corrupted);
+
+    BatchResult<Boolean> verifyResult = session.verifyBatch(signatureMechanism, keyPair.getPublicKey(),
+        hashValues, signatures);
+    Assert.assertEquals(0, verifyResult.getFailureCount());
+    for (int i = 0; i < verifyResult.size(); i++) {
+      Assert.assertEquals(i != 5, verifyResult.get(i));
+    }
+    LOG.info("##################################################");
+  }
+
+}
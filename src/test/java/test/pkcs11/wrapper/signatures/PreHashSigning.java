@@ -0,0 +1,67 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.Mechanism;
+import org.xipki.pkcs11.wrapper.PKCS11KeyPair;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.Token;
+import test.pkcs11.wrapper.util.Util;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs data with CKM_SHA256_RSA_PKCS, hashed in software and signed with CKM_RSA_PKCS on the
+ * token, and compares the signature with the one created completely on the token.
+ */
+public class PreHashSigning extends SignatureTestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_SHA256_RSA_PKCS;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+    Mechanism signatureMechanism = getSupportedMechanism(token, mechCode);
+
+    PKCS11KeyPair keyPair = generateRSAKeypair(token, session, 2048, false);
+    byte[] data = randomBytes(1024 * 1024);
+
+    LOG.info("signing data on the token");
+    session.signInit(signatureMechanism, keyPair.getPrivateKey());
+    byte[] signature = session.sign(data);
+
+    LOG.info("signing pre-hashed data");
+    session.setPreHashSigning(true);
+    session.signInit(signatureMechanism, keyPair.getPrivateKey());
+    // PKCS#1 v1.5 signatures are deterministic
+    Assert.assertArrayEquals(signature, session.sign(data));
+
+    // multi-part
+    session.signInit(signatureMechanism, keyPair.getPrivateKey());
+    for (int i = 0; i < data.length; i += 100000) {
+      session.signUpdate(data, i, Math.min(100000, data.length - i));
+    }
+    Assert.assertArrayEquals(signature, session.signFinal());
+
+    session.verifyInit(signatureMechanism, keyPair.getPublicKey());
+    session.verify(data, signature);
+    LOG.info("##################################################");
+  }
+
+}
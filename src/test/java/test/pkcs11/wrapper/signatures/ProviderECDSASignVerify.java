@@ -0,0 +1,87 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.PKCS11Exception;
+import org.xipki.pkcs11.wrapper.PKCS11KeyPair;
+import org.xipki.pkcs11.wrapper.Session;
+import org.xipki.pkcs11.wrapper.SessionPool;
+import org.xipki.pkcs11.wrapper.Token;
+import org.xipki.pkcs11.wrapper.jca.PKCS11Provider;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs and verifies data with SHA256withECDSA of the {@link PKCS11Provider}.
+ */
+public class ProviderECDSASignVerify extends SignatureTestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_ECDSA_SHA256;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+
+    // OID: 1.2.840.10045.3.1.7 (secp256r1, alias NIST P-256)
+    final byte[] ecParams = new byte[] {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    PKCS11KeyPair keyPair = generateECKeypair(token, session, ecParams, false);
+
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         PKCS11Provider provider = new PKCS11Provider(pool)) {
+      PrivateKey privateKey = (PrivateKey) provider.getKey(keyPair.getPrivateKey());
+      PublicKey publicKey = (PublicKey) provider.getKey(keyPair.getPublicKey());
+      // the keys are cached
+      Assert.assertSame(privateKey, provider.getKey(keyPair.getPrivateKey()));
+
+      Signature signer = Signature.getInstance("SHA256withECDSA", provider);
+      Signature verifier = Signature.getInstance("SHA256withECDSA", provider);
+      for (int i = 0; i < 10; i++) {
+        byte[] data = randomBytes(100 + i);
+        signer.initSign(privateKey);
+        signer.update(data);
+        byte[] signature = signer.sign();
+
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        Assert.assertTrue(verifier.verify(signature));
+
+        data[0] ^= 1;
+        verifier.initVerify(publicKey);
+        verifier.update(data);
+        Assert.assertFalse(verifier.verify(signature));
+      }
+
+      // the key is removed from the cache with the object
+      session.destroyObject(keyPair.getPublicKey());
+      try {
+        provider.getKey(keyPair.getPublicKey());
+        Assert.fail("no exception thrown");
+      } catch (PKCS11Exception e) {
+        LOG.info("expected exception: {}", e.getMessage());
+      }
+    }
+    LOG.info("##################################################");
+  }
+
+}
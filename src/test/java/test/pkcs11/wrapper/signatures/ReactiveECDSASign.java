@@ -0,0 +1,142 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.util.Util;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs a stream of hash values using CKM_ECDSA via an {@link OperationProcessor}.
+ */
+public class ReactiveECDSASign extends SignatureTestBase {
+
+  private static final int COUNT = 50;
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_ECDSA;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+    Mechanism signatureMechanism = getSupportedMechanism(token, mechCode);
+
+    // OID: 1.2.840.10045.3.1.7 (secp256r1, alias NIST P-256)
+    final byte[] ecParams = new byte[] {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    PKCS11KeyPair keyPair = generateECKeypair(token, session, ecParams, false);
+
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    List<byte[]> hashValues = new ArrayList<>(COUNT);
+    for (int i = 0; i < COUNT; i++) {
+      hashValues.add(md.digest(randomBytes(100)));
+    }
+
+    List<byte[]> signatures = new ArrayList<>(COUNT);
+    CompletableFuture<Void> done = new CompletableFuture<>();
+
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         AsyncToken asyncToken = new AsyncToken(pool, 2)) {
+      OperationProcessor<byte[]> signer = OperationProcessor.signing(asyncToken, signatureMechanism,
+          keyPair.getPrivateKey());
+      new ListPublisher(hashValues).subscribe(signer);
+
+      signer.subscribe(new Flow.Subscriber<byte[]>() {
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+          this.subscription = subscription;
+          subscription.request(1);
+        }
+
+        @Override
+        public void onNext(byte[] signature) {
+          signatures.add(signature);
+          subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+          done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+          done.complete(null);
+        }
+      });
+
+      done.get(60, TimeUnit.SECONDS);
+    }
+
+    // the signatures are published in the order of the hash values
+    Assert.assertEquals(COUNT, signatures.size());
+    for (int i = 0; i < COUNT; i++) {
+      session.verifyInit(signatureMechanism, keyPair.getPublicKey());
+      session.verify(hashValues.get(i), signatures.get(i));
+    }
+    LOG.info("##################################################");
+  }
+
+  /**
+   * Publishes the items of a list on demand.
+   */
+  private static class ListPublisher implements Flow.Publisher<byte[]> {
+
+    private final List<byte[]> items;
+
+    ListPublisher(List<byte[]> items) {
+      this.items = items;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        private int index;
+
+        private boolean cancelled;
+
+        @Override
+        public synchronized void request(long n) {
+          while (n-- > 0 && index < items.size() && !cancelled) {
+            subscriber.onNext(items.get(index++));
+          }
+
+          if (index == items.size() && !cancelled) {
+            cancelled = true;
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public synchronized void cancel() {
+          cancelled = true;
+        }
+      });
+    }
+
+  }
+
+}
@@ -0,0 +1,78 @@
+// Copyright (c) 2022 xipki. All rights reserved.
+// License Apache License 2.0
+
+package test.pkcs11.wrapper.signatures;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xipki.pkcs11.wrapper.*;
+import test.pkcs11.wrapper.util.Util;
+
+import static org.xipki.pkcs11.wrapper.PKCS11Constants.*;
+
+/**
+ * Signs data on the token with CKM_ECDSA_SHA256, and verifies the signatures in software via
+ * {@link SoftwareVerifier}.
+ */
+public class SoftwareVerification extends SignatureTestBase {
+
+  @Test
+  public void main() throws Exception {
+    Token token = getNonNullToken();
+    Session session = openReadOnlySession(token);
+    try {
+      main0(token, session);
+    } finally {
+      session.closeSession();
+    }
+  }
+
+  private void main0(Token token, Session session) throws Exception {
+    LOG.info("##################################################");
+    final long mechCode = CKM_ECDSA_SHA256;
+    if (!Util.supports(token, mechCode)) {
+      System.out.println("Unsupported mechanism " + ckmCodeToName(mechCode));
+      return;
+    }
+    Mechanism signatureMechanism = getSupportedMechanism(token, mechCode);
+
+    // OID: 1.2.840.10045.3.1.7 (secp256r1, alias NIST P-256)
+    final byte[] ecParams = new byte[] {0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x03, 0x01, 0x07};
+    PKCS11KeyPair keyPair = generateECKeypair(token, session, ecParams, false);
+
+    try (SessionPool pool = token.newSessionPool(CKU_USER, getModulePin());
+         SoftwareVerifier verifier = new SoftwareVerifier(pool)) {
+      // P-256 is supported by all Java runtimes
+      Assert.assertTrue(verifier.isVerifiedInSoftware(signatureMechanism, keyPair.getPublicKey()));
+      // private keys are not used in software
+      Assert.assertFalse(verifier.isVerifiedInSoftware(signatureMechanism, keyPair.getPrivateKey()));
+
+      for (int i = 0; i < 10; i++) {
+        byte[] data = randomBytes(100 + i);
+        session.signInit(signatureMechanism, keyPair.getPrivateKey());
+        byte[] signature = session.sign(data);
+
+        Assert.assertTrue(verifier.verify(signatureMechanism, keyPair.getPublicKey(), data, signature));
+        Assert.assertTrue(verifier.verifyAsync(signatureMechanism, keyPair.getPublicKey(), data, signature).get());
+
+        data[0] ^= 1;
+        Assert.assertFalse(verifier.verify(signatureMechanism, keyPair.getPublicKey(), data, signature));
+      }
+      LOG.info("{}", verifier);
+
+      // the cached public key is removed with the object
+      byte[] data = randomBytes(100);
+      session.signInit(signatureMechanism, keyPair.getPrivateKey());
+      byte[] signature = session.sign(data);
+      session.destroyObject(keyPair.getPublicKey());
+      try {
+        verifier.verify(signatureMechanism, keyPair.getPublicKey(), data, signature);
+        Assert.fail("no exception thrown");
+      } catch (PKCS11Exception e) {
+        LOG.info("expected exception: {}", e.getMessage());
+      }
+    }
+    LOG.info("##################################################");
+  }
+
+}